@@ -0,0 +1,48 @@
+package keating.webmail.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Benchmarks.java
+ *
+ * Entry point of benchmarks.jar. Takes the usual JMH command line and always
+ * runs the GC profiler, so that every result reports the allocation rate
+ * (gc.alloc.rate.norm, bytes per operation) next to the time.
+ *
+ * @author Andrew Keating
+ */
+public class Benchmarks {
+
+  public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if(commandLine.shouldHelp()) {
+      commandLine.showHelp();
+      return;
+    }
+    if(commandLine.shouldList() || commandLine.shouldListWithParams() || commandLine.shouldListProfilers()
+        || commandLine.shouldListResultFormats()) {
+      // Listing is left to JMH itself
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    boolean profiled = false;
+    for(ProfilerConfig profiler : commandLine.getProfilers()) {
+      profiled |= profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName());
+    }
+    if(!profiled) {
+      options.addProfiler(GCProfiler.class);
+    }
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,56 @@
+package keating.webmail.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import keating.webmail.EmailMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * EmailMessageBenchmark.java
+ *
+ * Construction of an EmailMessage from the submitted form fields, including
+ * the parsing of the recipient list and the formatting of the submit time
+ *
+ * @author Andrew Keating
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dwebmail.journal.dir=")
+public class EmailMessageBenchmark {
+
+  @Param({"1", "10"})
+  public int recipients;
+
+  private String to;
+
+  @Setup
+  public void setUp() {
+    StringBuffer list = new StringBuffer();
+    for(int i = 0; i < recipients; i++) {
+      if(i > 0) {
+        list.append(", ");
+      }
+      list.append("user" + i + "@example.com");
+    }
+    to = list.toString();
+  }
+
+  @Benchmark
+  public EmailMessage construct() {
+    return new EmailMessage(to, "andrew@example.com", "Quarterly review", "", Samples.ASCII);
+  }
+}
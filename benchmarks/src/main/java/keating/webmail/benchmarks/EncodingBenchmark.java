@@ -0,0 +1,56 @@
+package keating.webmail.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import keating.webmail.SMTPClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * EncodingBenchmark.java
+ *
+ * Encoding of message bodies to quoted-printable and of headers to RFC2047
+ * encoded words, which every email goes through before it is sent
+ *
+ * @author Andrew Keating
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dwebmail.journal.dir=")
+public class EncodingBenchmark {
+
+  @Param({"ascii", "latin1", "large"})
+  public String input;
+
+  private SMTPClient client;
+  private String text;
+
+  @Setup
+  public void setUp() {
+    client = SMTPClient.getInstance();
+    text = Samples.text(input);
+  }
+
+  @Benchmark
+  public String toQuotedPrintable() {
+    return client.toQuotedPrintable(text);
+  }
+
+  @Benchmark
+  public String toRFC2047() {
+    return client.toRFC2047(text);
+  }
+}
@@ -0,0 +1,94 @@
+package keating.webmail.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import keating.webmail.FormParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FormParsingBenchmark.java
+ *
+ * Decoding of the form POSTed by form.html, as done by the WebServer for every
+ * submitted email. The multipart form carries a small attachment which stays
+ * in memory, the urlencoded one only the text fields.
+ *
+ * @author Andrew Keating
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dwebmail.journal.dir=")
+public class FormParsingBenchmark {
+
+  private static final String CHARSET = "ISO-8859-15";
+  private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+  @Param({"urlencoded", "multipart"})
+  public String encoding;
+
+  private FormParser parser;
+  private byte[] body;
+  private String contentType;
+
+  @Setup
+  public void setUp() throws IOException {
+    parser = new FormParser(CHARSET);
+    String[][] fields = {
+      {"from", "andrew@example.com"},
+      {"to", "alice@example.com, bob@example.org; carol@example.net"},
+      {"subject", "Qualitätsprüfung: Präsentation für Donnerstag"},
+      {"smtpserver", ""},
+      {"message", Samples.ASCII + Samples.LATIN1},
+      {"delay", "0"}
+    };
+
+    StringBuffer form = new StringBuffer(4096);
+    if(encoding.equals("urlencoded")) {
+      contentType = "application/x-www-form-urlencoded";
+      for(String[] field : fields) {
+        if(form.length() > 0) {
+          form.append('&');
+        }
+        form.append(field[0] + "=" + URLEncoder.encode(field[1], CHARSET));
+      }
+      body = form.toString().getBytes(CHARSET);
+      return;
+    }
+
+    contentType = "multipart/form-data; boundary=" + BOUNDARY;
+    for(String[] field : fields) {
+      form.append("--" + BOUNDARY + "\r\n");
+      form.append("Content-Disposition: form-data; name=\"" + field[0] + "\"\r\n\r\n");
+      form.append(field[1] + "\r\n");
+    }
+    form.append("--" + BOUNDARY + "\r\n");
+    form.append("Content-Disposition: form-data; name=\"attachment\"; filename=\"agenda.txt\"\r\n");
+    form.append("Content-Type: text/plain\r\n\r\n");
+    form.append(Samples.repeat(Samples.ASCII, 16 * 1024) + "\r\n");
+    form.append("--" + BOUNDARY + "--\r\n");
+    body = form.toString().getBytes(CHARSET);
+  }
+
+  @Benchmark
+  public FormParser.Form parse() throws IOException {
+    FormParser.Form form = parser.parse(new ByteArrayInputStream(body), body.length, contentType);
+    form.delete();
+    return form;
+  }
+}
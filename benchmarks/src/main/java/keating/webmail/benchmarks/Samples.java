@@ -0,0 +1,62 @@
+package keating.webmail.benchmarks;
+
+/**
+ * Samples.java
+ *
+ * Inputs shared by the benchmarks, modelled on what users type into the web
+ * form
+ *
+ * @author Andrew Keating
+ */
+final class Samples {
+
+  static final String ASCII =
+      "Hi all,\r\n" +
+      "\r\n" +
+      "The quarterly review has moved to Thursday at 10:00 in room 4.12. Please\r\n" +
+      "bring the figures for your team and read the agenda beforehand; questions\r\n" +
+      "go to the list as usual.\r\n" +
+      "\r\n" +
+      "Thanks, Andrew\r\n";
+
+  // Accents, the euro sign and symbols only found in ISO-8859-15
+  static final String LATIN1 =
+      "Grüße aus Köln!\r\n" +
+      "\r\n" +
+      "Die Präsentation für die Qualitätsprüfung ist fertig, sie kostet 1.200 €\r\n" +
+      "statt der veranschlagten 950 €. Côté français : la réunion a lieu à l'hôtel\r\n" +
+      "près de la gare, déjeuner compris. Œuvre complète, señor Muñoz.\r\n" +
+      "\r\n" +
+      "Viele Grüße, Jürgen\r\n";
+
+  private Samples() { }
+
+  /**
+   * @param name "ascii", "latin1" or "large"
+   * @return the sample text of that name. The large one is about a megabyte of
+   * both other samples, like a long message or a pasted log.
+   */
+  static String text(String name) {
+    if(name.equals("ascii")) {
+      return ASCII;
+    }
+    if(name.equals("latin1")) {
+      return LATIN1;
+    }
+    if(name.equals("large")) {
+      return repeat(ASCII + LATIN1, 1024 * 1024);
+    }
+    throw new IllegalArgumentException("Unknown sample: " + name);
+  }
+
+  /**
+   * @return the text repeated until it is at least the given length
+   */
+  static String repeat(String text, int length) {
+    StringBuilder repeated = new StringBuilder(length + text.length());
+    while(repeated.length() < length) {
+      repeated.append(text);
+    }
+    return repeated.toString();
+  }
+}
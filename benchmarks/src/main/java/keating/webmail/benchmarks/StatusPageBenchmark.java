@@ -0,0 +1,75 @@
+package keating.webmail.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import keating.webmail.EmailMessage;
+import keating.webmail.MessageStore;
+import keating.webmail.StatusPage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StatusPageBenchmark.java
+ *
+ * Rendering of the status page from a store of delivered emails. The first
+ * page is rendered with its rows cached, as it is on every refresh, and with
+ * an empty cache, which costs the rendering of every row. The last page shows
+ * the cost of skipping the newer emails.
+ *
+ * @author Andrew Keating
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dwebmail.journal.dir=", "-Xmx1g"})
+public class StatusPageBenchmark {
+
+  private static final int PAGE_SIZE = 50;
+
+  @Param({"10", "10000", "100000"})
+  public int messages;
+
+  private MessageStore store;
+  private StatusPage statusPage;
+
+  @Setup
+  public void setUp() {
+    store = new MessageStore(messages, 0);
+    for(int i = 0; i < messages; i++) {
+      EmailMessage message = new EmailMessage("user" + i + "@example.com", "andrew@example.com",
+          "Quarterly review #" + i, "", Samples.ASCII);
+      message.setRecipientStatus("user" + i + "@example.com", "Success");
+      message.setStatus("Success");
+      message.setDeliveryTime(message.getSubmitTime());
+      store.add(message);
+    }
+    statusPage = new StatusPage(PAGE_SIZE);
+  }
+
+  @Benchmark
+  public String firstPage() {
+    return statusPage.render(store, 1, PAGE_SIZE, 0);
+  }
+
+  @Benchmark
+  public String firstPageUncached() {
+    return new StatusPage(PAGE_SIZE).render(store, 1, PAGE_SIZE, 0);
+  }
+
+  @Benchmark
+  public String lastPage() {
+    return statusPage.render(store, Integer.MAX_VALUE, PAGE_SIZE, 0);
+  }
+}
@@ -0,0 +1,4 @@
+#/usr/bin/bash
+
+cd bin
+java $JAVA_OPTS keating.webmail.LoadTest
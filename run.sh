@@ -1,4 +1,4 @@
 #/usr/bin/bash
 
 cd bin
-java keating.webmail.WebServer
+java $JAVA_OPTS keating.webmail.WebServer
@@ -0,0 +1,140 @@
+package keating.webmail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Attachment.java
+ *
+ * A file attached to an email. The attachment only refers to its contents,
+ * which are read from their source while the email is sent: a file on disk,
+ * the temporary file of an uploaded form part, or the bytes of a small
+ * uploaded part.
+ *
+ * @author Andrew Keating
+ */
+public class Attachment {
+
+  private final String filename;
+  private final String contentType;
+  private final File file;
+  private final byte[] content;
+  private final long size;
+  private final boolean temporary;
+
+  /**
+   * Constructs a new Attachment which is read from a file. The file is not
+   * deleted when the email has been sent.
+   * @param file The file to attach
+   * @param filename Name of the attachment shown to the recipient
+   * @param contentType Media type of the file, e.g. "application/pdf"
+   */
+  public Attachment(File file, String filename, String contentType) {
+    this.filename = filename;
+    this.contentType = contentType;
+    this.file = file;
+    this.content = null;
+    this.size = file.length();
+    this.temporary = false;
+  }
+
+  /**
+   * Constructs a new Attachment from an uploaded file. A temporary file holding
+   * the upload now belongs to the attachment and is deleted by delete().
+   * @param part The uploaded file, which must have been taken from its form
+   */
+  public Attachment(FormParser.Part part) {
+    this.filename = part.getFilename();
+    this.contentType = part.getContentType();
+    this.file = part.getFile();
+    this.size = part.getSize();
+    this.temporary = file != null;
+    // A small upload is held in memory
+    this.content = part.getContent();
+  }
+
+  /**
+   * Restores an attachment read from a file, as recorded by the MessageJournal
+   * @param temporary true if the file is an upload which is deleted by delete()
+   */
+  Attachment(File file, String filename, String contentType, boolean temporary) {
+    this.filename = filename;
+    this.contentType = contentType;
+    this.file = file;
+    this.content = null;
+    this.size = file.length();
+    this.temporary = temporary;
+  }
+
+  /**
+   * Restores a small upload held in memory, as recorded by the MessageJournal
+   */
+  Attachment(String filename, String contentType, byte[] content) {
+    this.filename = filename;
+    this.contentType = contentType;
+    this.file = null;
+    this.content = content;
+    this.size = content.length;
+    this.temporary = false;
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the size of the attachment in bytes, before encoding
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the file holding the contents, or null if they are held in memory
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the contents if they are held in memory, otherwise null
+   */
+  byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return true if the file is an upload which is deleted once the email has been sent
+   */
+  boolean isTemporary() {
+    return temporary;
+  }
+
+  /**
+   * @return a new stream over the contents of the attachment
+   * @throws IOException If the file cannot be opened
+   */
+  public InputStream openStream() throws IOException {
+    if(content != null) {
+      return new ByteArrayInputStream(content);
+    }
+    return new FileInputStream(file);
+  }
+
+  /**
+   * Deletes the contents if they are held in a temporary file. Called once the
+   * email will not be sent again.
+   */
+  public void delete() {
+    if(temporary && !file.delete() && file.exists()) {
+      System.out.println("Could not delete temporary file " + file);
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package keating.webmail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Base64Encoder.java
+ *
+ * Streaming base64 encoder (RFC2045 section 6.8) for email attachments. The
+ * input is read in fixed-size chunks, each encoded into lines of 76 characters
+ * and written to an output stream, so the memory used is the same for an
+ * attachment of any size. Base64 output never contains a period, so it needs
+ * no dot stuffing inside the SMTP DATA command.
+ *
+ * An encoder is not thread safe; each SMTP session has its own.
+ *
+ * @author Andrew Keating
+ */
+public class Base64Encoder {
+
+  private static final byte[] ALPHABET =
+    { 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L', 'M', 'N', 'O', 'P',
+      'Q', 'R', 'S', 'T', 'U', 'V', 'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f',
+      'g', 'h', 'i', 'j', 'k', 'l', 'm', 'n', 'o', 'p', 'q', 'r', 's', 't', 'u', 'v',
+      'w', 'x', 'y', 'z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', '+', '/' };
+  // 57 bytes become one line of 76 characters
+  private static final int LINE_BYTES = 57;
+  private static final int LINES_PER_CHUNK = 144;
+
+  private final byte[] input = new byte[LINE_BYTES * LINES_PER_CHUNK];
+  private final byte[] output = new byte[LINES_PER_CHUNK * 78];
+
+  /**
+   * Encodes a stream and writes it to another, ending every line (including the
+   * last one) with CRLF. The input stream is read to its end but not closed.
+   * @param in Stream to encode
+   * @param out Stream receiving the encoded lines
+   * @throws IOException If reading or writing fails
+   */
+  public void encode(InputStream in, OutputStream out) throws IOException {
+    while(true) {
+      int filled = fill(in);
+      if(filled == 0) {
+        return;
+      }
+
+      int length = 0;
+      for(int line = 0; line < filled; line += LINE_BYTES) {
+        int end = Math.min(line + LINE_BYTES, filled);
+        for(int i = line; i < end; i += 3) {
+          int b0 = input[i] & 0xff;
+          int b1 = i + 1 < end ? input[i + 1] & 0xff : 0;
+          int b2 = i + 2 < end ? input[i + 2] & 0xff : 0;
+          output[length++] = ALPHABET[b0 >> 2];
+          output[length++] = ALPHABET[(b0 << 4 | b1 >> 4) & 0x3f];
+          // Only the last group of the whole input can be incomplete, as chunks are a multiple of 3 bytes
+          output[length++] = i + 1 < end ? ALPHABET[(b1 << 2 | b2 >> 6) & 0x3f] : (byte)'=';
+          output[length++] = i + 2 < end ? ALPHABET[b2 & 0x3f] : (byte)'=';
+        }
+        output[length++] = '\r';
+        output[length++] = '\n';
+      }
+      out.write(output, 0, length);
+
+      if(filled < input.length) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Reads until the chunk is full or the input ends
+   * @return the number of bytes read
+   */
+  private int fill(InputStream in) throws IOException {
+    int filled = 0;
+    while(filled < input.length) {
+      int count = in.read(input, filled, input.length - filled);
+      if(count < 0) {
+        break;
+      }
+      filled += count;
+    }
+    return filled;
+  }
+}
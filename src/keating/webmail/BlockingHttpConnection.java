@@ -0,0 +1,112 @@
+package keating.webmail;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * BlockingHttpConnection.java
+ *
+ * An HTTP connection served by a thread of its own, which reads requests and
+ * writes responses through the socket's streams
+ *
+ * @author Andrew Keating
+ */
+class BlockingHttpConnection extends HttpConnection {
+
+  private Socket socket;
+  private BufferedReader reader;
+  private BufferedOutputStream out;
+
+  /**
+   * Wraps an accepted client socket
+   * @param socket The client socket
+   * @throws IOException If the socket streams cannot be opened
+   */
+  public BlockingHttpConnection(Socket socket) throws IOException {
+    this.socket = socket;
+    // ISO-8859-1 maps every byte to one character, so Content-Length can be counted in characters
+    this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+    this.out = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  public BufferedReader getReader() {
+    return reader;
+  }
+
+  /**
+   * @return the buffered stream to which responses are written
+   */
+  public BufferedOutputStream getOutputStream() {
+    return out;
+  }
+
+  /**
+   * Sends part of a file with FileChannel.transferTo, which lets the kernel copy it
+   * to the socket without passing it through the heap
+   * @param file The file to send
+   * @param position Offset of the first byte to send
+   * @param count Number of bytes to send
+   * @throws IOException If the file cannot be read or the connection fails
+   */
+  public void transferFile(File file, long position, long count) throws IOException {
+    out.flush();
+
+    SocketChannel socketChannel = socket.getChannel();
+    WritableByteChannel target = socketChannel != null ? socketChannel : Channels.newChannel(out);
+    FileChannel fileChannel = new FileInputStream(file).getChannel();
+    try {
+      long end = position + count;
+      while(position < end) {
+        long sent = fileChannel.transferTo(position, end - position, target);
+        if(sent <= 0 && position >= fileChannel.size()) {
+          // The file became shorter while it was being sent
+          throw new IOException("File truncated while sending: " + file);
+        }
+        position += sent;
+      }
+    }
+    finally {
+      fileChannel.close();
+    }
+    out.flush();
+  }
+
+  /**
+   * Sends any buffered responses
+   * @throws IOException If the connection fails
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  public Socket getSocket() {
+    return socket;
+  }
+
+  /**
+   * Closes the streams and the underlying socket
+   */
+  public void close() {
+    try {
+      try {
+        reader.close();
+        out.close();
+      }
+      finally {
+        socket.close();
+      }
+    }
+    catch(IOException e) {
+      System.out.println("Error closing connection: " + e.getMessage());
+    }
+  }
+}
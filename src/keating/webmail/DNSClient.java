@@ -1,9 +1,23 @@
 package keating.webmail;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
@@ -14,48 +28,381 @@ import javax.naming.directory.InitialDirContext;
 /**
  * DNSClient.java
  *
- * This class determines the mail server of a domain via a DNS MX lookup
- * 
+ * This class determines the mail servers of a domain via a DNS MX lookup,
+ * ordered by the preference of their MX records.
+ *
+ * Results are cached per domain. Successful lookups are kept for
+ * webmail.dns.ttl seconds (default 300), while domains which do not exist or
+ * have no MX record are kept for webmail.dns.negativeTtl seconds (default 60).
+ * Concurrent lookups of the same domain share a single DNS query. The domains
+ * come from user input, so the cache is bounded: expired entries are dropped
+ * when they are looked up and by a sweep at most once a minute, and at most
+ * webmail.dns.cacheSize domains (default 10000) are kept, evicting arbitrary
+ * entries beyond that.
+ *
+ * Queries are made through JNDI by default. With the system property
+ * webmail.dns.resolver=nio the non-blocking DNSResolver is used instead, which
+ * also lets the cache honour the TTL of the MX record.
+ *
  * @author Andrew Keating
  */
 public class DNSClient {
-  
+
+  private static final long POSITIVE_TTL = Long.getLong("webmail.dns.ttl", 300) * 1000;
+  private static final long NEGATIVE_TTL = Long.getLong("webmail.dns.negativeTtl", 60) * 1000;
+  private static final int MAX_CACHE_SIZE = Integer.getInteger("webmail.dns.cacheSize", 10000);
+  private static final long SWEEP_INTERVAL = 60000;
+
+  private static final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+  private static final ConcurrentHashMap<String, FutureTask<CacheEntry>> lookups = new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+  private static final AtomicLong nextSweep = new AtomicLong();
+  private static final DNSResolver resolver = createResolver();
+  private static final Histogram HIT_TIME = lookupHistogram("hit");
+  private static final Histogram MISS_TIME = lookupHistogram("miss");
+  private static final LongAdder HITS = lookupCounter("hit");
+  private static final LongAdder MISSES = lookupCounter("miss");
+
+  /**
+   * A cached lookup result: either the addresses of the mail servers, or the
+   * reason why there are none
+   */
+  private static class CacheEntry {
+    final List<String> addresses;
+    final String error;
+    final boolean nameNotFound;
+    final long expires;
+
+    CacheEntry(List<String> addresses, String error, boolean nameNotFound, long ttl) {
+      this.addresses = addresses;
+      this.error = error;
+      this.nameNotFound = nameNotFound;
+      this.expires = System.currentTimeMillis() + ttl;
+    }
+
+    List<String> getAddresses() throws UnknownHostException, NamingException {
+      if(nameNotFound) {
+        throw new NameNotFoundException(error);
+      }
+      if(error != null) {
+        throw new UnknownHostException(error);
+      }
+      return addresses;
+    }
+  }
+
   /**
    * Not intended to be instantiated
    */
   private DNSClient() { }
 
   /**
-   * Performs an MX lookup on the input domain and returns the result
+   * Creates the non-blocking resolver if it was selected with webmail.dns.resolver
+   * @return the resolver, or null if JNDI is used
+   */
+  private static DNSResolver createResolver() {
+    if(!System.getProperty("webmail.dns.resolver", "jndi").equals("nio")) {
+      return null;
+    }
+    try {
+      return new DNSResolver();
+    }
+    catch(IOException e) {
+      System.out.println("Could not start DNS resolver, using JNDI instead: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Performs an MX lookup on the input domain and returns the most preferred result
    * @param domain The domain to look up the MX record of
-   * @return The IP address of the mail server, or "Unknown"
+   * @return The IP address of the mail server
    * @throws UnknownHostException If an MX record does not exist for the host
    * @throws NamingException If an invalid hostname is entered
    */
   public static String mxLookup(String domain) throws UnknownHostException, NamingException {
-    String address = "";
-    NamingEnumeration<?> values = null;
-    
+    return mailServerLookup(domain).get(0);
+  }
+
+  /**
+   * Performs an MX lookup on the input domain and returns the addresses of all its
+   * mail servers, using the cache when possible. The addresses are ordered by the
+   * preference of their MX record, so backup mail servers come last.
+   * @param domain The domain to look up the MX records of
+   * @return The IP addresses of the mail servers, never empty
+   * @throws UnknownHostException If an MX record does not exist for the host
+   * @throws NamingException If an invalid hostname is entered
+   */
+  public static List<String> mailServerLookup(String domain) throws UnknownHostException, NamingException {
+    final String key = domain.toLowerCase();
+
+    long start = System.nanoTime();
+    CacheEntry entry = cache.get(key);
+    if(entry != null && entry.expires > System.currentTimeMillis()) {
+      HITS.increment();
+      HIT_TIME.recordSince(start);
+      return entry.getAddresses();
+    }
+    if(entry != null) {
+      cache.remove(key, entry);
+    }
+    MISSES.increment();
+    try {
+      return lookup(key, domain);
+    }
+    finally {
+      // Includes waiting for a query made by another thread
+      MISS_TIME.recordSince(start);
+    }
+  }
+
+  /**
+   * Queries DNS for a domain which is not cached, sharing the query with concurrent
+   * lookups of the same domain
+   * @param key The domain in lower case
+   * @param domain The domain as given
+   * @return The IP addresses of the mail servers, never empty
+   * @throws UnknownHostException If an MX record does not exist for the host
+   * @throws NamingException If an invalid hostname is entered
+   */
+  private static List<String> lookup(final String key, String domain) throws UnknownHostException, NamingException {
+
+    // Only the first thread to miss performs the query, the others wait for its result
+    FutureTask<CacheEntry> lookup = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+      public CacheEntry call() throws Exception {
+        return resolve(key);
+      }
+    });
+    FutureTask<CacheEntry> existing = lookups.putIfAbsent(key, lookup);
+    if(existing == null) {
+      try {
+        lookup.run();
+      }
+      finally {
+        lookups.remove(key, lookup);
+      }
+      existing = lookup;
+    }
+
+    try {
+      return existing.get().getAddresses();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException("Interrupted while looking up " + domain);
+    }
+    catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof NamingException) {
+        throw (NamingException)cause;
+      }
+      if(cause instanceof UnknownHostException) {
+        throw (UnknownHostException)cause;
+      }
+      throw new UnknownHostException(cause.getMessage());
+    }
+  }
+
+  /**
+   * Looks up the histogram of MX lookup times
+   * @param cacheResult "hit" or "miss"
+   */
+  private static Histogram lookupHistogram(String cacheResult) {
+    return Metrics.getInstance().histogram("webmail_dns_mx_lookup_seconds",
+        "Time taken by MX lookups, by whether they were answered from the cache", "cache=" + Metrics.quote(cacheResult));
+  }
+
+  /**
+   * Looks up the counter of MX lookups
+   * @param cacheResult "hit" or "miss"
+   */
+  private static LongAdder lookupCounter(String cacheResult) {
+    return Metrics.getInstance().counter("webmail_dns_mx_lookups_total",
+        "MX lookups, by whether they were answered from the cache", "cache=" + Metrics.quote(cacheResult));
+  }
+
+  /**
+   * Queries DNS for the mail server of a domain and caches the answer. Answers
+   * saying that the domain or its MX record does not exist are cached as well;
+   * other failures, such as timeouts, are not.
+   * @param domain The domain to look up the MX record of
+   * @return the new cache entry
+   * @throws UnknownHostException If the mail server's address cannot be resolved
+   * @throws NamingException If the DNS query fails
+   */
+  private static CacheEntry resolve(String domain) throws UnknownHostException, NamingException {
+    CacheEntry entry;
+    try {
+      List<MXRecord> records = resolver != null ? await(resolver.lookupMx(domain)) : queryMx(domain);
+      if(records.isEmpty()) {
+        entry = new CacheEntry(null, "No MX record for " + domain, false, NEGATIVE_TTL);
+      }
+      else {
+        // JNDI does not report TTLs, so its entries use the configured TTL
+        long ttl = POSITIVE_TTL;
+        if(resolver != null) {
+          ttl = Long.MAX_VALUE;
+          for(MXRecord record : records) {
+            ttl = Math.min(ttl, record.getTtl() * 1000);
+          }
+        }
+        entry = new CacheEntry(resolveAddresses(records), null, false, ttl);
+      }
+    }
+    catch(NameNotFoundException e) {
+      entry = new CacheEntry(null, e.getMessage(), true, NEGATIVE_TTL);
+    }
+
+    cache.put(domain, entry);
+    trimCache();
+    return entry;
+  }
+
+  /**
+   * Removes expired entries once per sweep interval, or whenever the cache has
+   * grown beyond its limit, and then evicts entries until it is back under it
+   */
+  private static void trimCache() {
+    long now = System.currentTimeMillis();
+    long due = nextSweep.get();
+    boolean full = cache.size() > MAX_CACHE_SIZE;
+    if(!full && (now < due || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL))) {
+      return;
+    }
+
+    Iterator<CacheEntry> entries = cache.values().iterator();
+    while(entries.hasNext()) {
+      if(entries.next().expires <= now) {
+        entries.remove();
+      }
+    }
+    // Leaves some room, so that the next misses do not evict again right away
+    entries = cache.values().iterator();
+    while(cache.size() > MAX_CACHE_SIZE * 9L / 10 && entries.hasNext()) {
+      entries.next();
+      entries.remove();
+    }
+  }
+
+  /**
+   * Resolves the addresses of mail servers, keeping the order of the records.
+   * Hosts which cannot be resolved are skipped.
+   * @param records MX records ordered by preference
+   * @return the addresses of the mail servers
+   * @throws UnknownHostException If none of the mail servers can be resolved
+   */
+  private static List<String> resolveAddresses(List<MXRecord> records) throws UnknownHostException {
+    List<String> addresses = new ArrayList<String>();
+
+    if(resolver != null) {
+      // Send all address queries at once and then collect the answers in order
+      List<CompletableFuture<List<InetAddress>>> lookups = new ArrayList<CompletableFuture<List<InetAddress>>>();
+      for(MXRecord record : records) {
+        lookups.add(resolver.lookupA(record.getHost()));
+      }
+      for(CompletableFuture<List<InetAddress>> lookup : lookups) {
+        try {
+          for(InetAddress address : await(lookup)) {
+            addAddress(addresses, address);
+          }
+        }
+        catch(NamingException e) {
+          // Try the remaining mail servers
+        }
+      }
+    }
+    else {
+      for(MXRecord record : records) {
+        try {
+          for(InetAddress address : InetAddress.getAllByName(record.getHost())) {
+            addAddress(addresses, address);
+          }
+        }
+        catch(UnknownHostException e) {
+          // Try the remaining mail servers
+        }
+      }
+    }
+
+    if(addresses.isEmpty()) {
+      throw new UnknownHostException("No address for mail server " + records.get(0).getHost());
+    }
+    return Collections.unmodifiableList(addresses);
+  }
+
+  private static void addAddress(List<String> addresses, InetAddress address) {
+    String hostAddress = address.getHostAddress();
+    if(!addresses.contains(hostAddress)) {
+      addresses.add(hostAddress);
+    }
+  }
+
+  /**
+   * Waits for the result of a DNSResolver query
+   * @param future The pending query
+   * @return the result of the query
+   * @throws NamingException If the query failed
+   */
+  private static <T> T await(CompletableFuture<T> future) throws NamingException {
+    try {
+      return future.get();
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CommunicationException("Interrupted during DNS query");
+    }
+    catch(ExecutionException e) {
+      if(e.getCause() instanceof NamingException) {
+        throw (NamingException)e.getCause();
+      }
+      throw new NamingException(e.getCause().getMessage());
+    }
+  }
+
+  /**
+   * Performs an MX query using JNDI
+   * @param domain The domain to look up the MX records of
+   * @return The MX records ordered by preference, empty if there is no MX record
+   * @throws NamingException If the query fails
+   */
+  private static List<MXRecord> queryMx(String domain) throws NamingException {
+    List<MXRecord> records = new ArrayList<MXRecord>();
+
     Hashtable<String, String> env = new Hashtable<String, String>();
     env.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
     DirContext ictx = new InitialDirContext(env);
-    Attributes a = ictx.getAttributes(domain, new String[] { "MX" });
-    NamingEnumeration<?> all = a.getAll();
-        
-    if(all.hasMore()) {
-      Attribute attr = (Attribute)all.next();
-      values = attr.getAll(); 
-      if(values.hasMore()) {
-        address = (String)values.next();
-        // Strip leading zero
-        address = address.substring(2);
-        // Stip trailing period
-        address = address.substring(0, address.length() - 1);
-      }
-    }
-    
-    String ip = InetAddress.getByName(address).getHostAddress();
-    
-    return ip;
+    try {
+      Attributes a = ictx.getAttributes(domain, new String[] { "MX" });
+      NamingEnumeration<?> all = a.getAll();
+
+      if(all.hasMore()) {
+        Attribute attr = (Attribute)all.next();
+        NamingEnumeration<?> values = attr.getAll();
+        while(values.hasMore()) {
+          // Each value has the form "<preference> <host>."
+          String value = ((String)values.next()).trim();
+          int space = value.indexOf(' ');
+          if(space < 0) {
+            continue;
+          }
+          String host = value.substring(space + 1).trim();
+          // Strip trailing period
+          if(host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+          }
+          try {
+            records.add(new MXRecord(Integer.parseInt(value.substring(0, space)), host, 0));
+          }
+          catch(NumberFormatException e) {
+            // Ignore malformed records
+          }
+        }
+      }
+    }
+    finally {
+      ictx.close();
+    }
+
+    Collections.sort(records);
+    return records;
   }
 }
@@ -0,0 +1,603 @@
+package keating.webmail;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+/**
+ * DNSResolver.java
+ *
+ * Non-blocking DNS stub resolver for MX and A queries. All queries share one
+ * UDP channel which is served by a single selector thread, so any number of
+ * queries can be in flight without tying up a thread each. Queries which are
+ * not answered in time are retransmitted, and truncated replies are repeated
+ * over TCP (RFC1035 section 4.2.2).
+ *
+ * To make forged replies hard to inject, query IDs are drawn from a
+ * SecureRandom and a reply is only accepted if it echoes the name, type and
+ * class of the question it answers (RFC5452).
+ *
+ * Errors are reported with the same exceptions as the JNDI DNS provider:
+ * NameNotFoundException for NXDOMAIN, CommunicationException for timeouts and
+ * NamingException for other failures.
+ *
+ * @author Andrew Keating
+ */
+public class DNSResolver {
+
+  private static final int DNS_PORT = 53;
+  private static final int TYPE_A = 1;
+  private static final int TYPE_MX = 15;
+  private static final int CLASS_IN = 1;
+  private static final int MAX_UDP_SIZE = 512;
+  private static final int MAX_TCP_SIZE = 65535;
+  private static final long SELECT_TIMEOUT = 100;
+
+  private final InetSocketAddress nameserver;
+  private final long timeoutMillis;
+  private final int retries;
+  private final DatagramChannel udp;
+  private final Selector selector;
+  private final ConcurrentHashMap<Integer, Query<?>> pending = new ConcurrentHashMap<Integer, Query<?>>();
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * The parsed answer section of a reply
+   */
+  private static class Response {
+    int rcode;
+    List<MXRecord> mx = new ArrayList<MXRecord>();
+    List<InetAddress> addresses = new ArrayList<InetAddress>();
+  }
+
+  /**
+   * An outstanding query, which converts the reply into the result of its future
+   */
+  private abstract static class Query<T> {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    final String name;
+    final int type;
+    final byte[] packet;
+    int id;
+    int attempts;
+    long deadline = Long.MAX_VALUE;
+    TcpExchange tcp;
+
+    Query(String name, int type) {
+      this.name = name;
+      this.type = type;
+      this.packet = buildQuery(name, type);
+    }
+
+    abstract T extract(Response response);
+  }
+
+  /**
+   * State of a query which is being repeated over TCP
+   */
+  private static class TcpExchange {
+    final Query<?> query;
+    final SocketChannel channel;
+    final ByteBuffer out;
+    final ByteBuffer length = ByteBuffer.allocate(2);
+    ByteBuffer in;
+
+    TcpExchange(Query<?> query, SocketChannel channel) {
+      this.query = query;
+      this.channel = channel;
+      this.out = ByteBuffer.allocate(query.packet.length + 2);
+      out.putShort((short)query.packet.length);
+      out.put(query.packet);
+      out.flip();
+    }
+  }
+
+  /**
+   * Constructs a resolver which uses the system's nameserver, or the one given
+   * by the webmail.dns.server system property
+   * @throws IOException If the UDP channel cannot be opened
+   */
+  public DNSResolver() throws IOException {
+    this(getDefaultNameserver(), Long.getLong("webmail.dns.timeout", 2000), Integer.getInteger("webmail.dns.retries", 2));
+  }
+
+  /**
+   * Constructs a resolver and starts its selector thread
+   * @param nameserver Address of the DNS server
+   * @param timeoutMillis Time to wait for each attempt
+   * @param retries Number of retransmissions after the first attempt
+   * @throws IOException If the UDP channel cannot be opened
+   */
+  public DNSResolver(InetSocketAddress nameserver, long timeoutMillis, int retries) throws IOException {
+    this.nameserver = nameserver;
+    this.timeoutMillis = timeoutMillis;
+    this.retries = retries;
+
+    selector = Selector.open();
+    udp = DatagramChannel.open();
+    udp.configureBlocking(false);
+    udp.connect(nameserver);
+    udp.register(selector, SelectionKey.OP_READ);
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        runSelector();
+      }
+    }, "webmail-dns");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Determines the nameserver from the webmail.dns.server system property
+   * ("host" or "host:port") or the first nameserver in /etc/resolv.conf
+   * @return the address of the nameserver
+   */
+  public static InetSocketAddress getDefaultNameserver() {
+    String server = System.getProperty("webmail.dns.server");
+    if(server == null) {
+      BufferedReader reader = null;
+      try {
+        try {
+          reader = new BufferedReader(new FileReader("/etc/resolv.conf"));
+          String line;
+          while(server == null && (line = reader.readLine()) != null) {
+            StringTokenizer tokenizer = new StringTokenizer(line);
+            if(tokenizer.countTokens() >= 2 && tokenizer.nextToken().equals("nameserver")) {
+              server = tokenizer.nextToken();
+            }
+          }
+        }
+        finally {
+          if(reader != null) reader.close();
+        }
+      }
+      catch(IOException e) {
+        System.out.println("Error reading /etc/resolv.conf: " + e.getMessage());
+      }
+    }
+    if(server == null) {
+      server = "127.0.0.1";
+    }
+
+    int port = DNS_PORT;
+    int colon = server.lastIndexOf(':');
+    if(colon > 0 && server.indexOf(':') == colon) {
+      port = Integer.parseInt(server.substring(colon + 1));
+      server = server.substring(0, colon);
+    }
+    return new InetSocketAddress(server, port);
+  }
+
+  /**
+   * Looks up the mail exchangers of a domain
+   * @param domain The domain
+   * @return a future completed with the MX records ordered by preference, which is
+   * empty if the domain has no MX record
+   */
+  public CompletableFuture<List<MXRecord>> lookupMx(String domain) {
+    return send(new Query<List<MXRecord>>(domain, TYPE_MX) {
+      List<MXRecord> extract(Response response) {
+        Collections.sort(response.mx);
+        return response.mx;
+      }
+    });
+  }
+
+  /**
+   * Looks up the IPv4 addresses of a host
+   * @param host The host name
+   * @return a future completed with the addresses of the host
+   */
+  public CompletableFuture<List<InetAddress>> lookupA(String host) {
+    return send(new Query<List<InetAddress>>(host, TYPE_A) {
+      List<InetAddress> extract(Response response) {
+        return response.addresses;
+      }
+    });
+  }
+
+  /**
+   * Registers a query under a free ID and transmits it
+   */
+  private <T> CompletableFuture<T> send(Query<T> query) {
+    do {
+      query.id = random.nextInt(0x10000);
+      query.packet[0] = (byte)(query.id >> 8);
+      query.packet[1] = (byte)query.id;
+    }
+    while(pending.putIfAbsent(query.id, query) != null);
+
+    transmit(query);
+    return query.future;
+  }
+
+  /**
+   * Sends (or resends) a query over UDP
+   */
+  private void transmit(Query<?> query) {
+    synchronized(query) {
+      query.attempts++;
+      query.deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+    try {
+      udp.write(ByteBuffer.wrap(query.packet));
+    }
+    catch(IOException e) {
+      // Treated like a lost packet, the query is retransmitted after the timeout
+    }
+  }
+
+  /**
+   * Builds a query packet with a placeholder ID
+   * @param name Name to query
+   * @param type Record type
+   * @return the packet
+   */
+  private static byte[] buildQuery(String name, int type) {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_SIZE);
+    buffer.putShort((short)0);      // ID, filled in when sent
+    buffer.putShort((short)0x0100); // Recursion desired
+    buffer.putShort((short)1);      // One question
+    buffer.putShort((short)0);
+    buffer.putShort((short)0);
+    buffer.putShort((short)0);
+
+    StringTokenizer labels = new StringTokenizer(name, ".");
+    while(labels.hasMoreTokens()) {
+      String label = labels.nextToken();
+      if(label.length() > 63) {
+        throw new IllegalArgumentException("Invalid domain name: " + name);
+      }
+      buffer.put((byte)label.length());
+      for(int i = 0; i < label.length(); i++) {
+        buffer.put((byte)label.charAt(i));
+      }
+    }
+    buffer.put((byte)0);
+    buffer.putShort((short)type);
+    buffer.putShort((short)CLASS_IN);
+
+    byte[] packet = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(packet);
+    return packet;
+  }
+
+  /**
+   * Main loop of the selector thread
+   */
+  private void runSelector() {
+    ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_SIZE);
+    while(true) {
+      try {
+        selector.select(SELECT_TIMEOUT);
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if(key.channel() == udp) {
+            readUdp(buffer);
+          }
+          else {
+            handleTcp(key);
+          }
+        }
+
+        checkTimeouts();
+      }
+      catch(IOException e) {
+        System.out.println("Error in DNS resolver: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads all available UDP replies
+   */
+  private void readUdp(ByteBuffer buffer) throws IOException {
+    while(true) {
+      buffer.clear();
+      int read;
+      try {
+        read = udp.read(buffer);
+      }
+      catch(PortUnreachableException e) {
+        // Nothing listens on the nameserver port; the queries will time out
+        continue;
+      }
+      if(read <= 0) {
+        return;
+      }
+      buffer.flip();
+      handleReply(buffer, false);
+    }
+  }
+
+  /**
+   * Matches a reply to its query and completes the query
+   * @param reply The reply packet
+   * @param overTcp true if the reply was received over TCP
+   */
+  private void handleReply(ByteBuffer reply, boolean overTcp) {
+    if(reply.remaining() < 12) {
+      return;
+    }
+    int id = reply.getShort(0) & 0xFFFF;
+    int flags = reply.getShort(2) & 0xFFFF;
+
+    Query<?> query = pending.get(id);
+    // Ignore replies to unknown queries and anything which is not a response
+    if(query == null || (flags & 0x8000) == 0 || (query.tcp != null && !overTcp)) {
+      return;
+    }
+    // A forged reply has to guess the ID, so also require the question to match;
+    // if it does not, the query keeps waiting for the real reply
+    if(!answersQuestion(reply, query)) {
+      return;
+    }
+
+    if((flags & 0x0200) != 0 && !overTcp) {
+      // Truncated, so ask again over TCP
+      startTcp(query);
+      return;
+    }
+
+    pending.remove(id, query);
+    try {
+      complete(query, parse(reply));
+    }
+    catch(UnknownHostException e) {
+      query.future.completeExceptionally(new NamingException("Malformed DNS reply for " + query.name));
+    }
+    catch(RuntimeException e) {
+      query.future.completeExceptionally(new NamingException("Malformed DNS reply for " + query.name));
+    }
+  }
+
+  /**
+   * @return true if a reply echoes the question of a query: a single question with
+   * the same name (ignoring case), type and class
+   */
+  private static boolean answersQuestion(ByteBuffer reply, Query<?> query) {
+    try {
+      if((reply.getShort(4) & 0xFFFF) != 1) {
+        return false;
+      }
+      int end = skipName(reply, 12);
+      String expected = query.name.endsWith(".") ? query.name.substring(0, query.name.length() - 1) : query.name;
+      return readName(reply, 12).equalsIgnoreCase(expected)
+          && (reply.getShort(end) & 0xFFFF) == query.type
+          && (reply.getShort(end + 2) & 0xFFFF) == CLASS_IN;
+    }
+    catch(RuntimeException e) {
+      // Truncated or malformed question
+      return false;
+    }
+  }
+
+  /**
+   * Completes a query with its result or the error reported by the server
+   */
+  private <T> void complete(Query<T> query, Response response) {
+    if(response.rcode == 3) {
+      query.future.completeExceptionally(new NameNotFoundException("DNS name not found [response code 3]"));
+    }
+    else if(response.rcode != 0) {
+      query.future.completeExceptionally(new NamingException("DNS error [response code " + response.rcode + "]"));
+    }
+    else {
+      query.future.complete(query.extract(response));
+    }
+  }
+
+  /**
+   * Parses the answer section of a reply
+   */
+  private static Response parse(ByteBuffer reply) throws UnknownHostException {
+    Response response = new Response();
+    response.rcode = reply.getShort(2) & 0x000F;
+    int questions = reply.getShort(4) & 0xFFFF;
+    int answers = reply.getShort(6) & 0xFFFF;
+
+    int pos = 12;
+    for(int i = 0; i < questions; i++) {
+      pos = skipName(reply, pos) + 4;
+    }
+
+    for(int i = 0; i < answers; i++) {
+      pos = skipName(reply, pos);
+      int type = reply.getShort(pos) & 0xFFFF;
+      long ttl = reply.getInt(pos + 4) & 0x7FFFFFFFL;
+      int length = reply.getShort(pos + 8) & 0xFFFF;
+      int data = pos + 10;
+
+      if(type == TYPE_MX) {
+        int preference = reply.getShort(data) & 0xFFFF;
+        response.mx.add(new MXRecord(preference, readName(reply, data + 2), ttl));
+      }
+      else if(type == TYPE_A && length == 4) {
+        byte[] address = new byte[4];
+        for(int j = 0; j < 4; j++) {
+          address[j] = reply.get(data + j);
+        }
+        response.addresses.add(InetAddress.getByAddress(address));
+      }
+      pos = data + length;
+    }
+
+    return response;
+  }
+
+  /**
+   * @return the position after a (possibly compressed) name
+   */
+  private static int skipName(ByteBuffer packet, int pos) {
+    while(true) {
+      int length = packet.get(pos) & 0xFF;
+      if(length == 0) {
+        return pos + 1;
+      }
+      if((length & 0xC0) == 0xC0) {
+        return pos + 2;
+      }
+      pos += length + 1;
+    }
+  }
+
+  /**
+   * Reads a (possibly compressed) name, without the trailing period
+   */
+  private static String readName(ByteBuffer packet, int pos) {
+    StringBuffer name = new StringBuffer();
+    int jumps = 0;
+    while(true) {
+      int length = packet.get(pos) & 0xFF;
+      if(length == 0) {
+        return name.toString();
+      }
+      if((length & 0xC0) == 0xC0) {
+        // Compression pointer; limit the jumps to guard against loops
+        if(++jumps > 64) {
+          throw new IllegalArgumentException("Compression loop in DNS reply");
+        }
+        pos = ((length & 0x3F) << 8) | (packet.get(pos + 1) & 0xFF);
+        continue;
+      }
+      if(name.length() > 0) {
+        name.append('.');
+      }
+      for(int i = 1; i <= length; i++) {
+        name.append((char)(packet.get(pos + i) & 0xFF));
+      }
+      pos += length + 1;
+    }
+  }
+
+  /**
+   * Repeats a query over a non-blocking TCP connection
+   */
+  private void startTcp(Query<?> query) {
+    try {
+      SocketChannel channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      query.tcp = new TcpExchange(query, channel);
+      query.deadline = System.currentTimeMillis() + timeoutMillis;
+      if(channel.connect(nameserver)) {
+        channel.register(selector, SelectionKey.OP_WRITE, query.tcp);
+      }
+      else {
+        channel.register(selector, SelectionKey.OP_CONNECT, query.tcp);
+      }
+    }
+    catch(IOException e) {
+      fail(query, new CommunicationException("DNS query over TCP failed: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Advances a TCP exchange: connect, write the query, read the length-prefixed reply
+   */
+  private void handleTcp(SelectionKey key) {
+    TcpExchange tcp = (TcpExchange)key.attachment();
+    try {
+      if(key.isConnectable()) {
+        tcp.channel.finishConnect();
+        key.interestOps(SelectionKey.OP_WRITE);
+      }
+      if(key.isValid() && key.isWritable()) {
+        tcp.channel.write(tcp.out);
+        if(!tcp.out.hasRemaining()) {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+      if(key.isValid() && key.isReadable()) {
+        ByteBuffer target = tcp.in == null ? tcp.length : tcp.in;
+        if(tcp.channel.read(target) < 0) {
+          throw new IOException("Connection closed by DNS server");
+        }
+        if(tcp.in == null && !tcp.length.hasRemaining()) {
+          tcp.in = ByteBuffer.allocate(Math.min(tcp.length.getShort(0) & 0xFFFF, MAX_TCP_SIZE));
+        }
+        if(tcp.in != null && !tcp.in.hasRemaining()) {
+          closeTcp(tcp);
+          tcp.in.flip();
+          handleReply(tcp.in, true);
+        }
+      }
+    }
+    catch(IOException e) {
+      closeTcp(tcp);
+      fail(tcp.query, new CommunicationException("DNS query over TCP failed: " + e.getMessage()));
+    }
+  }
+
+  private void closeTcp(TcpExchange tcp) {
+    try {
+      tcp.channel.close();
+    }
+    catch(IOException e) {
+      // Nothing left to clean up
+    }
+  }
+
+  /**
+   * Retransmits or fails queries whose deadline has passed
+   */
+  private void checkTimeouts() {
+    long now = System.currentTimeMillis();
+    for(Query<?> query : pending.values()) {
+      boolean expired;
+      int attempts;
+      synchronized(query) {
+        expired = query.deadline < now;
+        attempts = query.attempts;
+      }
+      if(!expired) {
+        continue;
+      }
+
+      if(query.tcp != null) {
+        closeTcp(query.tcp);
+        fail(query, new CommunicationException("DNS query over TCP timed out for " + query.name));
+      }
+      else if(attempts <= retries) {
+        transmit(query);
+      }
+      else {
+        fail(query, new CommunicationException("DNS query timed out for " + query.name));
+      }
+    }
+  }
+
+  /**
+   * Removes a query and completes it with an error
+   */
+  private void fail(Query<?> query, Exception e) {
+    pending.remove(query.id, query);
+    query.future.completeExceptionally(e);
+  }
+}
@@ -0,0 +1,157 @@
+package keating.webmail;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * DeliveryQueue.java
+ *
+ * Bounded in-process queue of outbound messages, drained by a pool of worker
+ * threads. This decouples the web tier from the speed of remote mail servers:
+ * a POST only has to enqueue the message, while the workers perform the DNS
+ * lookups and SMTP conversations.
+ *
+ * The queue is sized with the webmail.queue.capacity system property and the
+ * number of workers with webmail.delivery.threads. Once more messages than
+ * webmail.queue.highWater (default 80% of the capacity) are waiting, the queue
+ * reports itself as overloaded, so that the web tier can turn new submissions
+ * away before the queue is full.
+ *
+ * The time each message waits for a worker is recorded in the histogram
+ * webmail_delivery_queue_wait_seconds.
+ *
+ * @author Andrew Keating
+ */
+public class DeliveryQueue {
+
+  private static final int DEFAULT_CAPACITY = 10000;
+  private static final int DEFAULT_WORKERS = 16;
+
+  private static final Histogram WAIT_TIME = Metrics.getInstance().histogram("webmail_delivery_queue_wait_seconds",
+      "Time messages wait in the delivery queue for a worker", "");
+
+  private BlockingQueue<Entry> queue;
+  private Thread[] workers;
+  private int highWater;
+
+  /**
+   * A queued message and the time it was queued
+   */
+  private static class Entry {
+    final EmailMessage message;
+    final long queued = System.nanoTime();
+
+    Entry(EmailMessage message) {
+      this.message = message;
+    }
+  }
+
+  /**
+   * Interface of the component which performs the actual delivery
+   */
+  public interface Deliverer {
+    /**
+     * Delivers a message, updating its status
+     * @param message The message to deliver
+     */
+    void deliver(EmailMessage message);
+
+    /**
+     * Finishes a message whose delivery failed with an unexpected exception, as
+     * a permanent failure
+     * @param message The message
+     * @param e The exception thrown by deliver()
+     */
+    void failed(EmailMessage message, RuntimeException e);
+  }
+
+  /**
+   * Constructs a new DeliveryQueue and starts its workers
+   * @param deliverer Performs the delivery of each dequeued message
+   */
+  public DeliveryQueue(Deliverer deliverer) {
+    this(deliverer, Integer.getInteger("webmail.queue.capacity", DEFAULT_CAPACITY),
+        Integer.getInteger("webmail.delivery.threads", DEFAULT_WORKERS),
+        Integer.getInteger("webmail.queue.highWater", Integer.getInteger("webmail.queue.capacity", DEFAULT_CAPACITY) * 4 / 5));
+  }
+
+  /**
+   * Constructs a new DeliveryQueue and starts its workers
+   * @param deliverer Performs the delivery of each dequeued message
+   * @param capacity Maximum number of queued messages
+   * @param workerCount Number of worker threads
+   */
+  public DeliveryQueue(Deliverer deliverer, int capacity, int workerCount) {
+    this(deliverer, capacity, workerCount, capacity * 4 / 5);
+  }
+
+  /**
+   * Constructs a new DeliveryQueue and starts its workers
+   * @param deliverer Performs the delivery of each dequeued message
+   * @param capacity Maximum number of queued messages
+   * @param workerCount Number of worker threads
+   * @param highWater Number of queued messages above which the queue is overloaded
+   */
+  public DeliveryQueue(final Deliverer deliverer, int capacity, int workerCount, int highWater) {
+    queue = new ArrayBlockingQueue<Entry>(capacity);
+    workers = new Thread[workerCount];
+    this.highWater = highWater;
+
+    for(int i = 0; i < workerCount; i++) {
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          while(true) {
+            EmailMessage message;
+            try {
+              Entry entry = queue.take();
+              WAIT_TIME.recordSince(entry.queued);
+              message = entry.message;
+            }
+            catch(InterruptedException e) {
+              return;
+            }
+
+            try {
+              deliverer.deliver(message);
+            }
+            catch(RuntimeException e) {
+              // Never let a single bad message kill the worker
+              System.out.println("Error delivering message: " + e.getMessage());
+              try {
+                deliverer.failed(message, e);
+              }
+              catch(RuntimeException again) {
+                System.out.println("Error finishing message: " + again.getMessage());
+              }
+            }
+          }
+        }
+      }, "webmail-delivery-" + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * Adds a message to the queue without blocking
+   * @param message The message to deliver
+   * @return false if the queue is full and the message was not accepted
+   */
+  public boolean submit(EmailMessage message) {
+    return queue.offer(new Entry(message));
+  }
+
+  /**
+   * @return true if more messages than the high-water mark are waiting for a worker
+   */
+  public boolean isOverloaded() {
+    return queue.size() > highWater;
+  }
+
+  /**
+   * @return the number of messages waiting for a worker
+   */
+  public int size() {
+    return queue.size();
+  }
+}
@@ -0,0 +1,262 @@
+package keating.webmail;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DeliveryScheduler.java
+ *
+ * Holds delayed messages until they are due and then hands them to the
+ * DeliveryQueue. The pending messages are kept in a hashed timing wheel: an
+ * array of buckets which a single ticker thread visits one at a time. Inserting
+ * and cancelling a message are O(1) regardless of how many are pending, and the
+ * ticker only ever looks at the bucket for the current tick, so hundreds of
+ * thousands of delayed sends cost no more per tick than a handful.
+ *
+ * Due messages are delivered by the workers of the DeliveryQueue, never by the
+ * ticker thread itself, so one slow delivery cannot hold up the others.
+ *
+ * @author Andrew Keating
+ */
+public class DeliveryScheduler {
+
+  private static final long DEFAULT_TICK_MILLIS = 100;
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+  // How long to wait before retrying a due message which did not fit in the delivery queue
+  private static final long QUEUE_FULL_RETRY_MILLIS = 1000;
+
+  private final DeliveryQueue deliveryQueue;
+  private final long tickNanos;
+  private final Timeout[] wheel;
+  private final int mask;
+  private final long startTime;
+  private final Queue<Timeout> additions = new ConcurrentLinkedQueue<Timeout>();
+  private final ConcurrentHashMap<Long, Timeout> timeouts = new ConcurrentHashMap<Long, Timeout>();
+
+  /**
+   * A scheduled message. Timeouts are chained into a doubly-linked list per bucket,
+   * which is only ever touched by the ticker thread.
+   */
+  private static class Timeout {
+    final EmailMessage message;
+    final long deadline; // Nanoseconds since the scheduler was started
+    long remainingRounds;
+    volatile boolean cancelled;
+    Timeout next;
+    Timeout prev;
+
+    Timeout(EmailMessage message, long deadline) {
+      this.message = message;
+      this.deadline = deadline;
+    }
+  }
+
+  /**
+   * Constructs a new DeliveryScheduler with the default resolution of 100ms
+   * @param deliveryQueue Queue which receives messages once they are due
+   */
+  public DeliveryScheduler(DeliveryQueue deliveryQueue) {
+    this(deliveryQueue, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+  }
+
+  /**
+   * Constructs a new DeliveryScheduler and starts its ticker thread
+   * @param deliveryQueue Queue which receives messages once they are due
+   * @param tickMillis Resolution of the scheduler in milliseconds
+   * @param wheelSize Number of buckets in the wheel, rounded up to a power of two
+   */
+  public DeliveryScheduler(DeliveryQueue deliveryQueue, long tickMillis, int wheelSize) {
+    if(tickMillis < 1 || wheelSize < 1) {
+      throw new IllegalArgumentException("Tick and wheel size must be positive");
+    }
+
+    int size = 1;
+    while(size < wheelSize) {
+      size <<= 1;
+    }
+
+    this.deliveryQueue = deliveryQueue;
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.wheel = new Timeout[size];
+    this.mask = size - 1;
+    this.startTime = System.nanoTime();
+
+    Thread ticker = new Thread(new Runnable() {
+      public void run() {
+        runTicker();
+      }
+    }, "webmail-scheduler");
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  /**
+   * Schedules a message to be delivered after a delay. If the message is already
+   * scheduled, the earlier schedule is replaced.
+   * @param message The message to deliver
+   * @param delayMillis Delay in milliseconds
+   */
+  public void schedule(EmailMessage message, long delayMillis) {
+    Timeout timeout = new Timeout(message, deadlineAfter(delayMillis));
+    Timeout previous = timeouts.put(message.getId(), timeout);
+    if(previous != null) {
+      previous.cancelled = true;
+    }
+    additions.add(timeout);
+  }
+
+  /**
+   * Cancels a scheduled message
+   * @param id ID of the message
+   * @return true if the message was pending and has been cancelled
+   */
+  public boolean cancel(long id) {
+    Timeout timeout = timeouts.remove(id);
+    if(timeout == null) {
+      return false;
+    }
+    timeout.cancelled = true;
+    return true;
+  }
+
+  /**
+   * Moves a scheduled message to a new delay, counted from now
+   * @param id ID of the message
+   * @param delayMillis New delay in milliseconds
+   * @return true if the message was pending and has been rescheduled
+   */
+  public boolean reschedule(long id, long delayMillis) {
+    Timeout timeout = timeouts.get(id);
+    if(timeout == null) {
+      return false;
+    }
+    Timeout fresh = new Timeout(timeout.message, deadlineAfter(delayMillis));
+    // Fails if the ticker dispatched (or someone cancelled) the old timeout in the
+    // meantime, so that a dispatched message is never scheduled a second time
+    if(!timeouts.replace(id, timeout, fresh)) {
+      return false;
+    }
+    timeout.cancelled = true;
+    additions.add(fresh);
+    return true;
+  }
+
+  /**
+   * @return the deadline of a timeout expiring after a delay, in nanoseconds since
+   * the scheduler was started
+   */
+  private long deadlineAfter(long delayMillis) {
+    return System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+  }
+
+  /**
+   * @return the number of messages waiting for their delay to expire
+   */
+  public int size() {
+    return timeouts.size();
+  }
+
+  /**
+   * Main loop of the ticker thread: waits for each tick, moves new timeouts into
+   * the wheel and expires the timeouts of the current bucket
+   */
+  private void runTicker() {
+    long tick = 0;
+    while(true) {
+      long sleepNanos = tickNanos * (tick + 1) - (System.nanoTime() - startTime);
+      if(sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+        catch(InterruptedException e) {
+          return;
+        }
+      }
+
+      transferAdditions(tick);
+      expireBucket((int)(tick & mask));
+      tick++;
+    }
+  }
+
+  /**
+   * Moves newly scheduled timeouts into their buckets
+   * @param tick The current tick
+   */
+  private void transferAdditions(long tick) {
+    Timeout timeout;
+    while((timeout = additions.poll()) != null) {
+      if(timeout.cancelled) {
+        continue;
+      }
+
+      long expiryTick = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+      // Timeouts which are already overdue go into the current bucket
+      int index = (int)(Math.max(expiryTick, tick) & mask);
+
+      timeout.prev = null;
+      timeout.next = wheel[index];
+      if(wheel[index] != null) {
+        wheel[index].prev = timeout;
+      }
+      wheel[index] = timeout;
+    }
+  }
+
+  /**
+   * Dispatches every due timeout in a bucket and counts down the rounds of the rest
+   * @param index Bucket index
+   */
+  private void expireBucket(int index) {
+    Timeout timeout = wheel[index];
+    while(timeout != null) {
+      Timeout next = timeout.next;
+      if(timeout.cancelled) {
+        remove(index, timeout);
+      }
+      else if(timeout.remainingRounds <= 0) {
+        remove(index, timeout);
+        dispatch(timeout);
+      }
+      else {
+        timeout.remainingRounds--;
+      }
+      timeout = next;
+    }
+  }
+
+  /**
+   * Unlinks a timeout from its bucket
+   */
+  private void remove(int index, Timeout timeout) {
+    if(timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    }
+    else {
+      wheel[index] = timeout.next;
+    }
+    if(timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.next = null;
+    timeout.prev = null;
+  }
+
+  /**
+   * Hands a due message to the delivery queue
+   */
+  private void dispatch(Timeout timeout) {
+    // Only dispatch if the timeout has not been replaced or cancelled in the meantime
+    if(!timeouts.remove(timeout.message.getId(), timeout)) {
+      return;
+    }
+
+    if(!deliveryQueue.submit(timeout.message)) {
+      // The workers are saturated, so try again shortly rather than dropping the message
+      schedule(timeout.message, QUEUE_FULL_RETRY_MILLIS);
+    }
+  }
+}
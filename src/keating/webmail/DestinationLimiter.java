@@ -0,0 +1,173 @@
+package keating.webmail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DestinationLimiter.java
+ *
+ * Limits the load the delivery workers put on each destination mail server, so
+ * that a burst of emails to one domain does not get every user rate limited by
+ * it. A destination may have at most webmail.smtp.host.maxSessions
+ * transactions in progress at once (default 4), and start at most
+ * webmail.smtp.host.rate transactions per second (default 10), enforced with a
+ * token bucket which holds up to one second's worth of tokens. A value of 0
+ * turns the respective limit off.
+ *
+ * The destinations are spread over a fixed number of stripes by the hash of
+ * their name, each with its own lock, so workers sending to different
+ * destinations rarely wait for each other's bookkeeping.
+ *
+ * @author Andrew Keating
+ */
+public class DestinationLimiter {
+
+  private static final int STRIPES = 16;
+  private static final int DEFAULT_MAX_SESSIONS = 4;
+  private static final double DEFAULT_RATE = 10;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final int maxSessions;
+  private final double rate;
+  private final double burst;
+
+  /**
+   * The destinations of one stripe, guarded by the stripe's lock
+   */
+  private static class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    // Signalled whenever a transaction of one of the stripe's destinations ends
+    final Condition released = lock.newCondition();
+    final Map<String, Destination> destinations = new HashMap<String, Destination>();
+  }
+
+  /**
+   * The transactions in progress and the token bucket of a destination
+   */
+  private static class Destination {
+    int active;
+    double tokens;
+    long refilled; // System.nanoTime() of the last refill
+  }
+
+  /**
+   * Constructs a new DestinationLimiter configured from the system properties
+   */
+  public DestinationLimiter() {
+    this(Integer.getInteger("webmail.smtp.host.maxSessions", DEFAULT_MAX_SESSIONS),
+        Double.parseDouble(System.getProperty("webmail.smtp.host.rate", Double.toString(DEFAULT_RATE))));
+  }
+
+  /**
+   * Constructs a new DestinationLimiter
+   * @param maxSessions Maximum number of transactions in progress per destination, 0 for no limit
+   * @param rate Maximum number of transactions started per second and destination, 0 for no limit
+   */
+  public DestinationLimiter(int maxSessions, double rate) {
+    this.maxSessions = maxSessions;
+    this.rate = rate;
+    this.burst = Math.max(1, rate);
+    for(int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Waits until a transaction may be started with a destination. Every successful
+   * call must be followed by a call to release().
+   * @param destination Name of the destination
+   * @param timeoutMillis Maximum time to wait in milliseconds
+   * @return true if the transaction may start, false if the destination stayed busy
+   * @throws InterruptedException If the thread is interrupted while waiting
+   */
+  public boolean acquire(String destination, long timeoutMillis) throws InterruptedException {
+    Stripe stripe = stripeOf(destination);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    stripe.lock.lock();
+    try {
+      while(true) {
+        long now = System.nanoTime();
+        // Looked up on every pass, as an idle destination is removed while nobody holds it
+        Destination state = stripe.destinations.get(destination);
+        if(state == null) {
+          state = new Destination();
+          state.tokens = burst;
+          state.refilled = now;
+          stripe.destinations.put(destination, state);
+        }
+        refill(state, now);
+        long waitNanos;
+        if(maxSessions > 0 && state.active >= maxSessions) {
+          // Woken up when a transaction ends
+          waitNanos = deadline - now;
+        }
+        else if(rate > 0 && state.tokens < 1) {
+          // Woken up when the next token is due
+          waitNanos = Math.min(deadline - now, (long)((1 - state.tokens) / rate * 1e9) + 1);
+        }
+        else {
+          state.active++;
+          if(rate > 0) {
+            state.tokens--;
+          }
+          return true;
+        }
+
+        if(deadline - now <= 0) {
+          return false;
+        }
+        stripe.released.awaitNanos(waitNanos);
+      }
+    }
+    finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Ends a transaction started with acquire()
+   * @param destination Name of the destination
+   */
+  public void release(String destination) {
+    Stripe stripe = stripeOf(destination);
+    stripe.lock.lock();
+    try {
+      Destination state = stripe.destinations.get(destination);
+      if(state == null) {
+        return;
+      }
+      state.active--;
+      refill(state, System.nanoTime());
+      if(state.active == 0 && state.tokens >= burst) {
+        // An idle destination holds no state
+        stripe.destinations.remove(destination);
+      }
+      stripe.released.signalAll();
+    }
+    finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Adds the tokens earned since the last refill
+   */
+  private void refill(Destination state, long now) {
+    if(rate <= 0) {
+      state.tokens = burst;
+      return;
+    }
+    state.tokens = Math.min(burst, state.tokens + (now - state.refilled) * rate / 1e9);
+    state.refilled = now;
+  }
+
+  private Stripe stripeOf(String destination) {
+    int hash = destination.hashCode();
+    // Spread the bits of the hash, as the stripe count is a power of two
+    hash ^= hash >>> 16;
+    return stripes[hash & (STRIPES - 1)];
+  }
+}
@@ -1,50 +1,176 @@
 package keating.webmail;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * EmailMessage.java
  *
  * This class contains all the fields of an email message, including timestamps.
+ * A message may have several recipients, each with its own delivery status.
+ * Recipients whose delivery failed transiently are deferred until the next
+ * attempt.
  * 
  * @author Andrew Keating
  *
  */
 public class EmailMessage {
 
+  private static final AtomicLong nextId = new AtomicLong(1);
+  private static final String DATE_FORMAT = "EEE, d MMM yyyy HH:mm:ss Z";
+
+  private long id;
+  private int delay;
   private String to;
+  private List<String> recipients;
+  private Map<String, String> recipientStatus;
+  // Recipients to try again, with the error of their last attempt
+  private final Map<String, String> deferred = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+  private volatile int attempts;
   private String from;
-  private String status;
+  private volatile String status;
   private String subject;
   private String server;
   private String data;
   private String submitTime;
-  private String deliveryTime;
+  private volatile long submitMillis;
+  private volatile String deliveryTime;
+  private volatile long scheduledTime;
+  private final List<Attachment> attachments = new ArrayList<Attachment>();
+  private final AtomicLong version = new AtomicLong();
+  private volatile StateListener stateListener;
+  // Position of the latest state change in the change log of the MessageStore
+  private long changeSequence;
+
+  /**
+   * Informed when the status, the status of a recipient or the delivery time of
+   * a message changes
+   */
+  interface StateListener {
+    void stateChanged(EmailMessage message);
+  }
   
   /**
    * Constructs a new EmailMessage
-   * @param to Intended recipient
+   * @param to Intended recipients, separated by commas, semicolons or spaces
    * @param from Sender of the message
    * @param subject Email subject
    * @param server SMTP server
    * @param data Message body
    */
   public EmailMessage(String to, String from, String subject, String server, String data) {
-    this.to = to;
+    this.id = nextId.getAndIncrement();
+    this.setTo(to);
     this.from = from;
     this.subject = subject;
     this.server = server;
     this.setData(data);
     this.status = "Pending";
     
-    SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
+    SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
     Date d = new Date();
     this.submitTime = sdf.format(d);
+    this.submitMillis = d.getTime();
   }
   
+  /**
+   * Restores a message recorded by the MessageJournal, keeping its ID. IDs given
+   * to new messages afterwards are higher.
+   * @param id ID of the message
+   * @param to Intended recipients, separated by commas, semicolons or spaces
+   * @param from Sender of the message
+   * @param subject Email subject
+   * @param server SMTP server
+   * @param data Message body
+   */
+  EmailMessage(long id, String to, String from, String subject, String server, String data) {
+    this.id = id;
+    this.setTo(to);
+    this.from = from;
+    this.subject = subject;
+    this.server = server;
+    this.setData(data);
+    this.status = "Pending";
+    this.submitMillis = System.currentTimeMillis();
+
+    long next;
+    do {
+      next = nextId.get();
+    }
+    while(next <= id && !nextId.compareAndSet(next, id + 1));
+  }
+
+  /**
+   * @return the unique ID of this message, used to link to its status
+   */
+  public long getId() {
+    return id;
+  }
+
+  /**
+   * @return a number which changes whenever a field of this message changes, so that
+   * views of the message can tell whether they are out of date
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * @param listener Informed about changes of the status and the delivery time,
+   * or null for none
+   */
+  void setStateListener(StateListener listener) {
+    this.stateListener = listener;
+  }
+
+  /**
+   * Informs the listener, if any, that the status, a recipient's status or the
+   * delivery time has changed
+   */
+  private void stateChanged() {
+    StateListener listener = stateListener;
+    if(listener != null) {
+      listener.stateChanged(this);
+    }
+  }
+
+  /**
+   * @return the position of the latest state change in the MessageStore's change
+   * log, or 0 if the message has not been logged. Only used under the store's
+   * change lock.
+   */
+  long getChangeSequence() {
+    return changeSequence;
+  }
+
+  void setChangeSequence(long changeSequence) {
+    this.changeSequence = changeSequence;
+  }
+
+  /**
+   * @param delay Delay in seconds before the message is sent
+   */
+  public void setDelay(int delay) {
+    this.delay = delay;
+    version.incrementAndGet();
+  }
+
+  public int getDelay() {
+    return delay;
+  }
+
   public void setStatus(String status) {
     this.status = status;
+    version.incrementAndGet();
+    stateChanged();
   }
 
   public String getStatus() {
@@ -53,22 +179,139 @@ public class EmailMessage {
   
   public void setFrom(String from) {
     this.from = from;
+    version.incrementAndGet();
   }
 
   public String getFrom() {
     return from;
   }
 
+  /**
+   * Sets the recipients of the message. The status of every recipient is reset to "Pending".
+   * @param to Intended recipients, separated by commas, semicolons or spaces
+   */
   public void setTo(String to) {
-    this.to = to;
+    List<String> parsed = parseRecipients(to);
+    Map<String, String> statuses = new LinkedHashMap<String, String>();
+    for(String recipient : parsed) {
+      statuses.put(recipient, "Pending");
+    }
+
+    this.recipients = Collections.unmodifiableList(parsed);
+    this.recipientStatus = Collections.synchronizedMap(statuses);
+    this.to = join(parsed);
+    version.incrementAndGet();
   }
 
   public String getTo() {
     return to;
   }
 
+  /**
+   * @return the individual recipient addresses
+   */
+  public List<String> getRecipients() {
+    return recipients;
+  }
+
+  /**
+   * Records the delivery status of a single recipient
+   * @param recipient Recipient address
+   * @param status Delivery status
+   */
+  public void setRecipientStatus(String recipient, String status) {
+    recipientStatus.put(recipient, status);
+    version.incrementAndGet();
+    stateChanged();
+  }
+
+  /**
+   * @param recipient Recipient address
+   * @return the delivery status of the recipient
+   */
+  public String getRecipientStatus(String recipient) {
+    return recipientStatus.get(recipient);
+  }
+
+  /**
+   * Defers a recipient whose delivery failed transiently until the next attempt.
+   * Its status shows the error until then.
+   * @param recipient Recipient address
+   * @param error Delivery status describing the failure
+   */
+  public void deferRecipient(String recipient, String error) {
+    deferred.put(recipient, error);
+    setRecipientStatus(recipient, "Retrying (" + error + ")");
+  }
+
+  /**
+   * @return the deferred recipients with the error of their last attempt, in the
+   * order they were deferred
+   */
+  public Map<String, String> getDeferredRecipients() {
+    synchronized(deferred) {
+      return new LinkedHashMap<String, String>(deferred);
+    }
+  }
+
+  /**
+   * Forgets the deferred recipients, either because they are being tried again
+   * or because they have been given up
+   */
+  public void clearDeferredRecipients() {
+    deferred.clear();
+  }
+
+  /**
+   * @return the number of delivery attempts started for this message
+   */
+  public int getAttempts() {
+    return attempts;
+  }
+
+  /**
+   * Counts a new delivery attempt
+   */
+  public void attemptStarted() {
+    attempts++;
+    version.incrementAndGet();
+  }
+
+  /**
+   * Splits a list of addresses separated by commas, semicolons or whitespace.
+   * Duplicate addresses are only kept once.
+   * @param to List of addresses
+   * @return the individual addresses
+   */
+  public static List<String> parseRecipients(String to) {
+    List<String> parsed = new ArrayList<String>();
+    StringTokenizer tokenizer = new StringTokenizer(to, ",; \t\r\n");
+    while(tokenizer.hasMoreTokens()) {
+      String recipient = tokenizer.nextToken();
+      if(!parsed.contains(recipient)) {
+        parsed.add(recipient);
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Joins addresses into the form used in the To header
+   */
+  private static String join(List<String> addresses) {
+    StringBuffer joined = new StringBuffer();
+    for(String address : addresses) {
+      if(joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(address);
+    }
+    return joined.toString();
+  }
+
   public void setSubject(String subject) {
     this.subject = subject;
+    version.incrementAndGet();
   }
 
   public String getSubject() {
@@ -77,6 +320,7 @@ public class EmailMessage {
 
   public void setServer(String server) {
     this.server = server;
+    version.incrementAndGet();
   }
 
   public String getServer() {
@@ -85,6 +329,7 @@ public class EmailMessage {
 
   public void setData(String data) {
     this.data = data;
+    version.incrementAndGet();
   }
 
   public String getData() {
@@ -93,17 +338,86 @@ public class EmailMessage {
 
   public void setSubmitTime(String submitTime) {
     this.submitTime = submitTime;
+    try {
+      this.submitMillis = new SimpleDateFormat(DATE_FORMAT).parse(submitTime).getTime();
+    }
+    catch(ParseException e) {
+      // Keep the previous time, the string is only shown to the user
+    }
+    version.incrementAndGet();
   }
 
   public String getSubmitTime() {
     return submitTime;
   }
 
+  /**
+   * @return the time the message was submitted, in milliseconds since the epoch
+   */
+  public long getSubmitMillis() {
+    return submitMillis;
+  }
+
   public void setDeliveryTime(String deliveryTime) {
     this.deliveryTime = deliveryTime;
+    version.incrementAndGet();
+    stateChanged();
   }
 
   public String getDeliveryTime() {
     return deliveryTime;
   }
+
+  /**
+   * @param scheduledTime Time a delayed message is due, in milliseconds since the epoch
+   */
+  public void setScheduledTime(long scheduledTime) {
+    this.scheduledTime = scheduledTime;
+    version.incrementAndGet();
+  }
+
+  /**
+   * @return the time a delayed message is due, in milliseconds since the epoch,
+   * or 0 if it was never delayed
+   */
+  public long getScheduledTime() {
+    return scheduledTime;
+  }
+
+  /**
+   * Attaches a file to the message. Attachments must be added before the message
+   * is handed to the SMTPClient.
+   * @param attachment The attachment
+   */
+  public void addAttachment(Attachment attachment) {
+    attachments.add(attachment);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Replaces an attachment, e.g. with a copy of it in another place
+   * @param index Position of the attachment
+   * @param attachment The new attachment
+   */
+  void replaceAttachment(int index, Attachment attachment) {
+    attachments.set(index, attachment);
+    version.incrementAndGet();
+  }
+
+  /**
+   * @return the attachments of the message, in the order they were added
+   */
+  public List<Attachment> getAttachments() {
+    return Collections.unmodifiableList(attachments);
+  }
+
+  /**
+   * Deletes the temporary files of the attachments once the message will not be
+   * sent again
+   */
+  public void deleteAttachments() {
+    for(Attachment attachment : attachments) {
+      attachment.delete();
+    }
+  }
 }
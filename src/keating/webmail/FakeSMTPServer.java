@@ -0,0 +1,254 @@
+package keating.webmail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FakeSMTPServer.java
+ *
+ * An SMTP server which accepts every email and throws it away, for load tests
+ * which should not touch real mail servers. It speaks enough ESMTP for the
+ * SMTPClient (EHLO with PIPELINING, MAIL, RCPT, DATA, RSET, NOOP and QUIT) and
+ * can be made to behave like a busy or failing server: every reply to the end
+ * of the data is delayed by a fixed latency, and a given share of the emails
+ * is refused with an error code or answered by dropping the connection.
+ *
+ * @author Andrew Keating
+ */
+public class FakeSMTPServer {
+
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private final ServerSocket server;
+  private final long latencyMillis;
+  private final double errorRate;
+  private final int errorCode;
+  private final double dropRate;
+  private final DeliveryListener listener;
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "fake-smtp");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder refused = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+
+  /**
+   * Informed of every email the server accepts
+   */
+  public interface DeliveryListener {
+    /**
+     * Called right after the 250 reply to the end of the data has been sent
+     * @param recipients The recipients of the email
+     */
+    void delivered(List<String> recipients);
+  }
+
+  /**
+   * Constructs a new FakeSMTPServer listening on the loopback interface. It
+   * serves connections once start() is called.
+   * @param port Port to listen on, 0 for any free port
+   * @param latencyMillis Time in milliseconds the reply to the end of the data is delayed
+   * @param errorRate Share of the emails refused, from 0 to 1
+   * @param errorCode Reply code of refused emails, e.g. 451 or 550
+   * @param dropRate Share of the emails after whose data the connection is closed
+   * without a reply, from 0 to 1
+   * @param listener Informed of every accepted email, or null
+   * @throws IOException If the port cannot be bound
+   */
+  public FakeSMTPServer(int port, long latencyMillis, double errorRate, int errorCode, double dropRate,
+      DeliveryListener listener) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.errorRate = errorRate;
+    this.errorCode = errorCode;
+    this.dropRate = dropRate;
+    this.listener = listener;
+    server = new ServerSocket();
+    server.setReuseAddress(true);
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+  }
+
+  /**
+   * @return the port the server listens on
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Accepts connections on a background thread, serving each on its own thread
+   */
+  public void start() {
+    executor.execute(new Runnable() {
+      public void run() {
+        while(!server.isClosed()) {
+          try {
+            final Socket socket = server.accept();
+            connections.increment();
+            executor.execute(new Runnable() {
+              public void run() {
+                serve(socket);
+              }
+            });
+          }
+          catch(IOException e) {
+            // Closed by stop()
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops accepting connections. Connections in progress are left to finish.
+   */
+  public void stop() {
+    try {
+      server.close();
+    }
+    catch(IOException e) {
+      // Nothing to do
+    }
+    executor.shutdown();
+  }
+
+  /**
+   * @return the number of emails accepted with 250
+   */
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  /**
+   * @return the number of emails refused with the error code
+   */
+  public long getRefused() {
+    return refused.sum();
+  }
+
+  /**
+   * @return the number of emails answered by closing the connection
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the number of connections accepted
+   */
+  public long getConnections() {
+    return connections.sum();
+  }
+
+  /**
+   * Runs an SMTP session until the client quits or goes away
+   */
+  private void serve(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+      OutputStream out = socket.getOutputStream();
+      reply(out, "220 localhost Fake ESMTP");
+
+      List<String> recipients = new ArrayList<String>();
+      String line;
+      while((line = in.readLine()) != null) {
+        String command = line.length() < 4 ? line.toUpperCase() : line.substring(0, 4).toUpperCase();
+        if(command.equals("EHLO")) {
+          reply(out, "250-localhost\r\n250-PIPELINING\r\n250 8BITMIME");
+        }
+        else if(command.equals("HELO")) {
+          reply(out, "250 localhost");
+        }
+        else if(command.equals("MAIL") || command.equals("RSET")) {
+          recipients.clear();
+          reply(out, "250 OK");
+        }
+        else if(command.equals("RCPT")) {
+          int start = line.indexOf('<');
+          int end = line.lastIndexOf('>');
+          recipients.add(start != -1 && end > start ? line.substring(start + 1, end) : line.substring(line.indexOf(':') + 1).trim());
+          reply(out, "250 OK");
+        }
+        else if(command.equals("DATA")) {
+          reply(out, "354 End data with <CR><LF>.<CR><LF>");
+          while((line = in.readLine()) != null && !line.equals(".")) {
+            // The email is thrown away
+          }
+          if(line == null) {
+            return;
+          }
+          if(latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+          }
+
+          double chance = ThreadLocalRandom.current().nextDouble();
+          if(chance < dropRate) {
+            dropped.increment();
+            return;
+          }
+          else if(chance < dropRate + errorRate) {
+            refused.increment();
+            reply(out, errorCode + (errorCode < 500 ? " 4.3.0" : " 5.7.1") + " Simulated failure");
+          }
+          else {
+            accepted.increment();
+            reply(out, "250 OK queued");
+            if(listener != null) {
+              listener.delivered(new ArrayList<String>(recipients));
+            }
+          }
+          recipients.clear();
+        }
+        else if(command.equals("NOOP")) {
+          reply(out, "250 OK");
+        }
+        else if(command.equals("QUIT")) {
+          reply(out, "221 Bye");
+          return;
+        }
+        else {
+          reply(out, "500 Command not recognized");
+        }
+      }
+    }
+    catch(IOException e) {
+      // The client went away
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      try {
+        socket.close();
+      }
+      catch(IOException e) {
+        // Nothing to do
+      }
+    }
+  }
+
+  private static void reply(OutputStream out, String reply) throws IOException {
+    out.write((reply + "\r\n").getBytes(ISO_8859_1));
+    out.flush();
+  }
+}
@@ -0,0 +1,35 @@
+package keating.webmail;
+
+import java.io.IOException;
+
+/**
+ * FormException.java
+ *
+ * Thrown when a submitted form cannot be decoded, either because it is
+ * malformed or because it exceeds one of the size limits of the FormParser
+ *
+ * @author Andrew Keating
+ */
+public class FormException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final boolean tooLarge;
+
+  /**
+   * Constructs a new FormException
+   * @param message Description of the problem
+   * @param tooLarge true if a size limit was exceeded, false if the form is malformed
+   */
+  public FormException(String message, boolean tooLarge) {
+    super(message);
+    this.tooLarge = tooLarge;
+  }
+
+  /**
+   * @return true if the form exceeds a size limit (413), false if it is malformed (400)
+   */
+  public boolean isTooLarge() {
+    return tooLarge;
+  }
+}
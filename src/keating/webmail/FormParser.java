@@ -0,0 +1,589 @@
+package keating.webmail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FormParser.java
+ *
+ * Decodes a submitted form while its body is read from the connection. Both
+ * encodings used by browsers are supported (HTML 4.01 section 17.13.4):
+ * application/x-www-form-urlencoded and multipart/form-data (RFC2388). Fields
+ * may be sent in any order.
+ *
+ * Text fields are kept in memory and limited to webmail.form.maxFieldSize
+ * bytes each (default 1 MB). Uploaded files are kept in memory up to
+ * webmail.form.spillThreshold bytes (default 64 KB) and written to a temporary
+ * file beyond that, so large uploads never sit in the heap. The whole body is
+ * limited to webmail.form.maxSize bytes (default 25 MB).
+ *
+ * @author Andrew Keating
+ */
+public class FormParser {
+
+  static final long MAX_SIZE = Long.getLong("webmail.form.maxSize", 25 * 1024 * 1024);
+  static final int MAX_FIELD_SIZE = Integer.getInteger("webmail.form.maxFieldSize", 1024 * 1024);
+  static final int SPILL_THRESHOLD = Integer.getInteger("webmail.form.spillThreshold", 64 * 1024);
+
+  private static final int MAX_PART_HEADER_SIZE = 8192;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final String charset;
+
+  /**
+   * A form: its text fields and its uploaded files
+   */
+  public static class Form {
+    private final Map<String, String> fields = new LinkedHashMap<String, String>();
+    private final List<Part> parts = new ArrayList<Part>();
+
+    /**
+     * @param name Name of the field
+     * @return the value of the field, or null if the form does not contain it
+     */
+    public String getField(String name) {
+      return fields.get(name);
+    }
+
+    /**
+     * @return all text fields by name, in the order they were sent
+     */
+    public Map<String, String> getFields() {
+      return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @return the uploaded files, in the order they were sent
+     */
+    public List<Part> getParts() {
+      return Collections.unmodifiableList(parts);
+    }
+
+    /**
+     * Deletes the temporary files of all uploaded files. Parts which are still
+     * needed afterwards must be removed from the form first with takePart.
+     */
+    public void delete() {
+      for(Part part : parts) {
+        part.delete();
+      }
+      parts.clear();
+    }
+
+    /**
+     * Removes an uploaded file from the form, so that delete() leaves it alone
+     * and the caller becomes responsible for deleting it
+     * @param part One of the parts of this form
+     */
+    public void takePart(Part part) {
+      parts.remove(part);
+    }
+
+    /**
+     * Adds a field, keeping the first value if a name is sent several times
+     */
+    private void addField(String name, String value) {
+      if(!fields.containsKey(name)) {
+        fields.put(name, value);
+      }
+    }
+  }
+
+  /**
+   * An uploaded file, held in memory or in a temporary file
+   */
+  public static class Part {
+    private final String name;
+    private final String filename;
+    private final String contentType;
+    private byte[] content;
+    private File file;
+    private long size;
+
+    Part(String name, String filename, String contentType) {
+      this.name = name;
+      this.filename = filename;
+      this.contentType = contentType;
+    }
+
+    /**
+     * @return the name of the form field
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the name of the file on the client, without any directory
+     */
+    public String getFilename() {
+      return filename;
+    }
+
+    /**
+     * @return the Content-Type sent by the client, application/octet-stream if there was none
+     */
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the temporary file holding the contents, or null if they are held in memory
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return the contents of the file, or null if they are held in a temporary file
+     */
+    byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return a new stream over the contents of the file
+     * @throws IOException If the temporary file cannot be opened
+     */
+    public InputStream openStream() throws IOException {
+      if(file != null) {
+        return new FileInputStream(file);
+      }
+      return new ByteArrayInputStream(content, 0, (int)size);
+    }
+
+    /**
+     * Deletes the temporary file, if there is one
+     */
+    public void delete() {
+      if(file != null && !file.delete() && file.exists()) {
+        System.out.println("Could not delete temporary file " + file);
+      }
+      file = null;
+      content = null;
+    }
+  }
+
+  /**
+   * Collects the contents of a field or file. A file is moved into a temporary
+   * file once it outgrows the spill threshold; a text field which outgrows the
+   * field limit is refused.
+   */
+  private static class PartOutput extends OutputStream {
+    private final boolean spill;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream fileOut;
+    private long size;
+
+    PartOutput(boolean spill) {
+      this.spill = spill;
+    }
+
+    public void write(int b) throws IOException {
+      size++;
+      if(fileOut != null) {
+        fileOut.write(b);
+        return;
+      }
+      if(memory.size() >= (spill ? SPILL_THRESHOLD : MAX_FIELD_SIZE)) {
+        if(!spill) {
+          throw new FormException("Form field larger than " + MAX_FIELD_SIZE + " bytes", true);
+        }
+        file = File.createTempFile("webmail-upload", ".part");
+        fileOut = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        memory.writeTo(fileOut);
+        memory = null;
+        fileOut.write(b);
+        return;
+      }
+      memory.write(b);
+    }
+
+    /**
+     * Finishes the part, closing the temporary file if there is one
+     */
+    public void close() throws IOException {
+      if(fileOut != null) {
+        fileOut.close();
+      }
+    }
+
+    /**
+     * Closes and deletes the temporary file after a failure
+     */
+    void discard() {
+      try {
+        close();
+      }
+      catch(IOException e) {
+        // The file is deleted anyway
+      }
+      if(file != null) {
+        file.delete();
+      }
+    }
+
+    /**
+     * @param charset Character set of the contents, which the client may have named
+     * @throws FormException If the character set is unknown or its name is invalid
+     */
+    String toString(String charset) throws FormException {
+      try {
+        return memory.toString(charset);
+      }
+      catch(UnsupportedEncodingException e) {
+        throw new FormException("Unsupported charset: " + charset, false);
+      }
+    }
+
+    void moveTo(Part part) {
+      part.size = size;
+      if(file != null) {
+        part.file = file;
+      }
+      else {
+        part.content = memory.toByteArray();
+      }
+    }
+  }
+
+  /**
+   * A buffered view of the body which ends after Content-Length bytes. Unlike
+   * BufferedInputStream its reads are not synchronized, as the form is decoded
+   * one byte at a time.
+   */
+  private static class Input {
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long remaining;
+
+    Input(InputStream in, long length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of the body
+     */
+    int read() throws IOException {
+      if(position == limit) {
+        if(remaining == 0) {
+          return -1;
+        }
+        int count = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+        if(count < 0) {
+          throw new ProtocolException("Connection closed in the request body");
+        }
+        remaining -= count;
+        position = 0;
+        limit = count;
+        if(count == 0) {
+          return read();
+        }
+      }
+      return buffer[position++] & 0xff;
+    }
+  }
+
+  /**
+   * Constructs a new FormParser
+   * @param charset Character set of text fields which do not name one, i.e. the
+   * accept-charset of the HTML form
+   */
+  public FormParser(String charset) {
+    this.charset = charset;
+  }
+
+  /**
+   * Reads and decodes a form. If decoding fails, temporary files which were
+   * already written are deleted.
+   * @param body The request body
+   * @param length Length of the body (Content-Length)
+   * @param contentType Content-Type of the body, or null
+   * @return the decoded form
+   * @throws FormException If the form is malformed or too large. The body has not
+   * been read to the end in this case.
+   * @throws IOException If the connection fails or a temporary file cannot be written
+   */
+  public Form parse(InputStream body, long length, String contentType) throws IOException {
+    if(length > MAX_SIZE) {
+      throw new FormException("Form larger than " + MAX_SIZE + " bytes", true);
+    }
+
+    Input in = new Input(body, length);
+    Form form = new Form();
+    try {
+      String type = contentType == null ? "" : contentType.trim().toLowerCase();
+      if(type.startsWith("multipart/form-data")) {
+        String boundary = getParameter(contentType, "boundary");
+        // RFC2046 section 5.1.1 limits boundaries to 70 characters
+        if(boundary == null || boundary.length() == 0 || boundary.length() > 70) {
+          throw new FormException("Invalid multipart boundary", false);
+        }
+        parseMultipart(in, boundary, form);
+      }
+      else if(type.equals("") || type.startsWith("application/x-www-form-urlencoded")) {
+        parseUrlEncoded(in, form);
+      }
+      else {
+        throw new FormException("Unsupported form encoding: " + contentType, false);
+      }
+    }
+    catch(IOException e) {
+      form.delete();
+      throw e;
+    }
+    return form;
+  }
+
+  /**
+   * Decodes name=value pairs separated by ampersands, with '+' for spaces and
+   * %XX escapes for other bytes
+   */
+  private void parseUrlEncoded(Input in, Form form) throws IOException {
+    PartOutput name = new PartOutput(false);
+    PartOutput value = new PartOutput(false);
+    PartOutput current = name;
+    while(true) {
+      int c = in.read();
+      if(c == -1 || c == '&') {
+        if(name.size > 0 || value.size > 0) {
+          form.addField(name.toString(charset), value.toString(charset));
+        }
+        if(c == -1) {
+          return;
+        }
+        name = new PartOutput(false);
+        value = new PartOutput(false);
+        current = name;
+      }
+      else if(c == '=' && current == name) {
+        current = value;
+      }
+      else if(c == '+') {
+        current.write(' ');
+      }
+      else if(c == '%') {
+        current.write(hexValue(in.read()) << 4 | hexValue(in.read()));
+      }
+      else {
+        current.write(c);
+      }
+    }
+  }
+
+  private static int hexValue(int c) throws FormException {
+    int value = Character.digit(c, 16);
+    if(c == -1 || value < 0) {
+      throw new FormException("Invalid escape sequence in form", false);
+    }
+    return value;
+  }
+
+  /**
+   * Decodes the parts of a multipart/form-data body (RFC2046 section 5.1)
+   */
+  private void parseMultipart(Input in, String boundary, Form form) throws IOException {
+    byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+
+    // Skip the preamble. The first delimiter may come right at the start of the
+    // body without a line break, so the search starts as if one had been read.
+    if(!readUntilDelimiter(in, delimiter, 2, null)) {
+      throw new FormException("Missing multipart boundary", false);
+    }
+
+    while(true) {
+      int c1 = in.read();
+      int c2 = in.read();
+      if(c1 == '-' && c2 == '-') {
+        // Closing delimiter, the epilogue is ignored
+        return;
+      }
+      // Linear whitespace may follow a delimiter
+      while(c1 == ' ' || c1 == '\t') {
+        c1 = c2;
+        c2 = in.read();
+      }
+      if(c1 != '\r' || c2 != '\n') {
+        throw new FormException("Malformed multipart delimiter", false);
+      }
+
+      Map<String, String> headers = readPartHeaders(in);
+      String disposition = headers.get("content-disposition");
+      String name = getParameter(disposition, "name");
+      if(name == null) {
+        throw new FormException("Multipart form part without a name", false);
+      }
+      String filename = getParameter(disposition, "filename");
+
+      PartOutput out = new PartOutput(filename != null);
+      try {
+        if(!readUntilDelimiter(in, delimiter, 0, out)) {
+          throw new FormException("Unterminated multipart body", false);
+        }
+        out.close();
+      }
+      catch(IOException e) {
+        out.discard();
+        throw e;
+      }
+
+      if(filename == null) {
+        String partCharset = getParameter(headers.get("content-type"), "charset");
+        form.addField(name, out.toString(partCharset != null ? partCharset : charset));
+      }
+      else if(filename.length() == 0 && out.size == 0) {
+        // A file input in which no file was chosen
+        out.discard();
+      }
+      else {
+        String contentType = headers.get("content-type");
+        Part part = new Part(name, baseName(filename), contentType != null ? contentType : "application/octet-stream");
+        out.moveTo(part);
+        form.parts.add(part);
+      }
+    }
+  }
+
+  /**
+   * Copies bytes to the output until the delimiter is found. The delimiter starts
+   * with a carriage return which occurs nowhere else in it, so after a mismatch
+   * the search can simply start again at the current byte.
+   * @param matched Number of bytes of the delimiter which have already been read
+   * @param out Receives the bytes before the delimiter, or null to skip them
+   * @return true if the delimiter was found, false at the end of the body
+   */
+  private static boolean readUntilDelimiter(Input in, byte[] delimiter, int matched, OutputStream out) throws IOException {
+    int c;
+    while((c = in.read()) != -1) {
+      if(c == delimiter[matched]) {
+        if(++matched == delimiter.length) {
+          return true;
+        }
+        continue;
+      }
+      if(matched > 0 && out != null) {
+        out.write(delimiter, 0, matched);
+      }
+      if(c == delimiter[0]) {
+        matched = 1;
+      }
+      else {
+        matched = 0;
+        if(out != null) {
+          out.write(c);
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the headers of a part up to the blank line which ends them
+   * @return the headers by lower case name
+   */
+  private Map<String, String> readPartHeaders(Input in) throws IOException {
+    Map<String, String> headers = new HashMap<String, String>();
+    ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    int total = 0;
+    while(true) {
+      int c = in.read();
+      if(c == -1) {
+        throw new FormException("Unterminated multipart headers", false);
+      }
+      if(++total > MAX_PART_HEADER_SIZE) {
+        throw new FormException("Multipart headers too large", true);
+      }
+      if(c != '\n') {
+        line.write(c);
+        continue;
+      }
+
+      String header = line.toString(charset).trim();
+      line.reset();
+      if(header.equals("")) {
+        return headers;
+      }
+      int colon = header.indexOf(':');
+      if(colon > 0) {
+        headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+      }
+    }
+  }
+
+  /**
+   * Finds a parameter of a header value such as
+   * form-data; name="file"; filename="a.txt"
+   * @param header The header value, or null
+   * @param parameter Name of the parameter
+   * @return the value of the parameter without quotes, or null if it is missing
+   */
+  static String getParameter(String header, String parameter) {
+    if(header == null) {
+      return null;
+    }
+    int index = header.indexOf(';');
+    while(index >= 0) {
+      int equals = header.indexOf('=', index + 1);
+      if(equals < 0) {
+        return null;
+      }
+      String key = header.substring(index + 1, equals).trim();
+
+      int start = equals + 1;
+      while(start < header.length() && header.charAt(start) == ' ') {
+        start++;
+      }
+      String value;
+      if(start < header.length() && header.charAt(start) == '"') {
+        // Browsers do not escape backslashes in file names, so a quoted value simply ends at the next quote
+        int end = header.indexOf('"', start + 1);
+        if(end < 0) {
+          end = header.length();
+        }
+        value = header.substring(start + 1, end);
+        index = header.indexOf(';', end);
+      }
+      else {
+        index = header.indexOf(';', start);
+        value = header.substring(start, index < 0 ? header.length() : index).trim();
+      }
+      if(key.equalsIgnoreCase(parameter)) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Strips the directory some browsers send with a file name
+   */
+  private static String baseName(String filename) {
+    return filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1);
+  }
+}
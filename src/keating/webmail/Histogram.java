@@ -0,0 +1,137 @@
+package keating.webmail;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram.java
+ *
+ * A latency histogram in the style of HdrHistogram: durations are counted in
+ * microseconds, in buckets whose width grows with the value, four buckets per
+ * power of two. Every value is therefore known to within 25%, from a
+ * microsecond to days, with a fixed array of 160 counters. Recording is a
+ * single atomic increment and takes no lock, so it can be done on every
+ * request.
+ *
+ * For the Prometheus text format, the buckets are reported cumulatively at
+ * every power of two of microseconds from 16us to about 67s.
+ *
+ * @author Andrew Keating
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKETS = 4;
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  // Exponents of the bucket boundaries reported to Prometheus
+  private static final int FIRST_REPORTED_EXPONENT = 4;
+  private static final int LAST_REPORTED_EXPONENT = 26;
+
+  private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+
+  /**
+   * Records a duration
+   * @param nanos The duration in nanoseconds
+   */
+  public void record(long nanos) {
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(indexOf(Math.min(nanos / 1000, MAX_VALUE)));
+    count.increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Records the time elapsed since a start time
+   * @param startNanos Start of the duration, as returned by System.nanoTime()
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return the number of durations recorded
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of the durations recorded, in nanoseconds
+   */
+  public long getSumNanos() {
+    return sumNanos.sum();
+  }
+
+  /**
+   * Estimates a quantile of the recorded durations
+   * @param quantile The quantile, e.g. 0.99
+   * @return the upper bound in microseconds of the bucket holding the quantile,
+   * 0 if nothing has been recorded
+   */
+  public long getValueAtQuantile(double quantile) {
+    long total = 0;
+    for(int i = 0; i < counts.length(); i++) {
+      total += counts.get(i);
+    }
+    long rank = (long)Math.ceil(quantile * total);
+    long seen = 0;
+    for(int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if(seen >= rank && seen > 0) {
+        return upperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Appends the histogram in the Prometheus text format
+   * @param out Buffer to append to
+   * @param name Name of the metric
+   * @param labels Labels of this histogram, e.g. phase="connect", or "" for none
+   */
+  public void render(StringBuffer out, String name, String labels) {
+    String separator = labels.equals("") ? "" : ",";
+    long cumulative = 0;
+    int index = 0;
+    for(int exponent = FIRST_REPORTED_EXPONENT; exponent <= LAST_REPORTED_EXPONENT; exponent++) {
+      // Counts every bucket below 2^exponent microseconds
+      long limit = (1L << exponent) - 1;
+      while(index < counts.length() && upperBound(index) <= limit) {
+        cumulative += counts.get(index++);
+      }
+      out.append(name + "_bucket{" + labels + separator + "le=\"" + ((1L << exponent) / 1e6) + "\"} " + cumulative + "\n");
+    }
+    // Read after the buckets, so +Inf is never below the last bucket
+    long total = getCount();
+    out.append(name + "_bucket{" + labels + separator + "le=\"+Inf\"} " + Math.max(total, cumulative) + "\n");
+    String braces = labels.equals("") ? "" : "{" + labels + "}";
+    out.append(name + "_sum" + braces + " " + (getSumNanos() / 1e9) + "\n");
+    out.append(name + "_count" + braces + " " + Math.max(total, cumulative) + "\n");
+  }
+
+  /**
+   * @return the bucket of a value in microseconds
+   */
+  static int indexOf(long micros) {
+    if(micros < SUB_BUCKETS) {
+      return (int)micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - 2;
+    return (shift + 1) * SUB_BUCKETS + (int)(micros >> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * @return the largest value in microseconds counted by a bucket
+   */
+  static long upperBound(int index) {
+    if(index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+}
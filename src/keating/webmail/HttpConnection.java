@@ -0,0 +1,75 @@
+package keating.webmail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * HttpConnection.java
+ *
+ * Holds the per-connection state of a single HTTP client so that several
+ * connections can be handled by the WebServer at the same time. Responses are
+ * written the same way whether the connection is served by a thread of its own
+ * (BlockingHttpConnection) or by a selector loop (NioHttpConnection).
+ *
+ * @author Andrew Keating
+ */
+abstract class HttpConnection {
+
+  private volatile boolean keepAlive;
+  private int status;
+
+  /**
+   * @return the stream to which responses are written
+   */
+  public abstract OutputStream getOutputStream();
+
+  /**
+   * Sends part of a file after everything written to the output stream so far,
+   * without copying it through the heap where possible
+   * @param file The file to send
+   * @param position Offset of the first byte to send
+   * @param count Number of bytes to send
+   * @throws IOException If the file cannot be read or the connection fails
+   */
+  public abstract void transferFile(File file, long position, long count) throws IOException;
+
+  /**
+   * Sends any buffered responses
+   * @throws IOException If the connection fails
+   */
+  public abstract void flush() throws IOException;
+
+  /**
+   * Closes the connection
+   */
+  public abstract void close();
+
+  /**
+   * @return the status code of the response being sent, 0 before its headers are complete
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @param status The status code of the response being sent
+   */
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  /**
+   * @return true if the connection stays open after the current response
+   */
+  public boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * @param keepAlive true if the connection stays open after the current response
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+}
@@ -0,0 +1,277 @@
+package keating.webmail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * HttpRequest.java
+ *
+ * An HTTP request: the request line, the headers and a stream over the body.
+ * The request is read from a connection whose reader decodes ISO-8859-1, so
+ * one character of the body stands for one byte and Content-Length can be
+ * counted in characters. The body is not read along with the headers; it is
+ * decoded by whoever handles the request, straight from the connection. The
+ * body stream ends at Content-Length, which leaves any pipelined requests which
+ * follow in the reader.
+ *
+ * @author Andrew Keating
+ */
+class HttpRequest {
+
+  private String method;
+  private String target;
+  private String version;
+  private Map<String, String> headers = new HashMap<String, String>();
+  private InputStream body = new ByteArrayInputStream(new byte[0]);
+
+  /**
+   * Constructs a new HttpRequest without headers or body
+   * @param method Request method, e.g. "GET"
+   * @param target Request target, e.g. "/status.html?page=2"
+   * @param version Protocol version, e.g. "HTTP/1.1"
+   */
+  public HttpRequest(String method, String target, String version) {
+    this.method = method;
+    this.target = target;
+    this.version = version;
+  }
+
+  /**
+   * Reads the next request from a connection. Blank lines before the request
+   * line are skipped (RFC2616 section 4.1). The body is left in the reader and
+   * is read through getBody(); it must be read or closed before the next
+   * request is read.
+   * @param reader Reader of the connection
+   * @return the request, or null if the client closed the connection before
+   * starting another request
+   * @throws ProtocolException If the request is malformed
+   * @throws IOException If the connection fails
+   */
+  public static HttpRequest read(BufferedReader reader) throws IOException {
+    HttpRequest request = readHead(reader);
+    if(request != null) {
+      int length = request.getContentLength();
+      if(length > 0) {
+        request.body = new BodyInputStream(reader, length);
+      }
+    }
+    return request;
+  }
+
+  /**
+   * Reads the request line and the headers of the next request, but not its body
+   * @param reader Reader of the connection
+   * @return the request without its body, or null if the client closed the connection
+   * before starting another request
+   * @throws ProtocolException If the request is malformed
+   * @throws IOException If the connection fails
+   */
+  public static HttpRequest readHead(BufferedReader reader) throws IOException {
+    String line;
+    do {
+      line = reader.readLine();
+      if(line == null) {
+        return null;
+      }
+    }
+    while(line.equals(""));
+
+    HttpRequest request = parseRequestLine(line);
+    request.readHeaders(reader);
+    return request;
+  }
+
+  /**
+   * @return the length of the body given by Content-Length, 0 if there is none
+   * @throws ProtocolException If the length is invalid or the body is chunked, which is not supported
+   */
+  public int getContentLength() throws ProtocolException {
+    if(getHeader("transfer-encoding") != null) {
+      throw new ProtocolException("Transfer-Encoding is not supported");
+    }
+    String contentLength = getHeader("content-length");
+    if(contentLength == null) {
+      return 0;
+    }
+    try {
+      int length = Integer.parseInt(contentLength);
+      if(length >= 0) {
+        return length;
+      }
+    }
+    catch(NumberFormatException e) {
+      // Reported below
+    }
+    throw new ProtocolException("Invalid Content-Length: " + contentLength);
+  }
+
+  /**
+   * Parses a request line of the form "METHOD target HTTP/x.y". Requests without a
+   * version are treated as HTTP/1.0, requests without a target ask for "/".
+   */
+  private static HttpRequest parseRequestLine(String line) throws ProtocolException {
+    StringTokenizer tokenizer = new StringTokenizer(line);
+    if(!tokenizer.hasMoreTokens()) {
+      throw new ProtocolException("Empty request line");
+    }
+    String method = tokenizer.nextToken();
+    String target = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "/";
+    String version = tokenizer.hasMoreTokens() ? tokenizer.nextToken() : "HTTP/1.0";
+    if(!version.startsWith("HTTP/")) {
+      throw new ProtocolException("Invalid HTTP version: " + version);
+    }
+    return new HttpRequest(method, target, version);
+  }
+
+  /**
+   * Reads the headers up to the blank line which ends them
+   */
+  private void readHeaders(BufferedReader reader) throws IOException {
+    String line;
+    while((line = reader.readLine()) != null && !line.equals("")) {
+      int colon = line.indexOf(':');
+      if(colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+    }
+    if(line == null) {
+      throw new ProtocolException("Connection closed in the request headers");
+    }
+  }
+
+  /**
+   * The body of a request as bytes, read from the connection's ISO-8859-1 reader
+   * as the caller needs them. Closing the stream skips what is left of the body,
+   * so that the next request on the connection can be read.
+   */
+  private static class BodyInputStream extends InputStream {
+    private final BufferedReader reader;
+    private final char[] chars = new char[8192];
+    private int remaining;
+
+    BodyInputStream(BufferedReader reader, int length) {
+      this.reader = reader;
+      this.remaining = length;
+    }
+
+    public int read() throws IOException {
+      if(remaining == 0) {
+        return -1;
+      }
+      int c = reader.read();
+      if(c < 0) {
+        throw new ProtocolException("Connection closed in the request body");
+      }
+      remaining--;
+      return c & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if(remaining == 0) {
+        return -1;
+      }
+      int count = reader.read(chars, 0, Math.min(Math.min(len, chars.length), remaining));
+      if(count < 0) {
+        throw new ProtocolException("Connection closed in the request body");
+      }
+      for(int i = 0; i < count; i++) {
+        b[off + i] = (byte)chars[i];
+      }
+      remaining -= count;
+      return count;
+    }
+
+    public void close() throws IOException {
+      while(remaining > 0) {
+        long skipped = reader.skip(remaining);
+        if(skipped <= 0) {
+          throw new ProtocolException("Connection closed in the request body");
+        }
+        remaining -= skipped;
+      }
+    }
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getTarget() {
+    return target;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the target without the query string
+   */
+  public String getPath() {
+    int queryIndex = target.indexOf('?');
+    return queryIndex >= 0 ? target.substring(0, queryIndex) : target;
+  }
+
+  /**
+   * @return the query string of the target (without the question mark), or "" if there is none
+   */
+  public String getQuery() {
+    int queryIndex = target.indexOf('?');
+    return queryIndex >= 0 ? target.substring(queryIndex + 1) : "";
+  }
+
+  /**
+   * @param name Header name in lower case
+   * @return the value of the header, or null if it is missing
+   */
+  public String getHeader(String name) {
+    return headers.get(name);
+  }
+
+  /**
+   * @return all headers by lower case name
+   */
+  public Map<String, String> getHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return a stream over the body of the request, which is empty if there is none
+   */
+  public InputStream getBody() {
+    return body;
+  }
+
+  /**
+   * @param body Stream over the body of the request
+   */
+  public void setBody(InputStream body) {
+    this.body = body;
+  }
+
+  /**
+   * Decides whether the client wants to keep the connection open after this
+   * request: HTTP/1.1 connections are persistent unless the client sends
+   * "Connection: close", HTTP/1.0 connections only with "Connection: keep-alive"
+   * @return true if the connection may be kept open
+   */
+  public boolean isKeepAlive() {
+    String connection = getHeader("connection");
+    if(connection != null) {
+      connection = connection.toLowerCase();
+      if(connection.contains("close")) {
+        return false;
+      }
+      if(connection.contains("keep-alive")) {
+        return true;
+      }
+    }
+    return version.equals("HTTP/1.1");
+  }
+}
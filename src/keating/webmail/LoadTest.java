@@ -0,0 +1,337 @@
+package keating.webmail;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadTest.java
+ *
+ * Measures the throughput and latency of the WebServer under concurrent form
+ * submissions without touching real mail servers. A FakeSMTPServer receives
+ * the emails, and loadtest.threads threads (default 16) each POST the form to
+ * / over a keep-alive connection, one submission after the other, for
+ * loadtest.duration seconds (default 30). Every email goes to a different
+ * recipient and names 127.0.0.1 as its SMTP server, so it is delivered to the
+ * fake server, which reports when it has answered 250.
+ *
+ * At the end, the tool prints the submissions per second with the 50th, 99th
+ * and 99.9th percentile of their response time, and the emails delivered per
+ * second with the percentiles of their delivery latency, from the start of the
+ * submission to the 250 reply to the end of their data.
+ *
+ * By default the WebServer runs in the same JVM and is configured to deliver
+ * to the fake server (loadtest.embedded=true). With loadtest.embedded=false
+ * the tool drives a server started separately at loadtest.host:loadtest.port,
+ * which must be run with -Dwebmail.smtp.port set to loadtest.smtp.port.
+ *
+ * The behaviour of the fake server is set with loadtest.smtp.latency
+ * (milliseconds every email is held before its reply, default 0),
+ * loadtest.smtp.errorRate and loadtest.smtp.errorCode (share of the emails
+ * refused and the code they are refused with, default 0 and 451) and
+ * loadtest.smtp.dropRate (share of the emails answered by closing the
+ * connection, default 0).
+ *
+ * @author Andrew Keating
+ */
+public class LoadTest {
+
+  private static final String CHARSET = "ISO-8859-15";
+  private static final String BODY_TEXT =
+      "The quarterly review has moved to Thursday at 10:00 in room 4.12. Gr\u00fc\u00dfe, J\u00fcrgen\r\n";
+
+  private final String host = System.getProperty("loadtest.host", "localhost");
+  private final int port = Integer.getInteger("loadtest.port", 8080);
+  private final int threads = Integer.getInteger("loadtest.threads", 16);
+  private final long duration = Long.getLong("loadtest.duration", 30);
+  // Time in seconds to wait for outstanding deliveries after the last submission
+  private final long drain = Long.getLong("loadtest.drain", 10);
+  private final int messageSize = Integer.getInteger("loadtest.messageSize", 1024);
+
+  private final Histogram responseTime = new Histogram();
+  private final Histogram deliveryTime = new Histogram();
+  private final AtomicLong sequence = new AtomicLong();
+  // Responses by status code, and requests which failed without a response (0)
+  private final ConcurrentSkipListMap<Integer, LongAdder> responses = new ConcurrentSkipListMap<Integer, LongAdder>();
+  // Start of the submission of every email which has not been delivered yet, by recipient
+  private final ConcurrentHashMap<String, Long> submitted = new ConcurrentHashMap<String, Long>();
+  private volatile long lastDelivery;
+  private String formSuffix;
+
+  /**
+   * A keep-alive connection to the WebServer
+   */
+  private class Client {
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    /**
+     * POSTs a form, reconnecting first if the previous response closed the connection
+     * @param form The urlencoded form
+     * @return the status code of the response
+     * @throws IOException If the connection fails; it is closed
+     */
+    int post(byte[] form) throws IOException {
+      try {
+        if(socket == null) {
+          socket = new Socket();
+          socket.setTcpNoDelay(true);
+          socket.connect(new InetSocketAddress(host, port), 5000);
+          socket.setSoTimeout(30000);
+          in = new BufferedInputStream(socket.getInputStream());
+          out = socket.getOutputStream();
+        }
+        String head = "POST / HTTP/1.1\r\n" +
+            "Host: " + host + ":" + port + "\r\n" +
+            "Content-Type: application/x-www-form-urlencoded\r\n" +
+            "Content-Length: " + form.length + "\r\n\r\n";
+        out.write(head.getBytes(CHARSET));
+        out.write(form);
+        out.flush();
+        return readResponse();
+      }
+      catch(IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    /**
+     * Reads a response and skips its body
+     */
+    private int readResponse() throws IOException {
+      String statusLine = readLine();
+      int status = Integer.parseInt(statusLine.split(" ")[1]);
+      long length = 0;
+      boolean keepAlive = true;
+      String line;
+      while(!(line = readLine()).equals("")) {
+        int colon = line.indexOf(':');
+        String name = line.substring(0, colon).trim().toLowerCase();
+        String value = line.substring(colon + 1).trim();
+        if(name.equals("content-length")) {
+          length = Long.parseLong(value);
+        }
+        else if(name.equals("connection") && value.equalsIgnoreCase("close")) {
+          keepAlive = false;
+        }
+      }
+      while(length > 0) {
+        long skipped = in.skip(length);
+        if(skipped <= 0) {
+          if(in.read() == -1) {
+            throw new IOException("Connection closed in the response body");
+          }
+          skipped = 1;
+        }
+        length -= skipped;
+      }
+      if(!keepAlive) {
+        close();
+      }
+      return status;
+    }
+
+    private String readLine() throws IOException {
+      StringBuffer line = new StringBuffer();
+      int c;
+      while((c = in.read()) != '\n') {
+        if(c == -1) {
+          throw new IOException("Connection closed by the server");
+        }
+        if(c != '\r') {
+          line.append((char)c);
+        }
+      }
+      return line.toString();
+    }
+
+    void close() {
+      if(socket != null) {
+        try {
+          socket.close();
+        }
+        catch(IOException e) {
+          // Nothing to do
+        }
+        socket = null;
+      }
+    }
+  }
+
+  /**
+   * Builds the part of the form which is the same for every submission
+   */
+  private void buildForm() throws UnsupportedEncodingException {
+    StringBuffer message = new StringBuffer(messageSize + BODY_TEXT.length());
+    while(message.length() < messageSize) {
+      message.append(BODY_TEXT);
+    }
+    formSuffix = "&from=" + URLEncoder.encode("loadtest@example.com", CHARSET) +
+        "&smtpserver=127.0.0.1" +
+        "&message=" + URLEncoder.encode(message.toString(), CHARSET) +
+        "&delay=0";
+  }
+
+  /**
+   * Submits forms until the end of the test
+   */
+  private void generate(long end) {
+    Client client = new Client();
+    while(System.nanoTime() - end < 0) {
+      long id = sequence.incrementAndGet();
+      String recipient = "user" + id + "@loadtest.example";
+      int status;
+      long start = System.nanoTime();
+      // Recorded before sending, as the email may be delivered before the response arrives
+      submitted.put(recipient, start);
+      try {
+        byte[] form = ("to=" + URLEncoder.encode(recipient, CHARSET) + "&subject=Load+test+" + id + formSuffix).getBytes(CHARSET);
+        status = client.post(form);
+        responseTime.recordSince(start);
+      }
+      catch(IOException e) {
+        status = 0;
+      }
+      // Anything but the redirect to the status page means the email was not queued
+      if(status != 301) {
+        submitted.remove(recipient);
+      }
+      count(status);
+    }
+    client.close();
+  }
+
+  private void count(int status) {
+    LongAdder counter = responses.get(status);
+    if(counter == null) {
+      LongAdder created = new LongAdder();
+      counter = responses.putIfAbsent(status, created);
+      if(counter == null) {
+        counter = created;
+      }
+    }
+    counter.increment();
+  }
+
+  /**
+   * Runs the test and prints the results
+   */
+  private void run() throws IOException, InterruptedException {
+    FakeSMTPServer smtpServer = new FakeSMTPServer(Integer.getInteger("loadtest.smtp.port", 2525),
+        Long.getLong("loadtest.smtp.latency", 0),
+        Double.parseDouble(System.getProperty("loadtest.smtp.errorRate", "0")),
+        Integer.getInteger("loadtest.smtp.errorCode", 451),
+        Double.parseDouble(System.getProperty("loadtest.smtp.dropRate", "0")),
+        new FakeSMTPServer.DeliveryListener() {
+          public void delivered(List<String> recipients) {
+            long now = System.nanoTime();
+            for(String recipient : recipients) {
+              Long start = submitted.remove(recipient);
+              if(start != null) {
+                deliveryTime.record(now - start);
+              }
+            }
+            lastDelivery = now;
+          }
+        });
+    smtpServer.start();
+
+    if(Boolean.parseBoolean(System.getProperty("loadtest.embedded", "true"))) {
+      startWebServer(smtpServer.getPort());
+    }
+    buildForm();
+
+    System.out.println("Submitting to http://" + host + ":" + port + "/ from " + threads + " threads for " + duration + "s, " +
+        "delivering to 127.0.0.1:" + smtpServer.getPort());
+    final long begin = System.nanoTime();
+    final long end = begin + duration * 1000000000L;
+    Thread[] generators = new Thread[threads];
+    for(int i = 0; i < threads; i++) {
+      generators[i] = new Thread(new Runnable() {
+        public void run() {
+          generate(end);
+        }
+      }, "loadtest-" + i);
+      generators[i].start();
+    }
+    for(Thread generator : generators) {
+      generator.join();
+    }
+    long submitEnd = System.nanoTime();
+
+    // Waits for the emails still queued
+    long drainEnd = submitEnd + drain * 1000000000L;
+    while(!submitted.isEmpty() && System.nanoTime() - drainEnd < 0) {
+      Thread.sleep(100);
+    }
+    smtpServer.stop();
+
+    double submitSeconds = (submitEnd - begin) / 1e9;
+    long requests = 0;
+    for(LongAdder counter : responses.values()) {
+      requests += counter.sum();
+    }
+    System.out.println();
+    System.out.println(String.format("Submissions: %d in %.1fs, %.1f/s", requests, submitSeconds, requests / submitSeconds));
+    StringBuffer statuses = new StringBuffer("  Responses:");
+    for(Map.Entry<Integer, LongAdder> entry : responses.entrySet()) {
+      statuses.append(" " + (entry.getKey() == 0 ? "failed" : entry.getKey().toString()) + "=" + entry.getValue().sum());
+    }
+    System.out.println(statuses);
+    printPercentiles("  Response time", responseTime);
+
+    long delivered = deliveryTime.getCount();
+    double deliverySeconds = Math.max(lastDelivery - begin, 1) / 1e9;
+    System.out.println(String.format("Deliveries: %d, %.1f/s", delivered, delivered == 0 ? 0 : delivered / deliverySeconds));
+    printPercentiles("  Submission to 250", deliveryTime);
+    System.out.println("  Not delivered after " + drain + "s: " + submitted.size());
+    System.out.println("Fake SMTP server: " + smtpServer.getConnections() + " connections, " + smtpServer.getAccepted() +
+        " accepted, " + smtpServer.getRefused() + " refused, " + smtpServer.getDropped() + " dropped");
+  }
+
+  private static void printPercentiles(String label, Histogram histogram) {
+    System.out.println(String.format("%s (ms): p50 %.3f, p99 %.3f, p99.9 %.3f", label,
+        histogram.getValueAtQuantile(0.5) / 1000.0,
+        histogram.getValueAtQuantile(0.99) / 1000.0,
+        histogram.getValueAtQuantile(0.999) / 1000.0));
+  }
+
+  /**
+   * Starts a WebServer in this JVM which delivers to the fake SMTP server and
+   * keeps no journal
+   */
+  private void startWebServer(int smtpPort) {
+    System.setProperty("webmail.smtp.port", Integer.toString(smtpPort));
+    if(System.getProperty("webmail.journal.dir") == null) {
+      System.setProperty("webmail.journal.dir", "");
+    }
+    final WebServer server = new WebServer(port);
+    SMTPClient.getInstance();
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        server.start();
+      }
+    }, "webmail-server");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    new LoadTest().run();
+    // The delivery workers of an embedded server would keep the JVM running
+    System.exit(0);
+  }
+}
@@ -0,0 +1,48 @@
+package keating.webmail;
+
+/**
+ * MXRecord.java
+ *
+ * A mail exchanger of a domain as returned by DNS. Records are ordered by
+ * preference, lowest (most preferred) first.
+ *
+ * @author Andrew Keating
+ */
+public class MXRecord implements Comparable<MXRecord> {
+
+  private int preference;
+  private String host;
+  private long ttl;
+
+  /**
+   * Constructs a new MXRecord
+   * @param preference Preference of the mail exchanger, lower is preferred
+   * @param host Host name of the mail exchanger, without the trailing period
+   * @param ttl Time to live of the record in seconds
+   */
+  public MXRecord(int preference, String host, long ttl) {
+    this.preference = preference;
+    this.host = host;
+    this.ttl = ttl;
+  }
+
+  public int getPreference() {
+    return preference;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  public int compareTo(MXRecord other) {
+    return preference < other.preference ? -1 : (preference == other.preference ? 0 : 1);
+  }
+
+  public String toString() {
+    return preference + " " + host;
+  }
+}
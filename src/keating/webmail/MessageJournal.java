@@ -0,0 +1,710 @@
+package keating.webmail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * MessageJournal.java
+ *
+ * Durable record of every email and its state transitions (submitted,
+ * scheduled, attempting, delivered, failed, cancelled), so that the status
+ * page and pending delayed sends survive a restart.
+ *
+ * Records are appended to memory-mapped segment files, which costs a memory
+ * copy per record. A sync thread forces the written pages to disk every
+ * webmail.journal.syncInterval milliseconds (default 50), or at once when a
+ * caller waits for a record to become durable, so many records share one
+ * fsync (group commit). When a segment is full the journal moves on to the
+ * next one; once webmail.journal.compactSegments segments (default 4) have
+ * accumulated, the current state of all emails is written to a snapshot and
+ * the older segments are deleted.
+ *
+ * On startup the newest snapshot and the segments after it are replayed. Each
+ * record carries a CRC32, and replay stops at the first torn record.
+ *
+ * Uploaded attachments are spooled to the temporary directory, which is often
+ * cleared on reboot, so the uploads of journalled emails are moved into the
+ * uploads directory of the journal before the email is recorded. Uploads no
+ * recovered email refers to are deleted on replay.
+ *
+ * Record layout: length (int), CRC32 of the rest (int), type (byte), email ID
+ * (long), payload. A length of 0 marks the end of a segment.
+ *
+ * @author Andrew Keating
+ */
+public class MessageJournal {
+
+  private static final byte SUBMITTED = 1;
+  private static final byte SCHEDULED = 2;
+  private static final byte ATTEMPTING = 3;
+  private static final byte DELIVERED = 4;
+  private static final byte FAILED = 5;
+  private static final byte CANCELLED = 6;
+
+  private static final byte ATTACHMENT_FILE = 0;
+  private static final byte ATTACHMENT_TEMPORARY_FILE = 1;
+  private static final byte ATTACHMENT_CONTENT = 2;
+
+  private static final int HEADER_SIZE = 8;
+  private static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+  private static final long DEFAULT_SYNC_INTERVAL = 50;
+  private static final int DEFAULT_COMPACT_SEGMENTS = 4;
+
+  private final File directory;
+  private final File uploads;
+  private final Source source;
+  private final long segmentSize;
+  private final long syncInterval;
+  private final int compactSegments;
+
+  // Guards the current segment and the counters below
+  private final Object lock = new Object();
+  private MappedByteBuffer segment;
+  private long segmentNumber;
+  private long firstSegment;
+  private final List<MappedByteBuffer> sealed = new ArrayList<MappedByteBuffer>();
+  private long appended;
+  private long synced;
+  private boolean syncRequested;
+  private boolean compactRequested;
+
+  /**
+   * Supplies the emails whose state is written to a snapshot
+   */
+  public interface Source {
+    /**
+     * @return all emails which are still of interest, in ID order
+     */
+    List<EmailMessage> getMessages();
+  }
+
+  /**
+   * Constructs a new MessageJournal configured from the system properties. The
+   * journal is not written to before start() is called.
+   * @param directory Directory holding the segments and snapshots, created if necessary
+   * @param source Supplies the emails for snapshots
+   * @throws IOException If the directory cannot be created
+   */
+  public MessageJournal(File directory, Source source) throws IOException {
+    this(directory, source, Long.getLong("webmail.journal.segmentSize", DEFAULT_SEGMENT_SIZE),
+        Long.getLong("webmail.journal.syncInterval", DEFAULT_SYNC_INTERVAL),
+        Integer.getInteger("webmail.journal.compactSegments", DEFAULT_COMPACT_SEGMENTS));
+  }
+
+  /**
+   * Constructs a new MessageJournal
+   * @param directory Directory holding the segments and snapshots, created if necessary
+   * @param source Supplies the emails for snapshots
+   * @param segmentSize Size of a segment file in bytes
+   * @param syncInterval Longest time in milliseconds before an appended record is forced to disk
+   * @param compactSegments Number of segments which trigger a snapshot
+   * @throws IOException If the directory cannot be created
+   */
+  public MessageJournal(File directory, Source source, long segmentSize, long syncInterval, int compactSegments) throws IOException {
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.uploads = new File(directory, "uploads");
+    this.source = source;
+    this.segmentSize = segmentSize;
+    this.syncInterval = Math.max(1, syncInterval);
+    this.compactSegments = Math.max(2, compactSegments);
+  }
+
+  /**
+   * Reads the newest snapshot and the segments written after it
+   * @return the recorded emails in ID order, with the state of their last record.
+   * Pending emails which were scheduled have their scheduled time set.
+   * @throws IOException If the journal cannot be read
+   */
+  public List<EmailMessage> replay() throws IOException {
+    Map<Long, EmailMessage> messages = new TreeMap<Long, EmailMessage>();
+
+    long snapshot = newest(listNumbers("snapshot-", ".dat"));
+    if(snapshot >= 0) {
+      replayFile(file("snapshot-", snapshot, ".dat"), messages);
+    }
+    firstSegment = Math.max(snapshot, 0);
+    segmentNumber = firstSegment;
+    for(long number : listNumbers("segment-", ".log")) {
+      if(number >= snapshot) {
+        replayFile(file("segment-", number, ".log"), messages);
+        segmentNumber = number;
+      }
+    }
+    deleteOrphanedUploads(messages.values());
+    return new ArrayList<EmailMessage>(messages.values());
+  }
+
+  /**
+   * Moves the uploaded files of an email into the journal and forces them to
+   * disk, so that they are still there when the email is recovered after a
+   * reboot. Must be called before the email is recorded with submitted().
+   * @param message The email
+   * @throws IOException If an upload cannot be moved; the uploads moved so far
+   * stay in the journal
+   */
+  public void spoolUploads(EmailMessage message) throws IOException {
+    List<Attachment> attachments = message.getAttachments();
+    for(int i = 0; i < attachments.size(); i++) {
+      Attachment attachment = attachments.get(i);
+      if(!attachment.isTemporary() || uploads.equals(attachment.getFile().getParentFile())) {
+        continue;
+      }
+      if(!uploads.isDirectory() && !uploads.mkdirs()) {
+        throw new IOException("Cannot create upload directory " + uploads);
+      }
+
+      File spooled = File.createTempFile("upload-" + message.getId() + "-", ".part", uploads);
+      // A rename on the same file system, otherwise a copy
+      Files.move(attachment.getFile().toPath(), spooled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      FileChannel channel = FileChannel.open(spooled.toPath(), StandardOpenOption.WRITE);
+      try {
+        channel.force(true);
+      }
+      finally {
+        channel.close();
+      }
+      message.replaceAttachment(i, new Attachment(spooled, attachment.getFilename(), attachment.getContentType(), true));
+    }
+  }
+
+  /**
+   * Deletes the uploads which none of the recovered emails refers to, e.g. the
+   * ones of an email which crashed between spooling and being recorded
+   */
+  private void deleteOrphanedUploads(Iterable<EmailMessage> messages) {
+    File[] files = uploads.listFiles();
+    if(files == null) {
+      return;
+    }
+    Set<File> referenced = new HashSet<File>();
+    for(EmailMessage message : messages) {
+      for(Attachment attachment : message.getAttachments()) {
+        if(attachment.getFile() != null) {
+          referenced.add(attachment.getFile().getAbsoluteFile());
+        }
+      }
+    }
+    for(File file : files) {
+      if(!referenced.contains(file.getAbsoluteFile()) && !file.delete()) {
+        System.out.println("Could not delete orphaned upload " + file);
+      }
+    }
+  }
+
+  /**
+   * Opens a new segment for appending and starts the sync thread. Must be called
+   * after replay(), as earlier segments are never appended to again.
+   * @throws IOException If the segment cannot be created
+   */
+  public void start() throws IOException {
+    synchronized(lock) {
+      openSegment(segmentNumber + 1, segmentSize);
+      compactRequested = segmentNumber - firstSegment >= compactSegments;
+    }
+
+    Thread syncer = new Thread(new Runnable() {
+      public void run() {
+        runSyncer();
+      }
+    }, "webmail-journal-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Records a newly submitted email with all of its fields
+   * @return the sequence number of the record, see awaitDurable()
+   */
+  public long submitted(EmailMessage message) {
+    return append(submittedRecord(message));
+  }
+
+  /**
+   * Records that an email waits for its delay
+   * @param dueTime Time the email is due, in milliseconds since the epoch
+   */
+  public long scheduled(EmailMessage message, long dueTime) {
+    Record record = new Record(SCHEDULED, message.getId());
+    record.writeLong(dueTime);
+    return append(record);
+  }
+
+  /**
+   * Records that a delivery attempt has started
+   */
+  public long attempting(EmailMessage message) {
+    return append(new Record(ATTEMPTING, message.getId()));
+  }
+
+  /**
+   * Records the final state of an email: delivered if its status is "Success",
+   * cancelled if it is "Cancelled", failed otherwise
+   */
+  public long finished(EmailMessage message) {
+    return append(stateRecord(message));
+  }
+
+  /**
+   * Waits until a record and all records before it have been forced to disk
+   * @param sequence Sequence number returned when the record was appended
+   */
+  public void awaitDurable(long sequence) {
+    synchronized(lock) {
+      while(synced < sequence) {
+        // Only the first waiter wakes the sync thread; waking the others as well
+        // would keep them busy waking each other while the sync thread compacts
+        if(!syncRequested) {
+          syncRequested = true;
+          lock.notifyAll();
+        }
+        try {
+          lock.wait();
+        }
+        catch(InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the current segment, moving on to a new segment if it is full
+   * @return the sequence number of the record
+   */
+  private long append(Record record) {
+    byte[] bytes = record.toByteArray();
+    synchronized(lock) {
+      try {
+        // Leave room for the end marker
+        if(segment.remaining() < bytes.length + 4) {
+          openSegment(segmentNumber + 1, Math.max(segmentSize, bytes.length + 4));
+          if(segmentNumber - firstSegment >= compactSegments) {
+            compactRequested = true;
+            lock.notifyAll();
+          }
+        }
+        segment.put(bytes);
+        return ++appended;
+      }
+      catch(IOException e) {
+        System.out.println("Error writing to journal: " + e.getMessage());
+        return appended;
+      }
+    }
+  }
+
+  /**
+   * Seals the current segment, which the sync thread forces to disk, and maps a new one
+   */
+  private void openSegment(long number, long size) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(file("segment-", number, ".log"), "rw");
+    try {
+      MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if(segment != null) {
+        sealed.add(segment);
+      }
+      segment = mapped;
+      segmentNumber = number;
+    }
+    finally {
+      // The mapping stays valid after the file is closed
+      file.close();
+    }
+  }
+
+  /**
+   * Main loop of the sync thread: forces appended records to disk at least every
+   * sync interval, or at once when someone is waiting, and writes snapshots
+   */
+  private void runSyncer() {
+    while(true) {
+      List<MappedByteBuffer> toForce;
+      MappedByteBuffer current;
+      long target;
+      boolean compact;
+      synchronized(lock) {
+        if(!syncRequested && !compactRequested) {
+          try {
+            lock.wait(syncInterval);
+          }
+          catch(InterruptedException e) {
+            return;
+          }
+        }
+        syncRequested = false;
+        compact = compactRequested;
+        compactRequested = false;
+        target = appended;
+        current = segment;
+        toForce = new ArrayList<MappedByteBuffer>(sealed);
+        sealed.clear();
+      }
+
+      if(target > synced || !toForce.isEmpty()) {
+        // Records appended while the pages are forced are picked up by the next round
+        for(MappedByteBuffer buffer : toForce) {
+          buffer.force();
+        }
+        current.force();
+        synchronized(lock) {
+          synced = Math.max(synced, target);
+          lock.notifyAll();
+        }
+      }
+
+      if(compact) {
+        try {
+          compact();
+        }
+        catch(IOException e) {
+          System.out.println("Error compacting journal: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the state of all emails to a snapshot and deletes the segments it
+   * replaces. Records appended while the snapshot is written go to segments
+   * which are kept and replayed after the snapshot; replaying a record over a
+   * state which already includes it leaves the state unchanged.
+   */
+  private void compact() throws IOException {
+    long first;
+    synchronized(lock) {
+      openSegment(segmentNumber + 1, segmentSize);
+      first = segmentNumber;
+    }
+
+    File temporary = file("snapshot-", first, ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(temporary);
+    try {
+      BufferedOutputStream out = new BufferedOutputStream(fileOut, 65536);
+      for(EmailMessage message : source.getMessages()) {
+        out.write(submittedRecord(message).toByteArray());
+        if(message.getStatus().equals("Pending")) {
+          if(message.getScheduledTime() > 0) {
+            Record record = new Record(SCHEDULED, message.getId());
+            record.writeLong(message.getScheduledTime());
+            out.write(record.toByteArray());
+          }
+        }
+        else {
+          out.write(stateRecord(message).toByteArray());
+        }
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    finally {
+      fileOut.close();
+    }
+    if(!temporary.renameTo(file("snapshot-", first, ".dat"))) {
+      throw new IOException("Cannot rename " + temporary);
+    }
+
+    // The snapshot is complete, so everything before it can go
+    for(long number : listNumbers("segment-", ".log")) {
+      if(number < first) {
+        file("segment-", number, ".log").delete();
+      }
+    }
+    for(long number : listNumbers("snapshot-", ".dat")) {
+      if(number < first) {
+        file("snapshot-", number, ".dat").delete();
+      }
+    }
+    synchronized(lock) {
+      firstSegment = first;
+    }
+  }
+
+  /**
+   * Builds the record of a newly submitted email
+   */
+  private Record submittedRecord(EmailMessage message) {
+    Record record = new Record(SUBMITTED, message.getId());
+    record.writeString(message.getTo());
+    record.writeString(message.getFrom());
+    record.writeString(message.getSubject());
+    record.writeString(message.getServer());
+    record.writeString(message.getData());
+    record.writeInt(message.getDelay());
+    record.writeString(message.getSubmitTime());
+
+    List<Attachment> attachments = message.getAttachments();
+    record.writeInt(attachments.size());
+    for(Attachment attachment : attachments) {
+      record.writeString(attachment.getFilename());
+      record.writeString(attachment.getContentType());
+      if(attachment.getContent() != null) {
+        record.writeByte(ATTACHMENT_CONTENT);
+        record.writeBytes(attachment.getContent());
+      }
+      else {
+        record.writeByte(attachment.isTemporary() ? ATTACHMENT_TEMPORARY_FILE : ATTACHMENT_FILE);
+        record.writeString(attachment.getFile().getPath());
+      }
+    }
+    return record;
+  }
+
+  /**
+   * Builds the record of the final state of an email
+   */
+  private Record stateRecord(EmailMessage message) {
+    String status = message.getStatus();
+    byte type = status.equals("Success") ? DELIVERED : status.equals("Cancelled") ? CANCELLED : FAILED;
+    Record record = new Record(type, message.getId());
+    record.writeString(status);
+    record.writeString(message.getDeliveryTime());
+    List<String> recipients = message.getRecipients();
+    record.writeInt(recipients.size());
+    for(String recipient : recipients) {
+      record.writeString(recipient);
+      record.writeString(message.getRecipientStatus(recipient));
+    }
+    return record;
+  }
+
+  /**
+   * Applies the records of a segment or snapshot, stopping at its end or at a torn record
+   */
+  private void replayFile(File file, Map<Long, EmailMessage> messages) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ByteBuffer buffer;
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    }
+    finally {
+      raf.close();
+    }
+
+    CRC32 crc = new CRC32();
+    while(buffer.remaining() >= HEADER_SIZE) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if(length <= 0 || length > buffer.remaining()) {
+        return;
+      }
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      crc.reset();
+      crc.update(bytes);
+      if((int)crc.getValue() != checksum) {
+        System.out.println("Journal " + file.getName() + " ends with a damaged record, which is skipped");
+        return;
+      }
+      try {
+        apply(ByteBuffer.wrap(bytes), messages);
+      }
+      catch(BufferUnderflowException e) {
+        System.out.println("Skipping malformed record in journal " + file.getName());
+      }
+    }
+  }
+
+  /**
+   * Applies a single record to the recovered emails
+   */
+  private void apply(ByteBuffer record, Map<Long, EmailMessage> messages) {
+    byte type = record.get();
+    long id = record.getLong();
+    if(type == SUBMITTED) {
+      if(messages.containsKey(id)) {
+        // Already known from the snapshot, which holds a newer state
+        return;
+      }
+      EmailMessage message = new EmailMessage(id, readString(record), readString(record), readString(record),
+          readString(record), readString(record));
+      message.setDelay(record.getInt());
+      message.setSubmitTime(readString(record));
+      int attachments = record.getInt();
+      for(int i = 0; i < attachments; i++) {
+        String filename = readString(record);
+        String contentType = readString(record);
+        byte kind = record.get();
+        if(kind == ATTACHMENT_CONTENT) {
+          message.addAttachment(new Attachment(filename, contentType, readBytes(record)));
+        }
+        else {
+          message.addAttachment(new Attachment(new File(readString(record)), filename, contentType, kind == ATTACHMENT_TEMPORARY_FILE));
+        }
+      }
+      messages.put(id, message);
+      return;
+    }
+
+    EmailMessage message = messages.get(id);
+    if(message == null) {
+      // The submission was compacted away
+      return;
+    }
+    if(type == SCHEDULED) {
+      message.setScheduledTime(record.getLong());
+    }
+    else if(type == ATTEMPTING) {
+      // Without a later record the attempt was interrupted, and the email is sent again
+      message.setStatus("Pending");
+    }
+    else {
+      message.setStatus(readString(record));
+      message.setDeliveryTime(readString(record));
+      int recipients = record.getInt();
+      for(int i = 0; i < recipients; i++) {
+        message.setRecipientStatus(readString(record), readString(record));
+      }
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = readBytes(buffer);
+    return bytes == null ? null : new String(bytes, Record.UTF_8);
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if(length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * A record being built: the header is filled in by toByteArray()
+   */
+  private static class Record {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    Record(byte type, long id) {
+      try {
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        out.writeLong(id);
+      }
+      catch(IOException e) {
+        // Not thrown when writing to memory
+      }
+    }
+
+    void writeByte(int value) {
+      try {
+        out.writeByte(value);
+      }
+      catch(IOException e) {
+        // Not thrown when writing to memory
+      }
+    }
+
+    void writeInt(int value) {
+      try {
+        out.writeInt(value);
+      }
+      catch(IOException e) {
+        // Not thrown when writing to memory
+      }
+    }
+
+    void writeLong(long value) {
+      try {
+        out.writeLong(value);
+      }
+      catch(IOException e) {
+        // Not thrown when writing to memory
+      }
+    }
+
+    void writeBytes(byte[] value) {
+      try {
+        if(value == null) {
+          out.writeInt(-1);
+          return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+      }
+      catch(IOException e) {
+        // Not thrown when writing to memory
+      }
+    }
+
+    void writeString(String value) {
+      writeBytes(value == null ? null : value.getBytes(UTF_8));
+    }
+
+    byte[] toByteArray() {
+      byte[] record = bytes.toByteArray();
+      int length = record.length - HEADER_SIZE;
+      CRC32 crc = new CRC32();
+      crc.update(record, HEADER_SIZE, length);
+      ByteBuffer header = ByteBuffer.wrap(record);
+      header.putInt(length);
+      header.putInt((int)crc.getValue());
+      return record;
+    }
+  }
+
+  private File file(String prefix, long number, String suffix) {
+    return new File(directory, prefix + String.format("%012d", number) + suffix);
+  }
+
+  /**
+   * @return the numbers of the files with the given prefix and suffix, in ascending order
+   */
+  private long[] listNumbers(String prefix, String suffix) {
+    String[] names = directory.list();
+    if(names == null) {
+      return new long[0];
+    }
+    long[] numbers = new long[names.length];
+    int count = 0;
+    for(String name : names) {
+      if(name.startsWith(prefix) && name.endsWith(suffix)) {
+        try {
+          numbers[count++] = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        }
+        catch(NumberFormatException e) {
+          count--;
+        }
+      }
+    }
+    numbers = Arrays.copyOf(numbers, count);
+    Arrays.sort(numbers);
+    return numbers;
+  }
+
+  private static long newest(long[] numbers) {
+    return numbers.length == 0 ? -1 : numbers[numbers.length - 1];
+  }
+}
@@ -0,0 +1,316 @@
+package keating.webmail;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageStore.java
+ *
+ * Holds the emails shown on the status page, indexed by their ID. Lookups by ID
+ * go through a hash map, and a skip list keeps the emails in ID (submission)
+ * order for paging. Both are concurrent maps, so adding an email takes no
+ * global lock and readers can iterate while emails are added and removed; an
+ * iterator sees every email which is in the store for as long as it iterates.
+ *
+ * The store is bounded: once it holds more than webmail.store.maxMessages
+ * emails (default 10000), or its oldest email was submitted more than
+ * webmail.store.maxAge seconds ago (default 0, no limit), the oldest emails are
+ * evicted. Only emails in a final state are evicted; pending emails stay until
+ * they have been sent. The final emails are kept in ID order in an index of
+ * their own, so eviction never walks past pending emails. Retention is
+ * enforced whenever an email is added or reaches its final state.
+ *
+ * Changes are kept in a change log: every email added to the store, and every
+ * change of an email's status, a recipient's status or its delivery time,
+ * gives the email a new, higher sequence number. The log holds each email
+ * once, under its latest sequence number, so a reader which remembers the last
+ * sequence number it has seen finds exactly the emails which changed since,
+ * however many emails the store holds.
+ *
+ * @author Andrew Keating
+ */
+public class MessageStore {
+
+  private static final int DEFAULT_MAX_MESSAGES = 10000;
+
+  private final ConcurrentHashMap<Long, EmailMessage> byId = new ConcurrentHashMap<Long, EmailMessage>();
+  private final ConcurrentSkipListMap<Long, EmailMessage> ordered = new ConcurrentSkipListMap<Long, EmailMessage>();
+  // The emails in a final state, which are the only ones that can be evicted
+  private final ConcurrentSkipListMap<Long, EmailMessage> finished = new ConcurrentSkipListMap<Long, EmailMessage>();
+  private final AtomicInteger size = new AtomicInteger();
+  // Only one thread evicts at a time; the others do not wait for it
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  private final List<EvictionListener> listeners = new CopyOnWriteArrayList<EvictionListener>();
+  private final ConcurrentSkipListMap<Long, EmailMessage> changes = new ConcurrentSkipListMap<Long, EmailMessage>();
+  private final AtomicLong changeSequence = new AtomicLong();
+  // Changes are logged one at a time, so the log never has a gap below the latest sequence number
+  private final Object changeLock = new Object();
+  // Readers waiting for a change, so that changes only take the monitor if somebody waits
+  private final AtomicInteger changeWaiters = new AtomicInteger();
+  private final Object changeMonitor = new Object();
+  private final EmailMessage.StateListener stateListener = new EmailMessage.StateListener() {
+    public void stateChanged(EmailMessage message) {
+      indexFinished(message);
+      logChange(message);
+    }
+  };
+  private final int maxMessages;
+  private final long maxAge;
+
+  /**
+   * Informed about emails which have been evicted from the store
+   */
+  public interface EvictionListener {
+    void evicted(EmailMessage message);
+  }
+
+  /**
+   * Constructs a new MessageStore configured from the system properties
+   */
+  public MessageStore() {
+    this(Integer.getInteger("webmail.store.maxMessages", DEFAULT_MAX_MESSAGES),
+        Long.getLong("webmail.store.maxAge", 0) * 1000);
+  }
+
+  /**
+   * Constructs a new MessageStore
+   * @param maxMessages Number of emails kept before the oldest final ones are evicted
+   * @param maxAge Time in milliseconds after its submission that a final email is
+   * evicted, 0 to keep emails regardless of their age
+   */
+  public MessageStore(int maxMessages, long maxAge) {
+    if(maxMessages < 1) {
+      throw new IllegalArgumentException("The store must hold at least one email");
+    }
+    this.maxMessages = maxMessages;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * Registers a listener which is called for every evicted email
+   * @param listener The listener
+   */
+  public void addEvictionListener(EvictionListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Adds an email and evicts old final emails if the store is over its limits
+   * @param message The email
+   */
+  public void add(EmailMessage message) {
+    if(byId.putIfAbsent(message.getId(), message) != null) {
+      return;
+    }
+    ordered.put(message.getId(), message);
+    size.incrementAndGet();
+    message.setStateListener(stateListener);
+    indexFinished(message);
+    logChange(message);
+    trim();
+  }
+
+  /**
+   * Looks up an email by its ID
+   * @param id ID of the email
+   * @return the email, or null if it does not exist or has been evicted
+   */
+  public EmailMessage get(long id) {
+    return byId.get(id);
+  }
+
+  /**
+   * @return the number of emails in the store
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @return all emails, oldest first. The collection is a live view which can be
+   * iterated while emails are added and removed.
+   */
+  public Collection<EmailMessage> getMessages() {
+    return ordered.values();
+  }
+
+  /**
+   * @param since Only emails with a higher ID are returned, 0 for all emails
+   * @return the emails after the cursor, newest first, as a live view
+   */
+  public Collection<EmailMessage> getNewestFirst(long since) {
+    return ordered.tailMap(since, false).descendingMap().values();
+  }
+
+  /**
+   * @param before Only emails with a lower ID are returned, 0 for all emails
+   * @return the emails before the cursor, newest first, as a live view
+   */
+  public Collection<EmailMessage> getNewestFirstBefore(long before) {
+    if(before <= 0) {
+      return ordered.descendingMap().values();
+    }
+    return ordered.headMap(before, false).descendingMap().values();
+  }
+
+  /**
+   * Counts the emails after a cursor
+   * @param since Only emails with a higher ID are counted, 0 for all emails
+   * @return the number of emails after the cursor
+   */
+  public int countAfter(long since) {
+    if(since <= 0) {
+      return size();
+    }
+    // The skip list counts by walking its entries
+    return ordered.tailMap(since, false).size();
+  }
+
+  /**
+   * @return the sequence number of the latest change, 0 if nothing has changed yet
+   */
+  public long getChangeSequence() {
+    return changeSequence.get();
+  }
+
+  /**
+   * Returns the emails which have changed after a given change, each once
+   * @param sequence Sequence number of the last change already seen, 0 for all emails
+   * @return the changed emails by the sequence number of their latest change, in
+   * the order they changed, as a live view
+   */
+  public NavigableMap<Long, EmailMessage> getChangesAfter(long sequence) {
+    return changes.tailMap(sequence, false);
+  }
+
+  /**
+   * Waits until an email changes after a given change
+   * @param sequence Sequence number of the last change already seen
+   * @param timeout Maximum time to wait in milliseconds
+   * @return the sequence number of the latest change, which is still the given one
+   * if nothing changed before the timeout
+   * @throws InterruptedException If the thread is interrupted while waiting
+   */
+  public long awaitChange(long sequence, long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    changeWaiters.incrementAndGet();
+    try {
+      synchronized(changeMonitor) {
+        long remaining = timeout;
+        while(changeSequence.get() <= sequence && remaining > 0) {
+          changeMonitor.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+      }
+    }
+    finally {
+      changeWaiters.decrementAndGet();
+    }
+    return changeSequence.get();
+  }
+
+  /**
+   * Moves an email to the end of the change log and wakes the readers waiting for a change
+   */
+  private void logChange(EmailMessage message) {
+    synchronized(changeLock) {
+      if(!byId.containsKey(message.getId())) {
+        // Evicted in the meantime
+        return;
+      }
+      long previous = message.getChangeSequence();
+      long sequence = changeSequence.get() + 1;
+      message.setChangeSequence(sequence);
+      changes.put(sequence, message);
+      if(previous > 0) {
+        changes.remove(previous, message);
+      }
+      // Published once the email is in the log, so a reader woken by the new
+      // sequence number finds it
+      changeSequence.set(sequence);
+    }
+    if(changeWaiters.get() > 0) {
+      synchronized(changeMonitor) {
+        changeMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Adds an email to the index of final emails once it has reached its final
+   * state, or takes it out if it is pending (again)
+   */
+  private void indexFinished(EmailMessage message) {
+    if(message.getStatus().equals("Pending")) {
+      finished.remove(message.getId(), message);
+    }
+    else if(byId.containsKey(message.getId())) {
+      finished.put(message.getId(), message);
+      if(!byId.containsKey(message.getId())) {
+        // Evicted in the meantime
+        finished.remove(message.getId(), message);
+      }
+    }
+  }
+
+  /**
+   * Removes the oldest final emails while the store is over its limits. Pending
+   * emails are not in the index of final emails, so an email waiting for a long
+   * delay does not keep newer final emails in memory, and a store full of
+   * pending emails is not scanned again on every call. Called whenever an email
+   * has reached its final state.
+   */
+  public void trim() {
+    long now = System.currentTimeMillis();
+    Map.Entry<Long, EmailMessage> oldest = finished.firstEntry();
+    if(size.get() <= maxMessages && (oldest == null || !isExpired(oldest.getValue(), now))) {
+      return;
+    }
+    if(!evicting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      Iterator<EmailMessage> iterator = finished.values().iterator();
+      while(iterator.hasNext()) {
+        EmailMessage message = iterator.next();
+        boolean overCount = size.get() > maxMessages;
+        if(!overCount && !isExpired(message, now)) {
+          // IDs follow submission order, so no later email is expired either
+          return;
+        }
+        iterator.remove();
+        if(!byId.remove(message.getId(), message)) {
+          continue;
+        }
+        ordered.remove(message.getId(), message);
+        size.decrementAndGet();
+        message.setStateListener(null);
+        synchronized(changeLock) {
+          changes.remove(message.getChangeSequence(), message);
+        }
+        for(EvictionListener listener : listeners) {
+          listener.evicted(message);
+        }
+      }
+    }
+    finally {
+      evicting.set(false);
+    }
+  }
+
+  /**
+   * @return true if the email was submitted longer ago than the maximum age
+   */
+  private boolean isExpired(EmailMessage message, long now) {
+    return maxAge > 0 && now - message.getSubmitMillis() > maxAge;
+  }
+}
@@ -0,0 +1,156 @@
+package keating.webmail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics.java
+ *
+ * Registry of the application's counters, gauges and latency histograms,
+ * served by the WebServer at /metrics in the Prometheus text format. Counters
+ * are LongAdders and histograms are lock-free (see Histogram), so components
+ * look their metrics up once and record on every operation without
+ * contending with each other. Gauges are read only when the metrics are
+ * rendered.
+ *
+ * Metrics with the same name form a family and differ by their labels, e.g.
+ * webmail_smtp_phase_seconds{phase="connect"}.
+ *
+ * @author Andrew Keating
+ */
+public class Metrics {
+
+  private static final Metrics instance = new Metrics();
+
+  // Families by name, kept sorted so that the output is stable
+  private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+  /**
+   * A value read when the metrics are rendered
+   */
+  public interface Gauge {
+    long get();
+  }
+
+  /**
+   * The metrics sharing a name, by their labels
+   */
+  private static class Family {
+    final String type;
+    final String help;
+    final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+    Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  private Metrics() { }
+
+  /**
+   * @return the application's metrics
+   */
+  public static Metrics getInstance() {
+    return instance;
+  }
+
+  /**
+   * Looks up a counter, creating it on first use
+   * @param name Name of the metric, ending in _total
+   * @param help Description of the metric
+   * @param labels Labels of the counter, e.g. result="success", or "" for none
+   * @return the counter
+   */
+  public LongAdder counter(String name, String help, String labels) {
+    return (LongAdder)get(name, "counter", help, labels);
+  }
+
+  /**
+   * Looks up a latency histogram, creating it on first use
+   * @param name Name of the metric, ending in _seconds
+   * @param help Description of the metric
+   * @param labels Labels of the histogram, e.g. phase="connect", or "" for none
+   * @return the histogram
+   */
+  public Histogram histogram(String name, String help, String labels) {
+    return (Histogram)get(name, "histogram", help, labels);
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge with the same name and labels
+   * @param name Name of the metric
+   * @param help Description of the metric
+   * @param labels Labels of the gauge, or "" for none
+   * @param gauge Reads the current value
+   */
+  public void gauge(String name, String help, String labels, Gauge gauge) {
+    family(name, "gauge", help).metrics.put(labels, gauge);
+  }
+
+  /**
+   * Renders every metric in the Prometheus text format (version 0.0.4)
+   * @return the metrics
+   */
+  public String render() {
+    StringBuffer out = new StringBuffer(8192);
+    for(Map.Entry<String, Family> entry : families.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP " + name + " " + family.help + "\n");
+      out.append("# TYPE " + name + " " + family.type + "\n");
+      for(Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+        String labels = metric.getKey();
+        Object value = metric.getValue();
+        if(value instanceof Histogram) {
+          ((Histogram)value).render(out, name, labels);
+          continue;
+        }
+        long number = value instanceof LongAdder ? ((LongAdder)value).sum() : ((Gauge)value).get();
+        out.append(name + (labels.equals("") ? "" : "{" + labels + "}") + " " + number + "\n");
+      }
+    }
+    return out.toString();
+  }
+
+  /**
+   * Quotes a label value as required by the text format
+   * @param value The value
+   * @return the value in quotes, with backslashes, quotes and line breaks escaped
+   */
+  public static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+
+  /**
+   * Looks up a counter or histogram, creating it on first use
+   */
+  private Object get(String name, String type, String help, String labels) {
+    Family family = family(name, type, help);
+    Object metric = family.metrics.get(labels);
+    if(metric == null) {
+      Object created = type.equals("counter") ? new LongAdder() : new Histogram();
+      metric = family.metrics.putIfAbsent(labels, created);
+      if(metric == null) {
+        metric = created;
+      }
+    }
+    return metric;
+  }
+
+  private Family family(String name, String type, String help) {
+    Family family = families.get(name);
+    if(family == null) {
+      Family created = new Family(type, help);
+      family = families.putIfAbsent(name, created);
+      if(family == null) {
+        family = created;
+      }
+    }
+    if(!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+    }
+    return family;
+  }
+}
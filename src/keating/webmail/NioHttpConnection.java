@@ -0,0 +1,516 @@
+package keating.webmail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * NioHttpConnection.java
+ *
+ * An HTTP connection served by a selector loop of the NioHttpServer. Incoming
+ * bytes are collected until a request is complete, which is then handed to a
+ * worker thread. While the request is being handled the connection stops
+ * reading, so pipelined requests are answered one after another. The response
+ * is buffered and written by the selector loop as the socket accepts it; a
+ * handler which streams its response (such as an event stream) can hand the
+ * part written so far to the loop with flush().
+ *
+ * A connection which is idle between requests holds no buffers, so many idle
+ * keep-alive connections take little memory.
+ *
+ * @author Andrew Keating
+ */
+class NioHttpConnection extends HttpConnection {
+
+  private static final int MAX_HEAD_SIZE = 65536;
+
+  private final NioHttpServer server;
+  private final NioHttpServer.SelectorLoop loop;
+  private final SocketChannel channel;
+  private SelectionKey key;
+
+  // Received bytes which do not form a complete request yet, only touched by the loop
+  private byte[] input;
+  private int inputLength;
+  private HttpRequest head;
+  private int bodyStart;
+  // Temporary file receiving a large request body
+  private File spoolFile;
+  private OutputStream spool;
+  private int spooled;
+  private boolean bodyDiscarded;
+
+  // Response segments (ByteBuffers and FileRegions) waiting to be written
+  private final Deque<Object> output = new ArrayDeque<Object>();
+  private ByteArrayOutputStream response;
+  private boolean busy;
+  // True from the time a request is handed to a worker until its response is complete, only touched by the loop
+  private boolean responding;
+  // True once the worker has flushed part of its response, only touched by the worker
+  private boolean streaming;
+  private volatile boolean closed;
+  private int requests;
+  private long lastActive;
+
+  /**
+   * A part of a file which is still to be sent
+   */
+  private static class FileRegion {
+    final FileChannel file;
+    long position;
+    final long end;
+
+    FileRegion(FileChannel file, long position, long count) {
+      this.file = file;
+      this.position = position;
+      this.end = position + count;
+    }
+  }
+
+  /**
+   * Constructs a new NioHttpConnection
+   * @param server The server which accepted the connection
+   * @param loop The selector loop serving the connection
+   * @param channel The accepted, non-blocking channel
+   */
+  public NioHttpConnection(NioHttpServer server, NioHttpServer.SelectorLoop loop, SocketChannel channel) {
+    this.server = server;
+    this.loop = loop;
+    this.channel = channel;
+    this.lastActive = System.currentTimeMillis();
+  }
+
+  /**
+   * @param key The registration of the channel with the loop's selector
+   */
+  void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  /**
+   * @return true if the connection has been idle between requests for longer than the timeout
+   */
+  boolean isIdle(long now, long timeout) {
+    return !busy && now - lastActive > timeout;
+  }
+
+  /**
+   * Reads what the client has sent and starts handling the next request if it is complete
+   * @param buffer Read buffer shared by all connections of the loop
+   */
+  void onReadable(ByteBuffer buffer) {
+    int read;
+    try {
+      buffer.clear();
+      read = channel.read(buffer);
+    }
+    catch(IOException e) {
+      close();
+      return;
+    }
+    if(read < 0) {
+      // Client closed the connection
+      close();
+      return;
+    }
+
+    buffer.flip();
+    if(input == null) {
+      input = new byte[Math.max(read, 1024)];
+    }
+    else if(inputLength + read > input.length) {
+      input = Arrays.copyOf(input, Math.max(inputLength + read, input.length * 2));
+    }
+    buffer.get(input, inputLength, read);
+    inputLength += read;
+    lastActive = System.currentTimeMillis();
+
+    processInput();
+  }
+
+  /**
+   * Writes as much of the pending response as the socket accepts. Once the whole
+   * response is written, the connection is closed or the next request is handled.
+   */
+  void onWritable() {
+    try {
+      while(!output.isEmpty()) {
+        Object segment = output.peekFirst();
+        if(segment instanceof ByteBuffer) {
+          ByteBuffer buffer = (ByteBuffer)segment;
+          channel.write(buffer);
+          if(buffer.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+        }
+        else {
+          FileRegion region = (FileRegion)segment;
+          region.position += region.file.transferTo(region.position, region.end - region.position, channel);
+          if(region.position < region.end) {
+            if(region.position >= region.file.size()) {
+              throw new IOException("File truncated while sending");
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+          }
+          region.file.close();
+        }
+        output.removeFirst();
+      }
+    }
+    catch(IOException e) {
+      close();
+      return;
+    }
+
+    if(responding) {
+      // The handler is still writing its response
+      key.interestOps(0);
+      return;
+    }
+    busy = false;
+    lastActive = System.currentTimeMillis();
+    if(!isKeepAlive()) {
+      close();
+      return;
+    }
+    processInput();
+  }
+
+  /**
+   * Handles the next buffered request if it is complete, otherwise waits for more input
+   */
+  private void processInput() {
+    if(busy || closed) {
+      return;
+    }
+
+    HttpRequest request;
+    try {
+      request = nextRequest();
+    }
+    catch(IOException e) {
+      // Malformed request, which is answered with 400 by the loop itself
+      busy = true;
+      responding = true;
+      streaming = false;
+      key.interestOps(0);
+      setKeepAlive(false);
+      response = new ByteArrayOutputStream();
+      server.getWebServer().sendMalformedHttp(this);
+      finishResponse();
+      return;
+    }
+
+    if(request == null) {
+      key.interestOps(SelectionKey.OP_READ);
+      return;
+    }
+
+    busy = true;
+    responding = true;
+    streaming = false;
+    key.interestOps(0);
+    requests++;
+    setKeepAlive(request.isKeepAlive() && requests < WebServer.MAX_REQUESTS && !bodyDiscarded);
+    response = new ByteArrayOutputStream();
+
+    final HttpRequest handled = request;
+    server.getWorkers().execute(new Runnable() {
+      public void run() {
+        try {
+          server.getWebServer().processRequest(NioHttpConnection.this, handled);
+        }
+        finally {
+          try {
+            handled.getBody().close();
+          }
+          catch(IOException e) {
+            System.out.println("Error closing request body: " + e.getMessage());
+          }
+          finishResponse();
+        }
+      }
+    });
+  }
+
+  /**
+   * Takes the next complete request from the input
+   * @return the request, or null if it has not been received completely yet
+   * @throws IOException If the request is malformed
+   */
+  private HttpRequest nextRequest() throws IOException {
+    if(input == null) {
+      return null;
+    }
+
+    if(head == null) {
+      int headEnd = indexOfHeadEnd();
+      if(headEnd < 0) {
+        if(inputLength > MAX_HEAD_SIZE) {
+          throw new ProtocolException("Request headers too large");
+        }
+        return null;
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input, 0, headEnd), "ISO-8859-1"));
+      head = HttpRequest.readHead(reader);
+      if(head == null) {
+        // Only blank lines so far
+        consume(headEnd);
+        return null;
+      }
+      bodyStart = headEnd;
+    }
+
+    HttpRequest request = head;
+    int length = head.getContentLength();
+    if(length > FormParser.MAX_SIZE) {
+      // A body this large is refused without reading it, so the connection
+      // is closed after the response
+      head = null;
+      input = null;
+      inputLength = 0;
+      bodyDiscarded = true;
+      return request;
+    }
+    if(length > FormParser.SPILL_THRESHOLD) {
+      return spoolBody(length);
+    }
+    if(inputLength - bodyStart < length) {
+      return null;
+    }
+
+    request.setBody(new ByteArrayInputStream(Arrays.copyOfRange(input, bodyStart, bodyStart + length)));
+    consume(bodyStart + length);
+    head = null;
+    return request;
+  }
+
+  /**
+   * Writes the received part of a large body to a temporary file instead of
+   * collecting it in memory
+   * @param length Length of the body
+   * @return the request once its body is complete, otherwise null
+   */
+  private HttpRequest spoolBody(int length) throws IOException {
+    if(spool == null) {
+      spoolFile = File.createTempFile("webmail-body", ".tmp");
+      spool = new FileOutputStream(spoolFile);
+      spooled = 0;
+    }
+    int count = Math.min(inputLength - bodyStart, length - spooled);
+    spool.write(input, bodyStart, count);
+    spooled += count;
+    consume(bodyStart + count);
+    bodyStart = 0;
+    if(spooled < length) {
+      return null;
+    }
+
+    spool.close();
+    spool = null;
+    HttpRequest request = head;
+    request.setBody(new SpooledBody(spoolFile));
+    spoolFile = null;
+    head = null;
+    return request;
+  }
+
+  /**
+   * A request body read from a temporary file, which is deleted when the body is closed
+   */
+  private static class SpooledBody extends FileInputStream {
+    private final File file;
+
+    SpooledBody(File file) throws IOException {
+      super(file);
+      this.file = file;
+    }
+
+    public void close() throws IOException {
+      try {
+        super.close();
+      }
+      finally {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * @return the offset just after the blank line which ends the request headers, or -1
+   */
+  private int indexOfHeadEnd() {
+    // Blank lines before the request line are not the end of the headers
+    int start = 0;
+    while(start + 1 < inputLength && input[start] == '\r' && input[start + 1] == '\n') {
+      start += 2;
+    }
+    for(int i = start; i + 3 < inputLength; i++) {
+      if(input[i] == '\r' && input[i + 1] == '\n' && input[i + 2] == '\r' && input[i + 3] == '\n') {
+        return i + 4;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Removes bytes from the front of the input, dropping the buffer if nothing is left
+   */
+  private void consume(int count) {
+    inputLength -= count;
+    if(inputLength == 0) {
+      input = null;
+    }
+    else {
+      System.arraycopy(input, count, input, 0, inputLength);
+    }
+  }
+
+  /**
+   * Hands the completed response to the loop, which writes it
+   */
+  private void finishResponse() {
+    closeSegment();
+    loop.execute(new Runnable() {
+      public void run() {
+        responding = false;
+        if(!closed) {
+          onWritable();
+        }
+      }
+    });
+  }
+
+  /**
+   * Moves the bytes written so far into the output queue
+   */
+  private void closeSegment() {
+    if(response != null && response.size() > 0) {
+      queueSegment(ByteBuffer.wrap(response.toByteArray()));
+      response.reset();
+    }
+  }
+
+  /**
+   * Adds a segment to the output queue. Once part of the response has been flushed
+   * the loop may be writing from the queue, so the segment is then added by the loop.
+   * @param segment A ByteBuffer or FileRegion
+   */
+  private void queueSegment(final Object segment) {
+    if(!streaming) {
+      output.addLast(segment);
+      return;
+    }
+    loop.execute(new Runnable() {
+      public void run() {
+        output.addLast(segment);
+        if(closed) {
+          // Closes the file of the segment, if any
+          close();
+        }
+      }
+    });
+  }
+
+  public OutputStream getOutputStream() {
+    return response;
+  }
+
+  /**
+   * Queues part of a file, which the loop sends with FileChannel.transferTo as the
+   * socket accepts it
+   */
+  public void transferFile(File file, long position, long count) throws IOException {
+    closeSegment();
+    queueSegment(new FileRegion(new FileInputStream(file).getChannel(), position, count));
+  }
+
+  /**
+   * Hands the response written so far to the loop, which sends it while the
+   * handler goes on. Complete responses are sent by the loop anyway once the
+   * request has been handled, so only streaming handlers need to flush.
+   * @throws IOException If the connection has been closed
+   */
+  public void flush() throws IOException {
+    if(closed) {
+      throw new IOException("Connection closed");
+    }
+    if(response == null || response.size() == 0) {
+      return;
+    }
+    closeSegment();
+    streaming = true;
+    loop.execute(new Runnable() {
+      public void run() {
+        if(!closed) {
+          onWritable();
+        }
+      }
+    });
+  }
+
+  /**
+   * Closes the channel and any files still queued for sending. Must be called by the loop.
+   */
+  public void close() {
+    if(closed) {
+      closeFiles();
+      return;
+    }
+    closed = true;
+    if(key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    }
+    catch(IOException e) {
+      System.out.println("Error closing connection: " + e.getMessage());
+    }
+    closeFiles();
+    input = null;
+    if(spool != null) {
+      try {
+        spool.close();
+      }
+      catch(IOException e) {
+        // The file is deleted anyway
+      }
+      spoolFile.delete();
+    }
+    server.getWebServer().connectionClosed();
+  }
+
+  /**
+   * Closes the files still queued for sending and empties the output queue
+   */
+  private void closeFiles() {
+    for(Object segment : output) {
+      if(segment instanceof FileRegion) {
+        try {
+          ((FileRegion)segment).file.close();
+        }
+        catch(IOException e) {
+          // Nothing left to do with it
+        }
+      }
+    }
+    output.clear();
+  }
+}
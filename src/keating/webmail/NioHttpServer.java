@@ -0,0 +1,233 @@
+package keating.webmail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * NioHttpServer.java
+ *
+ * Non-blocking HTTP server mode, selected with webmail.server=nio. A few
+ * selector loops (webmail.nio.selectors, by default one per core) own all
+ * connections and do the socket I/O, while the requests themselves are handled
+ * on the web server's executor. No thread waits on an idle connection, so a
+ * large number of keep-alive connections can stay open on a small heap.
+ *
+ * Connections are accepted on one listening socket and spread over the loops
+ * round-robin. With webmail.nio.reusePort every loop has its own listening
+ * socket bound with SO_REUSEPORT instead, so the kernel spreads the connections.
+ *
+ * @author Andrew Keating
+ */
+class NioHttpServer {
+
+  private static final int READ_BUFFER_SIZE = 65536;
+  private static final long SWEEP_INTERVAL = 1000;
+
+  private final WebServer webServer;
+  private final Executor workers;
+  private final SelectorLoop[] loops;
+  private final boolean sharedListener;
+  private int nextLoop;
+
+  /**
+   * A thread which owns a selector and every connection registered with it.
+   * Other threads pass work to the loop with execute().
+   */
+  class SelectorLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // One read buffer per loop, shared by all of its connections
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private long lastSweep = System.currentTimeMillis();
+
+    SelectorLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    /**
+     * Runs a task on the loop's thread
+     * @param task The task, which may touch the loop's connections
+     */
+    void execute(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    /**
+     * Accepts connections on a listening socket from this loop
+     */
+    void listen(ServerSocketChannel server) throws IOException {
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Registers an accepted connection with this loop
+     */
+    void register(final SocketChannel channel) {
+      execute(new Runnable() {
+        public void run() {
+          try {
+            NioHttpConnection connection = new NioHttpConnection(NioHttpServer.this, SelectorLoop.this, channel);
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+          }
+          catch(IOException e) {
+            System.out.println("Error registering client: " + e.getMessage());
+            try {
+              channel.close();
+            }
+            catch(IOException e2) {
+              // Nothing left to do with it
+            }
+          }
+        }
+      });
+    }
+
+    public void run() {
+      while(true) {
+        try {
+          selector.select(SWEEP_INTERVAL);
+
+          Runnable task;
+          while((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while(keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if(!key.isValid()) {
+              continue;
+            }
+            if(key.isAcceptable()) {
+              accept((ServerSocketChannel)key.channel());
+            }
+            else if(key.isReadable()) {
+              ((NioHttpConnection)key.attachment()).onReadable(readBuffer);
+            }
+            else if(key.isWritable()) {
+              ((NioHttpConnection)key.attachment()).onWritable();
+            }
+          }
+
+          sweepIdleConnections();
+        }
+        catch(IOException e) {
+          System.out.println("Error in selector loop: " + e.getMessage());
+        }
+      }
+    }
+
+    /**
+     * Accepts all pending connections of a listening socket
+     */
+    private void accept(ServerSocketChannel server) {
+      while(true) {
+        SocketChannel channel;
+        try {
+          channel = server.accept();
+          if(channel == null) {
+            return;
+          }
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+        }
+        catch(IOException e) {
+          System.out.println("Error accepting client: " + e.getMessage());
+          return;
+        }
+        nextLoop(this).register(channel);
+      }
+    }
+
+    /**
+     * Closes connections which have been idle for longer than the keep-alive timeout
+     */
+    private void sweepIdleConnections() {
+      long now = System.currentTimeMillis();
+      if(now - lastSweep < SWEEP_INTERVAL) {
+        return;
+      }
+      lastSweep = now;
+      for(SelectionKey key : selector.keys()) {
+        Object attachment = key.attachment();
+        if(attachment instanceof NioHttpConnection && key.isValid()
+            && ((NioHttpConnection)attachment).isIdle(now, WebServer.KEEP_ALIVE_TIMEOUT)) {
+          ((NioHttpConnection)attachment).close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Constructs a new NioHttpServer
+   * @param webServer The web server which handles the requests
+   * @param workers Executor the requests are handled on
+   * @param selectors Number of selector loops
+   * @param servers Listening sockets: either a single one which is shared by all loops,
+   * or one for each loop (bound with SO_REUSEPORT)
+   * @throws IOException If a selector cannot be opened
+   */
+  public NioHttpServer(WebServer webServer, Executor workers, int selectors, List<ServerSocketChannel> servers) throws IOException {
+    this.webServer = webServer;
+    this.workers = workers;
+    this.loops = new SelectorLoop[Math.max(1, selectors)];
+    for(int i = 0; i < loops.length; i++) {
+      loops[i] = new SelectorLoop();
+    }
+    sharedListener = servers.size() == 1;
+    if(sharedListener) {
+      loops[0].listen(servers.get(0));
+    }
+    else {
+      for(int i = 0; i < servers.size(); i++) {
+        loops[i % loops.length].listen(servers.get(i));
+      }
+    }
+  }
+
+  WebServer getWebServer() {
+    return webServer;
+  }
+
+  Executor getWorkers() {
+    return workers;
+  }
+
+  /**
+   * Picks the loop for a newly accepted connection. With a listening socket per loop
+   * a connection stays on the loop that accepted it.
+   */
+  private SelectorLoop nextLoop(SelectorLoop acceptor) {
+    if(!sharedListener) {
+      return acceptor;
+    }
+    // Only the loop owning the single listening socket accepts, so no lock is needed
+    nextLoop = (nextLoop + 1) % loops.length;
+    return loops[nextLoop];
+  }
+
+  /**
+   * Starts the selector loops. The first loop runs on the calling thread, so this
+   * method does not return.
+   */
+  public void start() {
+    for(int i = 1; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "webmail-nio-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    Thread.currentThread().setName("webmail-nio-0");
+    loops[0].run();
+  }
+}
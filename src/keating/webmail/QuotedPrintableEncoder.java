@@ -0,0 +1,236 @@
+package keating.webmail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * QuotedPrintableEncoder.java
+ *
+ * Streaming quoted-printable encoder (RFC2045) for ISO-8859-15 text. The text is
+ * encoded, broken into lines with soft line breaks and dot stuffed (RFC2821
+ * section 4.5.2) in a single pass, and written through a fixed byte buffer to
+ * an output stream. No objects are allocated per character, so an encoder can
+ * be reused for any number of messages.
+ *
+ * An encoder is not thread safe; each SMTP session has its own.
+ *
+ * @author Andrew Keating
+ */
+public class QuotedPrintableEncoder {
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int CHUNK_SIZE = 2048;
+  // Max 76 chars per line (RFC2045), so we break lines once they pass 70: with
+  // a final encoded char and the soft break's '=', a line never exceeds 74
+  private static final int MAX_LINE_LENGTH = 70;
+
+  static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+  private final boolean dotStuffing;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private char[] chunk;
+  private OutputStream out;
+  private int count;
+  private int lineLength;
+  private int pendingWhitespace;
+  private boolean pendingCarriageReturn;
+
+  /**
+   * Constructs a new QuotedPrintableEncoder
+   * @param dotStuffing true if lines starting with a period should be dot stuffed,
+   * as required inside the SMTP DATA command
+   */
+  public QuotedPrintableEncoder(boolean dotStuffing) {
+    this.dotStuffing = dotStuffing;
+  }
+
+  /**
+   * Encodes text and writes it to a stream
+   * @param text The text to encode
+   * @param out Stream receiving the encoded text
+   * @throws IOException If writing fails
+   */
+  public void encode(CharSequence text, OutputStream out) throws IOException {
+    start(out);
+    int length = text.length();
+    for(int i = 0; i < length; i++) {
+      accept(text.charAt(i));
+    }
+    finish();
+  }
+
+  /**
+   * Encodes all text from a reader and writes it to a stream
+   * @param text Reader supplying the text to encode
+   * @param out Stream receiving the encoded text
+   * @throws IOException If reading or writing fails
+   */
+  public void encode(Reader text, OutputStream out) throws IOException {
+    if(chunk == null) {
+      chunk = new char[CHUNK_SIZE];
+    }
+    start(out);
+    int read;
+    while((read = text.read(chunk)) != -1) {
+      for(int i = 0; i < read; i++) {
+        accept(chunk[i]);
+      }
+    }
+    finish();
+  }
+
+  private void start(OutputStream out) {
+    this.out = out;
+    count = 0;
+    lineLength = 0;
+    pendingWhitespace = -1;
+    pendingCarriageReturn = false;
+  }
+
+  /**
+   * Encodes one character. Whitespace and carriage returns are held back until the
+   * next character shows whether they end a line.
+   */
+  private void accept(char c) throws IOException {
+    if(pendingCarriageReturn) {
+      pendingCarriageReturn = false;
+      if(c == '\n') {
+        // CRLF detected
+        lineBreak();
+        return;
+      }
+      // A carriage return without a line feed is dropped
+    }
+
+    if(c == '\r') {
+      pendingCarriageReturn = true;
+    }
+    // Line breaks in the text body
+    else if(c == '\n') {
+      lineBreak();
+    }
+    else {
+      flushWhitespace(false);
+      if(c == ' ' || c == '\t') {
+        pendingWhitespace = c;
+      }
+      else {
+        int b = toLatin9(c);
+        // Printable ASCII chars
+        if((b >= 33 && b <= 60) || (b >= 62 && b <= 126)) {
+          literal(b);
+        }
+        else {
+          encoded(b);
+        }
+      }
+    }
+  }
+
+  /**
+   * Ends the text. The text is always followed by a line break in the message, so
+   * trailing whitespace is encoded.
+   */
+  private void finish() throws IOException {
+    flushWhitespace(true);
+    if(count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+    out = null;
+  }
+
+  /**
+   * Writes held back whitespace: as-is inside a line, encoded at the end of a line
+   * so that it is not stripped in transit
+   */
+  private void flushWhitespace(boolean endOfLine) throws IOException {
+    if(pendingWhitespace >= 0) {
+      int c = pendingWhitespace;
+      pendingWhitespace = -1;
+      if(endOfLine) {
+        encoded(c);
+      }
+      else {
+        literal(c);
+      }
+    }
+  }
+
+  private void lineBreak() throws IOException {
+    flushWhitespace(true);
+    ensureCapacity(2);
+    buffer[count++] = '\r';
+    buffer[count++] = '\n';
+    lineLength = 0;
+  }
+
+  private void literal(int b) throws IOException {
+    ensureCapacity(2);
+    // In SMTP, a line containing a period signals the end of a message's body, so
+    // periods starting a line are doubled (dot stuffing)
+    if(dotStuffing && lineLength == 0 && b == '.') {
+      buffer[count++] = '.';
+      lineLength++;
+    }
+    buffer[count++] = (byte)b;
+    lineLength++;
+    softBreakIfNeeded();
+  }
+
+  private void encoded(int b) throws IOException {
+    ensureCapacity(3);
+    buffer[count++] = '=';
+    buffer[count++] = HEX[(b >> 4) & 0xF];
+    buffer[count++] = HEX[b & 0xF];
+    lineLength += 3;
+    softBreakIfNeeded();
+  }
+
+  private void softBreakIfNeeded() throws IOException {
+    if(lineLength > MAX_LINE_LENGTH) {
+      ensureCapacity(3);
+      buffer[count++] = '=';
+      buffer[count++] = '\r';
+      buffer[count++] = '\n';
+      lineLength = 0;
+    }
+  }
+
+  private void ensureCapacity(int bytes) throws IOException {
+    if(count + bytes > buffer.length) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Maps a character to its ISO-8859-15 (Latin-9) code. Latin-9 matches Latin-1
+   * except for eight positions, e.g. the euro sign at 0xA4. Characters which
+   * cannot be represented become '?'.
+   * @param c Character to map
+   * @return the ISO-8859-15 code of the character
+   */
+  static int toLatin9(char c) {
+    if(c < 0xA4) {
+      return c;
+    }
+    switch(c) {
+      // Characters moved into Latin-9
+      case '\u20AC': return 0xA4;
+      case '\u0160': return 0xA6;
+      case '\u0161': return 0xA8;
+      case '\u017D': return 0xB4;
+      case '\u017E': return 0xB8;
+      case '\u0152': return 0xBC;
+      case '\u0153': return 0xBD;
+      case '\u0178': return 0xBE;
+      // Latin-1 characters replaced in Latin-9
+      case '\u00A4': case '\u00A6': case '\u00A8': case '\u00B4': case '\u00B8': case '\u00BC': case '\u00BD': case '\u00BE':
+        return '?';
+      default:
+        return c <= 0xFF ? c : '?';
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package keating.webmail;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * RetryPolicy.java
+ *
+ * Decides when an email whose delivery failed transiently is tried again. The
+ * delay doubles with every attempt, starting at webmail.retry.initialDelay
+ * seconds (default 60) and capped at webmail.retry.maxDelay seconds (default
+ * 3600). Each delay is drawn at random from its upper half, so emails which
+ * failed together, e.g. because their destination was down, come back spread
+ * out instead of all at once. An email is given up once it would be retried
+ * more than webmail.retry.maxAge seconds (default 345600, four days, as
+ * suggested by RFC2821 section 4.5.4.1) after it was due.
+ *
+ * @author Andrew Keating
+ */
+public class RetryPolicy {
+
+  private static final long DEFAULT_INITIAL_DELAY = 60;
+  private static final long DEFAULT_MAX_DELAY = 3600;
+  private static final long DEFAULT_MAX_AGE = 4 * 24 * 3600;
+
+  private final long initialDelay;
+  private final long maxDelay;
+  private final long maxAge;
+
+  /**
+   * Constructs a new RetryPolicy configured from the system properties
+   */
+  public RetryPolicy() {
+    this(Long.getLong("webmail.retry.initialDelay", DEFAULT_INITIAL_DELAY) * 1000,
+        Long.getLong("webmail.retry.maxDelay", DEFAULT_MAX_DELAY) * 1000,
+        Long.getLong("webmail.retry.maxAge", DEFAULT_MAX_AGE) * 1000);
+  }
+
+  /**
+   * Constructs a new RetryPolicy
+   * @param initialDelay Delay in milliseconds before the first retry
+   * @param maxDelay Longest delay in milliseconds between two attempts
+   * @param maxAge Time in milliseconds after which an email is no longer retried,
+   * 0 to never retry
+   */
+  public RetryPolicy(long initialDelay, long maxDelay, long maxAge) {
+    if(initialDelay < 1 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("Retry delays must be positive and the maximum at least the initial delay");
+    }
+    this.initialDelay = initialDelay;
+    this.maxDelay = maxDelay;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * Computes the delay before the next attempt
+   * @param attempts Number of attempts made so far, at least 1
+   * @param due Time the email was first due, in milliseconds since the epoch
+   * @param now The current time in milliseconds since the epoch
+   * @return the delay in milliseconds, or -1 if the email should be given up
+   */
+  public long nextDelay(int attempts, long due, long now) {
+    // Compared before shifting, so that many attempts cannot overflow the delay
+    int doublings = Math.min(Math.max(attempts - 1, 0), 62);
+    long delay = initialDelay > (maxDelay >> doublings) ? maxDelay : initialDelay << doublings;
+    delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+    if(now + delay - due > maxAge) {
+      return -1;
+    }
+    return delay;
+  }
+}
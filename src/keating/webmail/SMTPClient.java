@@ -1,26 +1,29 @@
 package keating.webmail;
 
-import java.io.BufferedReader;
-
-import javax.swing.Timer;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
 
 /**
  * SMTPClient.java
  *
- * This class handles sending email via SMTP
+ * This class handles sending email via SMTP. Recipients which fail with a
+ * transient error (a 4xx reply or no reply at all) are tried again later, see
+ * RetryPolicy; other failures are final.
  * 
  * Compliant with RFCs: 2045, 2047, 2821 (see README for more details)
  *
@@ -30,18 +33,110 @@ import java.util.Date;
 
 public class SMTPClient {
 
+  // Time in milliseconds a delivery worker waits for a busy destination before deferring its recipients
+  private static final long HOST_WAIT = Long.getLong("webmail.smtp.host.wait", 10000);
+  private static final Histogram MAIL_TIME = SMTPSession.phaseHistogram("mail");
+  private static final Histogram RCPT_TIME = SMTPSession.phaseHistogram("rcpt");
+  private static final Histogram DATA_TIME = SMTPSession.phaseHistogram("data");
+  private static final Histogram END_OF_DATA_TIME = SMTPSession.phaseHistogram("end_of_data");
+  private static final LongAdder DELIVERED = deliveryCounter("success");
+  private static final LongAdder FAILED = deliveryCounter("failure");
+  private static final LongAdder RETRIED = deliveryCounter("retry");
   private static final SMTPClient instance = new SMTPClient();
   
-  private ArrayList<EmailMessage> messages; // Collection of email status messages
-  private BufferedReader reader;
-  private BufferedWriter writer;
-  private Socket socket;
+  private MessageStore messages; // Collection of email status messages
+  private DeliveryQueue deliveryQueue;
+  private DeliveryScheduler scheduler;
+  private SMTPSessionPool sessionPool;
+  private MessageJournal journal;
+  private RetryPolicy retryPolicy;
+  private DestinationLimiter limiter;
   
-  private static final int SMTP_PORT = 25;
-  private static final int SMTP_TIMEOUT = 2000;
-
   private SMTPClient() {
-    messages = new ArrayList<EmailMessage>();
+    messages = new MessageStore();
+    deliveryQueue = new DeliveryQueue(new DeliveryQueue.Deliverer() {
+      public void deliver(EmailMessage message) {
+        SMTPClient.this.deliver(message);
+      }
+
+      public void failed(EmailMessage message, RuntimeException e) {
+        // A retry may have been scheduled before the exception
+        scheduler.cancel(message.getId());
+        message.clearDeferredRecipients();
+        message.deleteAttachments();
+        finish(message, "Error sending mail (" + e.getMessage() + ")");
+      }
+    });
+    scheduler = new DeliveryScheduler(deliveryQueue);
+    sessionPool = new SMTPSessionPool();
+    retryPolicy = new RetryPolicy();
+    limiter = new DestinationLimiter();
+    registerGauges();
+    openJournal();
+  }
+
+  /**
+   * Reports the sizes of the queues and the store to the metrics
+   */
+  private void registerGauges() {
+    Metrics metrics = Metrics.getInstance();
+    metrics.gauge("webmail_delivery_queue_depth", "Messages waiting for a delivery worker", "", new Metrics.Gauge() {
+      public long get() {
+        return deliveryQueue.size();
+      }
+    });
+    metrics.gauge("webmail_scheduled_messages", "Delayed messages and retries waiting for their time", "", new Metrics.Gauge() {
+      public long get() {
+        return scheduler.size();
+      }
+    });
+    metrics.gauge("webmail_stored_messages", "Messages held for the status page", "", new Metrics.Gauge() {
+      public long get() {
+        return messages.size();
+      }
+    });
+  }
+
+  /**
+   * Opens the journal in the directory given by the system property
+   * webmail.journal.dir (default ../journal, an empty value disables it), restores
+   * the emails recorded in it and re-arms the ones which had not been sent
+   */
+  private void openJournal() {
+    String directory = System.getProperty("webmail.journal.dir", "../journal");
+    if(directory.equals("")) {
+      return;
+    }
+
+    try {
+      MessageJournal opened = new MessageJournal(new File(directory), new MessageJournal.Source() {
+        public List<EmailMessage> getMessages() {
+          return new ArrayList<EmailMessage>(messages.getMessages());
+        }
+      });
+      List<EmailMessage> recovered = opened.replay();
+      opened.start();
+      journal = opened;
+
+      long now = System.currentTimeMillis();
+      int pending = 0;
+      for(EmailMessage message : recovered) {
+        messages.add(message);
+        if(!message.getStatus().equals("Pending")) {
+          continue;
+        }
+        pending++;
+        // Emails which were due or being sent when the server stopped are sent right away
+        long scheduledTime = message.getScheduledTime();
+        scheduler.schedule(message, scheduledTime > now ? scheduledTime - now : 0);
+      }
+      if(!recovered.isEmpty()) {
+        System.out.println("Recovered " + recovered.size() + " emails from the journal, " + pending + " still to be sent");
+      }
+    }
+    catch(IOException e) {
+      System.out.println("Cannot open the journal, emails will not survive a restart: " + e.getMessage());
+    }
   }
   
   /**
@@ -53,177 +148,434 @@ public class SMTPClient {
   }
 
   /**
-   * Helper method which dispatches the email
+   * Helper method which dispatches the email to all of its recipients, without
+   * retrying transient failures
    * @param message The email contents
    * @return Status message detailing the success/failure of the delivery. 
    */
   private String sendMail(EmailMessage message) {
-    String to = message.getTo();
-    String from = message.getFrom();
-    String subject = message.getSubject();
+    sendMail(message, message.getRecipients());
+    giveUpDeferred(message);
+    return summarizeStatus(message);
+  }
+
+  /**
+   * Dispatches the email to some of its recipients. Recipients are grouped by their
+   * SMTP server, and each group is sent in a single transaction with one RCPT TO
+   * per recipient. Recipients which fail transiently are deferred.
+   * @param message The email contents
+   * @param recipients Recipients to send the email to
+   */
+  private void sendMail(EmailMessage message, List<String> recipients) {
     String server = message.getServer();
-    String data = message.getData();
 
-    if(subject.equals("")) {
-      subject = "(No Subject)";
-      message.setSubject(subject);
+    if(message.getSubject().equals("")) {
+      message.setSubject("(No Subject)");
     }
 
-    try {
-      // If SMTP server is left blank, use DNS MX lookup to determine the server
-      if(server.equals("")) {
-        String domain = getDomainFromAddress(to);
+    // Recipients grouped by destination, and the servers to try for each destination
+    Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+    Map<String, List<String>> candidates = new HashMap<String, List<String>>();
+    if(!server.equals("")) {
+      groups.put(server, recipients);
+      candidates.put(server, Collections.singletonList(server));
+    }
+    else {
+      // If SMTP server is left blank, use DNS MX lookup to determine the server, once per domain
+      Map<String, List<String>> domains = new LinkedHashMap<String, List<String>>();
+      for(String recipient : recipients) {
+        addToGroup(domains, getDomainFromAddress(recipient).toLowerCase(), recipient);
+      }
 
+      for(Map.Entry<String, List<String>> domain : domains.entrySet()) {
         try {
-          server = DNSClient.mxLookup(domain);
+          // Domains whose most preferred mail server is the same share a transaction
+          List<String> mailServers = DNSClient.mailServerLookup(domain.getKey());
+          String destination = mailServers.get(0);
+          for(String recipient : domain.getValue()) {
+            addToGroup(groups, destination, recipient);
+          }
+          candidates.put(destination, mailServers);
+        }
+        // Fail the domain's recipients if no MX record exists
+        catch(NameNotFoundException e) {
+          setRecipientStatuses(message, domain.getValue(), "SMTP server not entered, and could not determine SMTP server for recipient's domain");
+        }
+        // Try again later if the DNS query itself failed, e.g. timed out
+        catch(NamingException e) {
+          deferRecipients(message, domain.getValue(), "SMTP server not entered, and could not determine SMTP server for recipient's domain");
         }
-        // Return an error if no MX record exists
         catch(Exception e) {
-          return "SMTP server not entered, and could not determine SMTP server for recipient's domain";
+          setRecipientStatuses(message, domain.getValue(), "SMTP server not entered, and could not determine SMTP server for recipient's domain");
         }
       }
+    }
 
-      // Set up socket connection
-      try {
-        try {
-          socket = new Socket();
+    for(Map.Entry<String, List<String>> group : groups.entrySet()) {
+      sendToServer(group.getKey(), candidates.get(group.getKey()), message, group.getValue());
+    }
+  }
 
-          SocketAddress address;
-          address = new InetSocketAddress(server, SMTP_PORT);
+  /**
+   * Sends a message to a group of recipients which share an SMTP server
+   * @param server Host name or address of the SMTP server
+   * @param candidates Addresses of the server and its backups, in order of preference
+   * @param message The email contents
+   * @param recipients Recipients handled by the server
+   */
+  private void sendToServer(String server, List<String> candidates, EmailMessage message, List<String> recipients) {
+    // Wait for the destination's concurrency and rate limits; a destination which
+    // stays busy is tried again later like one which is down
+    try {
+      if(!limiter.acquire(server, HOST_WAIT)) {
+        deferRecipients(message, recipients, "SMTP server busy");
+        return;
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      deferRecipients(message, recipients, "SMTP server busy");
+      return;
+    }
+    try {
+      sendToSession(server, candidates, message, recipients);
+    }
+    finally {
+      limiter.release(server);
+    }
+  }
 
-          socket.connect(address, SMTP_TIMEOUT);
-          reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-          writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-        }
-        catch(SocketTimeoutException e) {
-          return "Connection to SMTP server timed out";
-        }
-        catch(IOException e1) {
-          return "Connection to SMTP server unsuccessful";
+  /**
+   * Sends a message over a session to a destination once the limiter has let it
+   * @param server Host name or address of the SMTP server
+   * @param candidates Addresses of the server and its backups, in order of preference
+   * @param message The email contents
+   * @param recipients Recipients handled by the server
+   */
+  private void sendToSession(String server, List<String> candidates, EmailMessage message, List<String> recipients) {
+    // Take a session from the pool, which skips the connection setup if one is already open
+    SMTPSession session;
+    try {
+      session = sessionPool.borrow(server, candidates);
+    }
+    catch(SMTPException e) {
+      if(e.isTransient()) {
+        deferRecipients(message, recipients, e.getMessage());
+      }
+      else {
+        setRecipientStatuses(message, recipients, e.getMessage());
+      }
+      return;
+    }
+
+    boolean reusable = false;
+    try {
+      sendTransaction(session, message, recipients);
+      session.transactionCompleted();
+      reusable = true;
+    }
+    catch(IOException e) {
+      System.out.println("Error communicating with SMTP server: " + e.getMessage());
+      for(String recipient : recipients) {
+        if(message.getRecipientStatus(recipient).equals("Pending")) {
+          message.deferRecipient(recipient, "Connection to SMTP server lost");
         }
+      }
+    }
+    finally {
+      sessionPool.release(session, reusable);
+    }
+  }
 
-        // Check for 220 from server
-        String line = "";
-        try {
-          line = reader.readLine();
+  /**
+   * Sends a single mail transaction (MAIL FROM, RCPT TO, DATA) over an open session,
+   * recording the status of each recipient
+   * @param session Session to the SMTP server
+   * @param message The email contents
+   * @param recipients Recipients to include in the transaction
+   * @throws IOException If the connection to the server fails
+   */
+  private void sendTransaction(SMTPSession session, EmailMessage message, List<String> recipients) throws IOException {
+    String to = message.getTo();
+    String from = message.getFrom();
+    String subject = message.getSubject();
+    String data = message.getData();
+
+    String mailFrom = "MAIL FROM:<" + from + ">\r\n";
+    String dataStr = "DATA\r\n";
+    List<String> accepted = new ArrayList<String>();
+    int code;
+
+    if(session.supportsPipelining()) {
+      // Send the whole envelope in one write and then match the replies in order (RFC2920),
+      // which costs a single round trip instead of one per command
+      StringBuffer envelope = new StringBuffer(mailFrom);
+      for(String recipient : recipients) {
+        envelope.append("RCPT TO:<" + recipient + ">\r\n");
+      }
+      envelope.append(dataStr);
+      long start = System.nanoTime();
+      session.write(envelope.toString());
+      session.flush();
+
+      // Each phase is timed until its reply arrives after the one before
+      int mailFromCode = SMTPSession.getCode(session.readReply());
+      start = recordPhase(MAIL_TIME, start);
+      for(String recipient : recipients) {
+        int rcptToCode = SMTPSession.getCode(session.readReply());
+        start = recordPhase(RCPT_TIME, start);
+        if(rcptToCode == 250 || rcptToCode == 251) {
+          accepted.add(recipient);
         }
-        catch(IOException e) {
-          return "Connection to SMTP server unsuccessful";
+        else {
+          failRecipient(message, recipient, rcptToCode);
         }
+      }
+      code = SMTPSession.getCode(session.readReply());
+      recordPhase(DATA_TIME, start);
 
-        int code = getCode(line);
-        if(code != 220) {
-          return "Connection to SMTP server unsuccessful (Error " + Integer.toString(code) + ")";
+      if(mailFromCode != 250 || accepted.isEmpty()) {
+        if(code == 354) {
+          // The server accepted DATA despite the failed envelope, so end the empty message
+          session.sendCommand(".\r\n");
         }
-
-        // Client opens connection to server and server responds with opening message
-        String helo = "HELO test.domain\r\n";
-        String heloResponse = sendMessage(helo);
-
-        code = getCode(heloResponse);
-        if(code != 250) {
-          return "Connection to SMTP server unsuccessful (Error " + Integer.toString(code) + ")";
+        if(mailFromCode != 250) {
+          failRecipients(message, recipients, mailFromCode);
         }
+        return;
+      }
+      if(code != 354) {
+        failRecipients(message, accepted, code);
+        return;
+      }
+    }
+    else {
+      // Begin transmitting the envelope, one command at a time. Check all response codes.
+      long start = System.nanoTime();
+      code = SMTPSession.getCode(session.sendCommand(mailFrom));
+      start = recordPhase(MAIL_TIME, start);
+      if(code != 250) {
+        failRecipients(message, recipients, code);
+        return;
+      }
 
-        // Begin transmitting email headers, one by one with carriage returns. Check all response codes.
-        String mailFrom = "MAIL FROM:<" + from + ">\r\n";
-        String mailFromResponse = sendMessage(mailFrom);
-
-        code = getCode(mailFromResponse);
-        if(code != 250) {
-          return "Error sending mail (Error " + Integer.toString(code) + ")";
+      for(String recipient : recipients) {
+        code = SMTPSession.getCode(session.sendCommand("RCPT TO:<" + recipient + ">\r\n"));
+        start = recordPhase(RCPT_TIME, start);
+        if(code == 250 || code == 251) {
+          accepted.add(recipient);
         }
-
-        String rcptTo = "RCPT TO:<" + to + ">\r\n";
-        String rcptToResponse = sendMessage(rcptTo);
-
-        code = getCode(rcptToResponse);
-        if(code != 250) {
-          return "Error sending mail (Error " + Integer.toString(code) + ")";
+        else {
+          failRecipient(message, recipient, code);
         }
+      }
+      if(accepted.isEmpty()) {
+        return;
+      }
 
-        String dataStr = "DATA\r\n";
-        String dataResponse = sendMessage(dataStr);
+      code = SMTPSession.getCode(session.sendCommand(dataStr));
+      recordPhase(DATA_TIME, start);
+      if(code != 354) {
+        failRecipients(message, accepted, code);
+        return;
+      }
+    }
 
-        code = getCode(dataResponse);
-        if(code != 354) {
-          return "Error sending mail (Error " + Integer.toString(code) + ")";
+    // The headers are collected and written together with the body, so the whole
+    // message goes out with the end-of-data marker in a single flush
+    long dataStart = System.nanoTime();
+    SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
+    Date d = new Date();
+    message.setDeliveryTime(sdf.format(d));
+
+    StringBuffer headers = new StringBuffer();
+    // Use an RFC2047 subject to provide support for non-ASCII characters
+    headers.append("Subject: " + toRFC2047(subject) + "\r\n");
+    headers.append("Date: " + sdf.format(d) + "\r\n");
+    headers.append("To: " + to + "\r\n");
+    headers.append("From: " + from + "\r\n");
+    headers.append("MIME-Version: 1.0\r\n");
+    List<Attachment> attachments = message.getAttachments();
+    String boundary = null;
+    if(!attachments.isEmpty()) {
+      // Quoted-printable and base64 text never contain "=_", so this cannot occur in a part
+      boundary = "=_webmail-" + message.getId() + "-" + Long.toHexString(System.nanoTime());
+      headers.append("Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n");
+      headers.append("\r\n");
+      headers.append("This is a multi-part message in MIME format.\r\n");
+      headers.append("--" + boundary + "\r\n");
+    }
+    headers.append("Content-Type: text/plain; charset=ISO-8859-15\r\n");
+    headers.append("Content-Transfer-Encoding: quoted-printable\r\n");
+    headers.append("\r\n");
+    session.write(headers.toString());
+
+    // The body is encoded and dot stuffed while it is written (see QuotedPrintableEncoder)
+    session.writeQuotedPrintable(data);
+    session.write("\r\n");
+
+    if(boundary != null) {
+      // Attachments are streamed from their source and base64 encoded chunk by chunk (RFC2046 section 5.1)
+      for(Attachment attachment : attachments) {
+        StringBuffer partHeaders = new StringBuffer();
+        partHeaders.append("--" + boundary + "\r\n");
+        partHeaders.append("Content-Type: " + attachment.getContentType() + "\r\n");
+        partHeaders.append("Content-Transfer-Encoding: base64\r\n");
+        partHeaders.append("Content-Disposition: attachment; " + toFilenameParameter(attachment.getFilename()) + "\r\n");
+        partHeaders.append("\r\n");
+        session.write(partHeaders.toString());
+
+        InputStream in = attachment.openStream();
+        try {
+          session.writeBase64(in);
         }
+        finally {
+          in.close();
+        }
+      }
+      session.write("--" + boundary + "--\r\n");
+    }
 
-        // Use an RFC2047 subject to provide support for non-ASCII characters
-        String subjectMsg = "Subject: " + toRFC2047(subject) + "\r\n";
-        sendMessageWithoutResponse(subjectMsg);
-
-        SimpleDateFormat sdf = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z");
-        Date d = new Date();
-        String dateMsg = "Date: " + sdf.format(d) + "\r\n";
-        message.setDeliveryTime(sdf.format(d));
-        sendMessageWithoutResponse(dateMsg);
-
-        String toMsg = "To: " + to + "\r\n";
-        sendMessageWithoutResponse(toMsg);
+    String periodMsg = ".\r\n";
+    String periodResponse = session.sendCommand(periodMsg);
+    // Covers sending the content and waiting for the server to accept it
+    END_OF_DATA_TIME.recordSince(dataStart);
 
-        String fromMsg = "From: " + from + "\r\n";
-        sendMessageWithoutResponse(fromMsg);
+    code = SMTPSession.getCode(periodResponse);
+    if(code != 250) {
+      failRecipients(message, accepted, code);
+      return;
+    }
 
-        String mimeVersion = "MIME-Version: 1.0\r\n";
-        sendMessageWithoutResponse(mimeVersion);
+    setRecipientStatuses(message, accepted, "Success");
+  }
 
-        String contentType = "Content-Type: text/plain; charset=ISO-8859-15\r\n";
-        sendMessageWithoutResponse(contentType);
+  /**
+   * Looks up the counter of delivery attempts with a given outcome
+   * @param result "success", "failure" or "retry"
+   */
+  private static LongAdder deliveryCounter(String result) {
+    return Metrics.getInstance().counter("webmail_deliveries_total",
+        "Delivery attempts by outcome: delivered, given up or scheduled again", "result=" + Metrics.quote(result));
+  }
 
-        String cte = "Content-Transfer-Encoding: quoted-printable\r\n";
-        sendMessageWithoutResponse(cte);
+  /**
+   * Records the duration of a phase of the transaction
+   * @param phase Histogram of the phase
+   * @param start Start of the phase, from System.nanoTime()
+   * @return the end of the phase, which is the start of the next one
+   */
+  private static long recordPhase(Histogram phase, long start) {
+    long end = System.nanoTime();
+    phase.record(end - start);
+    return end;
+  }
 
-        String blankMsg = "\r\n";
-        sendMessageWithoutResponse(blankMsg);
+  /**
+   * Adds a recipient to the group with the given key
+   */
+  private void addToGroup(Map<String, List<String>> groups, String key, String recipient) {
+    List<String> group = groups.get(key);
+    if(group == null) {
+      group = new ArrayList<String>();
+      groups.put(key, group);
+    }
+    group.add(recipient);
+  }
 
-        /**
-         * In SMTP, a line containing a period signals the end of a message's body. If a 
-         * user sends an email containing a single period prior to the end of the email, 
-         * truncation results. To avoid this, single periods in message bodies are 
-         * replaced with double periods, a technique known as dot stuffing.
-         */
-        if(data.startsWith(".")) {
-          data = data.replaceFirst(".", "..");
-        }
-        if(data.equals(".")) {
-          data = data.replace(".", "..");
-        }
-        if(data.contains("\n.")) {
-          data = data.replace("\n.", "\n..");
-        }
+  /**
+   * Records the failure of a recipient reported by the server: a 4xx reply defers
+   * the recipient, any other reply is final
+   * @param message The email
+   * @param recipient The recipient
+   * @param code Reply code sent by the server
+   */
+  private void failRecipient(EmailMessage message, String recipient, int code) {
+    String status = "Error sending mail (Error " + Integer.toString(code) + ")";
+    if(SMTPException.isTransient(code)) {
+      message.deferRecipient(recipient, status);
+    }
+    else {
+      message.setRecipientStatus(recipient, status);
+    }
+  }
 
-        String dataMsg = toQuotedPrintable(data) + "\r\n";
-        sendMessageWithoutResponse(dataMsg);
+  /**
+   * Records the failure of several recipients reported by the server
+   * @param message The email
+   * @param recipients Recipients to update
+   * @param code Reply code sent by the server
+   */
+  private void failRecipients(EmailMessage message, List<String> recipients, int code) {
+    for(String recipient : recipients) {
+      failRecipient(message, recipient, code);
+    }
+  }
 
-        String periodMsg = ".\r\n";
-        String periodResponse = sendMessage(periodMsg);
+  /**
+   * Defers several recipients which failed transiently
+   * @param message The email
+   * @param recipients Recipients to defer
+   * @param status Delivery status describing the failure
+   */
+  private void deferRecipients(EmailMessage message, List<String> recipients, String status) {
+    for(String recipient : recipients) {
+      message.deferRecipient(recipient, status);
+    }
+  }
 
-        code = getCode(periodResponse);
-        if(code != 250) {
-          return "Error sending mail (Error " + Integer.toString(code) + ")";
-        }
+  /**
+   * Gives up the deferred recipients of an email, whose status becomes the error
+   * of their last attempt
+   * @param message The email
+   */
+  private void giveUpDeferred(EmailMessage message) {
+    for(Map.Entry<String, String> recipient : message.getDeferredRecipients().entrySet()) {
+      message.setRecipientStatus(recipient.getKey(), recipient.getValue());
+    }
+    message.clearDeferredRecipients();
+  }
 
-        String quit = "QUIT\r\n";
-        String quitResponse = sendMessage(quit);
+  /**
+   * Sets the status of several recipients at once
+   * @param message The email
+   * @param recipients Recipients to update
+   * @param status Delivery status
+   */
+  private void setRecipientStatuses(EmailMessage message, List<String> recipients, String status) {
+    for(String recipient : recipients) {
+      message.setRecipientStatus(recipient, status);
+    }
+  }
 
-        if(getCode(quitResponse) != 221) {
-          return "Error disconnecting from SMTP server (Error " + Integer.toString(code) + ")";
-        }
+  /**
+   * Combines the statuses of all recipients into the status of the message
+   * @param message The email
+   * @return "Success" if every recipient received the email, the error if there is
+   * only one recipient or none received it, or a count of the successful recipients
+   */
+  private String summarizeStatus(EmailMessage message) {
+    List<String> recipients = message.getRecipients();
+    int delivered = 0;
+    String error = null;
+
+    for(String recipient : recipients) {
+      String status = message.getRecipientStatus(recipient);
+      if(status.equals("Success")) {
+        delivered++;
       }
-      finally {
-        // Clean up streams and socket
-        if(reader != null) reader.close();
-        if(writer != null) writer.close();
-        if(socket != null) socket.close();
+      else if(error == null) {
+        error = status;
       }
     }
-    catch(IOException e) {
-      System.out.println("Error closing stream/socket: " + e.getMessage());
-    }
 
-    return "Success";
+    if(error == null) {
+      return "Success";
+    }
+    if(delivered == 0) {
+      return error;
+    }
+    return "Delivered to " + delivered + " of " + recipients.size() + " recipients";
   }
 
   /**
@@ -237,57 +589,210 @@ public class SMTPClient {
   }
   
   /**
-   * @return the list of sent email messages with their current statuses 
+   * @return the store of sent email messages with their current statuses
    */
-  public ArrayList<EmailMessage> getMessages() {
+  public MessageStore getMessages() {
     return messages;
   }
 
+  /**
+   * @return true if so many emails wait for delivery that new submissions should
+   * be turned away
+   */
+  public boolean isOverloaded() {
+    return deliveryQueue.isOverloaded();
+  }
+
   /**
    * Sends an email after a specified delay. If a delay of 0 is specified, the email is 
-   * sent immediately.
+   * handed to the delivery queue right away and sent by one of its workers, otherwise
+   * the scheduler hands it to the queue once the delay has expired.
    * 
    * @param message Email message to be sent
-   * @param delay Delay in milliseconds
-   * @return The email's delivery status, which is "Pending" if the email was delayed
+   * @param delay Delay in seconds
+   * @return "Pending" if the email has been accepted for delivery, otherwise the
+   * reason it was refused
    */
-  public String sendMail(final EmailMessage message, final int delay) {
+  public String sendMail(EmailMessage message, int delay) {
+    message.setDelay(delay);
+    if(delay >= 1) {
+      message.setScheduledTime(System.currentTimeMillis() + delay * 1000L);
+    }
     messages.add(message);
-    
-    if(delay < 1) {
-      String status = sendMail(message);
-      message.setStatus(status);
-      return status;
+
+    if(journal != null) {
+      try {
+        journal.spoolUploads(message);
+      }
+      catch(IOException e) {
+        // Uploads left in the temporary directory may be gone after a reboot
+        System.out.println("Could not move uploads into the journal: " + e.getMessage());
+      }
+      // The email is only accepted once its submission is on disk; concurrent
+      // submissions share the same fsync
+      long sequence = journal.submitted(message);
+      if(delay >= 1) {
+        sequence = journal.scheduled(message, message.getScheduledTime());
+      }
+      journal.awaitDurable(sequence);
     }
     
-    int seconds = delay * 1000;
-    Timer t = new javax.swing.Timer(seconds, new ActionListener() {
-      public void actionPerformed(ActionEvent e) {
-        try {
-          String status = sendMail(message);
-          message.setStatus(status);
-          String senderServer = DNSClient.mxLookup(getDomainFromAddress(message.getFrom()));
-          EmailMessage reply = new EmailMessage(message.getFrom(), "noreply@ik2213.lab", "Your email: " + message.getSubject(), senderServer, "The status of your email is: " + status);
-          sendMail(reply);
-        }
-        catch(Exception ex) {
-          // We can't respond because the MX lookup failed. So do nothing.
+    if(delay < 1) {
+      if(!deliveryQueue.submit(message)) {
+        message.setStatus("Delivery queue is full, please try again later");
+        message.deleteAttachments();
+        if(journal != null) {
+          journal.finished(message);
         }
+        messages.trim();
+        return message.getStatus();
       }
-    });
-    t.setRepeats(false);
-    t.start();
+      // Not read from the message, which a worker may already have sent
+      return "Pending";
+    }
     
-    return message.getStatus();
+    scheduler.schedule(message, delay * 1000L);
+    
+    return "Pending";
+  }
+
+  /**
+   * Cancels a delayed email which has not been sent yet
+   * @param id ID of the email
+   * @return true if the email was pending and has been cancelled
+   */
+  public boolean cancelMail(long id) {
+    EmailMessage message = findMessage(id);
+    if(message == null || !scheduler.cancel(id)) {
+      return false;
+    }
+    message.setStatus("Cancelled");
+    message.deleteAttachments();
+    if(journal != null) {
+      journal.finished(message);
+    }
+    messages.trim();
+    return true;
+  }
+
+  /**
+   * Changes the delay of an email which has not been sent yet
+   * @param id ID of the email
+   * @param delay New delay in seconds, counted from now
+   * @return true if the email was pending and has been rescheduled
+   */
+  public boolean rescheduleMail(long id, int delay) {
+    EmailMessage message = findMessage(id);
+    if(message == null || !scheduler.reschedule(id, delay * 1000L)) {
+      return false;
+    }
+    message.setScheduledTime(System.currentTimeMillis() + delay * 1000L);
+    if(journal != null) {
+      journal.scheduled(message, message.getScheduledTime());
+    }
+    return true;
+  }
+
+  /**
+   * Looks up a sent email by its ID
+   * @param id ID of the email
+   * @return the email, or null if it does not exist
+   */
+  private EmailMessage findMessage(long id) {
+    return messages.get(id);
+  }
+
+  /**
+   * Sends a message and records its status. The sender of a delayed message is
+   * informed of the outcome by email.
+   * @param message Email message to be sent
+   */
+  private void deliver(EmailMessage message) {
+    if(journal != null) {
+      journal.attempting(message);
+    }
+    // A retry only goes to the recipients which were deferred by the previous attempt
+    List<String> recipients = new ArrayList<String>(message.getDeferredRecipients().keySet());
+    if(recipients.isEmpty()) {
+      recipients = message.getRecipients();
+    }
+    else {
+      setRecipientStatuses(message, recipients, "Pending");
+    }
+    message.clearDeferredRecipients();
+    message.attemptStarted();
+
+    boolean retrying = false;
+    try {
+      sendMail(message, recipients);
+      retrying = scheduleRetry(message);
+    }
+    finally {
+      if(!retrying) {
+        // The message is not sent again, so uploaded attachments can go
+        message.deleteAttachments();
+      }
+    }
+    if(retrying) {
+      RETRIED.increment();
+      return;
+    }
+    giveUpDeferred(message);
+    finish(message, summarizeStatus(message));
+  }
+
+  /**
+   * Records the final status of an email which is not tried again, and informs
+   * the sender of a delayed email
+   * @param message The email
+   * @param status Its final status
+   */
+  private void finish(EmailMessage message, String status) {
+    message.setStatus(status);
+    if(status.equals("Success")) {
+      DELIVERED.increment();
+    }
+    else {
+      FAILED.increment();
+    }
+    if(journal != null) {
+      journal.finished(message);
+    }
+    messages.trim();
+
+    if(message.getDelay() > 0) {
+      // The reply is sent through the sender's mail servers. If the MX lookup fails, we can't
+      // respond, so the reply's status is simply discarded.
+      EmailMessage reply = new EmailMessage(message.getFrom(), "noreply@ik2213.lab", "Your email: " + message.getSubject(), "", "The status of your email is: " + status);
+      sendMail(reply);
+    }
   }
 
   /**
-   * Pulls the SMTP code from a message (see RFC2821)
-   * @param message	A message from an SMTP server
-   * @return The numerical response code
+   * Schedules the next attempt for the deferred recipients of an email, unless the
+   * email has been retried for longer than the RetryPolicy allows
+   * @param message The email
+   * @return true if the email will be tried again, false if it has no deferred
+   * recipients or they have to be given up
    */
-  private int getCode(String message) {
-    return Integer.parseInt(message.substring(0, 3));
+  private boolean scheduleRetry(EmailMessage message) {
+    if(message.getDeferredRecipients().isEmpty()) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    // Counted from the time a delayed email was first due, not from its submission
+    long due = message.getSubmitMillis() + message.getDelay() * 1000L;
+    long delay = retryPolicy.nextDelay(message.getAttempts(), due, now);
+    if(delay < 0) {
+      return false;
+    }
+
+    message.setScheduledTime(now + delay);
+    if(journal != null) {
+      journal.scheduled(message, message.getScheduledTime());
+    }
+    scheduler.schedule(message, delay);
+    return true;
   }
 
   /**
@@ -324,8 +829,7 @@ public class SMTPClient {
 
       // Always encode space/tab characters
       else if((c == 9 || c == 32)) {
-        encoded.append('=');
-        encoded.append(toHexString(c));
+        appendHex(encoded, c);
         lineCounter += 3;
       }
 
@@ -335,8 +839,7 @@ public class SMTPClient {
       }
 
       else {
-        encoded.append('=');
-        encoded.append(toHexString(c));
+        appendHex(encoded, QuotedPrintableEncoder.toLatin9(c));
         lineCounter += 3;
       }
 
@@ -353,124 +856,73 @@ public class SMTPClient {
   }
 
   /**
-   * Converts an email message body to quoted printable (RFC2821)
-   * This is the standard for SMTP email encoding
-   * @param message Email message body to be sent
-   * @return RFC2821-compliant encoding of the message body
+   * Builds the filename parameter of a Content-Disposition header. Names which are
+   * not plain ASCII are percent-encoded in UTF-8 as described in RFC2231.
+   * @param filename Name of the attachment
+   * @return the parameter, e.g. filename="report.pdf"
    */
-  public String toQuotedPrintable(String message) {
-
-    StringBuffer encoded = new StringBuffer(message.length());
-    int lineCounter = 0;
-
-    for(int i = 0; i < message.length(); i++) {  
-      char c = message.charAt(i);
-
-      // #1: CRLF
-      if(c == '\r') {
-        if(i != message.length() - 1) {
-          if(message.charAt(i+1) == '\n') {
-            // CRLF detected
-            i++;
-            encoded.append("\r\n");
-            lineCounter = 0;
-          }
-        }
-      }
-
-      // #2: Printable ASCII chars
-      else if((c >= 33 && c <= 60) || (c >= 62 && c <= 126)) {
-        encoded.append(c);
-        lineCounter++;
-      }
-
-      // #3: Space/Tab characters
-      else if((c == 9 || c == 32)) {
-        if(i != message.length() - 1) {
-          char nextChar = message.charAt(i+1);
-          if(nextChar != '\r' && nextChar != '\n') {
-            encoded.append(c);
-            lineCounter++;
-          }
-          else {
-            // Need to encode the space/tab
-            encoded.append('=');
-            encoded.append(toHexString(c));
-            lineCounter += 3;
-          }
-        }
-      }
+  private String toFilenameParameter(String filename) {
+    boolean plain = true;
+    for(int i = 0; i < filename.length() && plain; i++) {
+      char c = filename.charAt(i);
+      plain = c >= 32 && c <= 126 && c != '"' && c != '\\';
+    }
+    if(plain) {
+      return "filename=\"" + filename + "\"";
+    }
 
-      // #4: Line breaks in the text body
-      else if(c == '\n') {
-        encoded.append("\r\n");
+    StringBuffer encoded = new StringBuffer("filename*=UTF-8''");
+    byte[] bytes;
+    try {
+      bytes = filename.getBytes("UTF-8");
+    }
+    catch(UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    for(byte b : bytes) {
+      int c = b & 0xff;
+      if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '_') {
+        encoded.append((char)c);
       }
-
       else {
-        encoded.append('=');
-        encoded.append(toHexString(c));
-        lineCounter += 3;
-      }
-
-      // #5: Max 76 chars per line, but we'll be safe and cut it off at 72
-      if(lineCounter > 70) {
-        encoded.append("=\r\n");
-        lineCounter = 0;
+        encoded.append('%');
+        encoded.append((char)QuotedPrintableEncoder.HEX[c >> 4]);
+        encoded.append((char)QuotedPrintableEncoder.HEX[c & 0xF]);
       }
     }
-
     return encoded.toString();
   }
 
   /**
-   * Converts a character to its hexadecimal representation
-   * @param c Character to convert
-   * @return Hexadecimal String representation of the character
-   */
-  private String toHexString(char c) {
-    String hexString = Integer.toHexString((int)c).toUpperCase();
-    if(hexString.length() == 1) {
-      hexString = "0" + hexString;
-    }
-    return hexString;
-  }
-
-  /**
-   * Helper method which sends a message to the mail server and returns the response
-   * @param message Message to send
-   * @return Response from the mail server
+   * Converts an email message body to quoted printable (RFC2821)
+   * This is the standard for SMTP email encoding
+   * @param message Email message body to be sent
+   * @return RFC2821-compliant encoding of the message body
    */
-  private String sendMessage(String message) {
-    String response = "";
+  public String toQuotedPrintable(String message) {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(message.length() + message.length() / 8);
     try {
-      writer.write(message);
-      writer.flush();
+      new QuotedPrintableEncoder(false).encode(message, encoded);
     }
     catch(IOException e) {
-      System.out.println("Error sending message to server: " + e.getMessage());
+      // Not thrown when writing to memory
     }
-
     try {
-      response = reader.readLine();
+      return encoded.toString("ISO-8859-1");
     }
-    catch(IOException e) {
-      System.out.println("Error receiving server response: " + e.getMessage());
+    catch(UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
     }
-
-    return response;
   }
 
   /**
-   * Helper method which sends a message to the mail server but does not check for a response
-   * @param message Message to send
+   * Appends a character in its encoded form "=XX"
+   * @param encoded Buffer to append to
+   * @param c ISO-8859-15 code of the character
    */
-  private void sendMessageWithoutResponse(String message) {
-    try {
-      writer.write(message);
-      writer.flush();
-    }
-    catch(IOException e) {
-      System.out.println("Error sending message to server: " + e.getMessage());
-    }
+  private void appendHex(StringBuffer encoded, int c) {
+    encoded.append('=');
+    encoded.append((char)QuotedPrintableEncoder.HEX[(c >> 4) & 0xF]);
+    encoded.append((char)QuotedPrintableEncoder.HEX[c & 0xF]);
   }
 }
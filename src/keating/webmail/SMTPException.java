@@ -0,0 +1,60 @@
+package keating.webmail;
+
+import java.io.IOException;
+
+/**
+ * SMTPException.java
+ *
+ * Thrown when an SMTP session cannot be established or used. The message is
+ * the delivery status which is shown to the user. Failures without a reply
+ * from the server, and 4xx replies, are transient (RFC2821 section 4.2.1), so
+ * the email is tried again later.
+ *
+ * @author Andrew Keating
+ */
+public class SMTPException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int code;
+
+  /**
+   * Constructs a new SMTPException for a failure without a reply from the server
+   * @param status Delivery status describing the failure
+   */
+  public SMTPException(String status) {
+    this(status, 0);
+  }
+
+  /**
+   * Constructs a new SMTPException for a failure reported by the server
+   * @param status Delivery status describing the failure
+   * @param code Reply code sent by the server, 0 if there was no reply
+   */
+  public SMTPException(String status, int code) {
+    super(status);
+    this.code = code;
+  }
+
+  /**
+   * @return the reply code sent by the server, 0 if there was no reply
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * @return true if the failure may go away when trying again later
+   */
+  public boolean isTransient() {
+    return code == 0 || isTransient(code);
+  }
+
+  /**
+   * @param code An SMTP reply code
+   * @return true if the code reports a transient failure (4xx)
+   */
+  public static boolean isTransient(int code) {
+    return code >= 400 && code < 500;
+  }
+}
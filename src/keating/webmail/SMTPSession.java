@@ -0,0 +1,499 @@
+package keating.webmail;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SMTPSession.java
+ *
+ * An open connection to an SMTP server which has already received the 220
+ * greeting and an EHLO (or HELO for servers which do not support ESMTP).
+ * Sessions are kept by the SMTPSessionPool so that several messages to the
+ * same server can be sent without repeating the handshake.
+ *
+ * @author Andrew Keating
+ */
+public class SMTPSession {
+
+  private static final int SMTP_PORT = Integer.getInteger("webmail.smtp.port", 25);
+  private static final int SMTP_TIMEOUT = 2000;
+  private static final long CONNECT_STAGGER = Long.getLong("webmail.smtp.stagger", 250);
+  // How long a server which could not be connected to is tried after the others
+  private static final long DOWN_MILLIS = 30000;
+  private static final int OUTPUT_BUFFER_SIZE = 8192;
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private static final Histogram CONNECT_TIME = phaseHistogram("connect");
+  private static final Histogram BANNER_TIME = phaseHistogram("banner");
+  private static final Histogram HELO_TIME = phaseHistogram("helo");
+
+  private static final ConcurrentHashMap<String, Long> downUntil = new ConcurrentHashMap<String, Long>();
+  private static final ExecutorService connector = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "webmail-smtp-connect");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private String server;
+  private String address;
+  private Socket socket;
+  private BufferedReader reader;
+  private BufferedOutputStream out;
+  private QuotedPrintableEncoder encoder;
+  private Base64Encoder base64Encoder;
+  private Set<String> extensions = new HashSet<String>();
+  private volatile int messageCount;
+  private volatile long lastUsed;
+
+  private SMTPSession(String server, String address) {
+    this.server = server;
+    this.address = address;
+    this.lastUsed = System.currentTimeMillis();
+  }
+
+  /**
+   * Connects to an SMTP server and performs the greeting and EHLO, falling back
+   * to HELO if the server does not understand EHLO
+   * @param server Host name or address of the SMTP server
+   * @return the new session
+   * @throws SMTPException If the connection or handshake fails
+   */
+  public static SMTPSession open(String server) throws SMTPException {
+    return open(server, Collections.singletonList(server));
+  }
+
+  /**
+   * Connects to the first of several candidate servers which sends its 220 greeting,
+   * then performs the EHLO. Candidates are tried in order, but if a candidate has not
+   * answered after webmail.smtp.stagger milliseconds (default 250) the next one is
+   * tried in parallel, and a candidate which fails is followed immediately by the next.
+   * Candidates which failed recently are tried last.
+   * @param server Name of the destination, used as the pool key
+   * @param candidates Addresses of the destination's servers in order of preference
+   * @return the new session
+   * @throws SMTPException If no candidate could be connected to
+   */
+  public static SMTPSession open(String server, List<String> candidates) throws SMTPException {
+    List<String> ordered = orderByHealth(candidates);
+    BlockingQueue<Attempt> results = new LinkedBlockingQueue<Attempt>();
+    AtomicBoolean claimed = new AtomicBoolean();
+    AtomicBoolean abandoned = new AtomicBoolean();
+    SMTPException error = null;
+    int started = 0;
+    int finished = 0;
+
+    startAttempt(server, ordered.get(started++), results, claimed, abandoned);
+    try {
+      while(finished < started) {
+        Attempt attempt;
+        if(started < ordered.size()) {
+          attempt = results.poll(CONNECT_STAGGER, TimeUnit.MILLISECONDS);
+          if(attempt == null) {
+            // The current candidates are slow, so start the next one alongside them
+            startAttempt(server, ordered.get(started++), results, claimed, abandoned);
+            continue;
+          }
+        }
+        else {
+          attempt = results.take();
+        }
+
+        finished++;
+        if(attempt.session != null) {
+          attempt.session.greet();
+          return attempt.session;
+        }
+        if(error == null) {
+          error = attempt.error;
+        }
+        // A failed candidate is replaced right away, even while others are still connecting
+        if(started < ordered.size()) {
+          startAttempt(server, ordered.get(started++), results, claimed, abandoned);
+        }
+      }
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      // An attempt which succeeds from now on closes its connection itself, and
+      // one which has already succeeded is closed here once its result is queued
+      abandoned.set(true);
+      claimed.set(true);
+      Attempt attempt;
+      while((attempt = results.poll()) != null) {
+        if(attempt.session != null) {
+          attempt.session.close();
+        }
+      }
+      throw new SMTPException("Connection to SMTP server interrupted");
+    }
+
+    throw error;
+  }
+
+  /**
+   * The outcome of connecting to one candidate: either a session which has received
+   * the greeting, or the reason for the failure
+   */
+  private static class Attempt {
+    SMTPSession session;
+    SMTPException error;
+  }
+
+  /**
+   * Connects to a candidate on a connector thread and reports the result. Only the first
+   * attempt to receive a 220 greeting is reported as a session; the others are closed.
+   * If the open has been abandoned by the time the session is reported, whichever of
+   * the two takes the result back out of the queue closes the session.
+   */
+  private static void startAttempt(final String server, final String address, final BlockingQueue<Attempt> results,
+      final AtomicBoolean claimed, final AtomicBoolean abandoned) {
+    connector.execute(new Runnable() {
+      public void run() {
+        Attempt attempt = new Attempt();
+        try {
+          SMTPSession session = connect(server, address);
+          downUntil.remove(address);
+          if(claimed.compareAndSet(false, true)) {
+            attempt.session = session;
+          }
+          else {
+            session.quit();
+            attempt.error = new SMTPException("Connection to SMTP server unsuccessful");
+          }
+        }
+        catch(SMTPException e) {
+          downUntil.put(address, System.currentTimeMillis() + DOWN_MILLIS);
+          attempt.error = e;
+        }
+        results.add(attempt);
+        if(attempt.session != null && abandoned.get() && results.remove(attempt)) {
+          attempt.session.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Moves candidates which failed recently to the end of the list
+   */
+  private static List<String> orderByHealth(List<String> candidates) {
+    long now = System.currentTimeMillis();
+    List<String> healthy = new ArrayList<String>();
+    List<String> down = new ArrayList<String>();
+    for(String candidate : candidates) {
+      Long until = downUntil.get(candidate);
+      if(until != null && until.longValue() > now) {
+        down.add(candidate);
+      }
+      else {
+        healthy.add(candidate);
+      }
+    }
+    healthy.addAll(down);
+    return healthy;
+  }
+
+  /**
+   * Opens a connection to one server and checks for its 220 greeting
+   * @param server Name of the destination
+   * @param address Address of the server to connect to
+   * @return a session which has received the greeting
+   * @throws SMTPException If the connection fails or the server does not send 220
+   */
+  private static SMTPSession connect(String server, String address) throws SMTPException {
+    SMTPSession session = new SMTPSession(server, address);
+
+    long start = System.nanoTime();
+    try {
+      session.socket = new Socket();
+      session.socket.connect(new InetSocketAddress(address, SMTP_PORT), SMTP_TIMEOUT);
+      CONNECT_TIME.recordSince(start);
+      start = System.nanoTime();
+      session.socket.setSoTimeout(SMTP_TIMEOUT * 5);
+      session.reader = new BufferedReader(new InputStreamReader(session.socket.getInputStream()));
+      session.out = new BufferedOutputStream(session.socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+    }
+    catch(SocketTimeoutException e) {
+      session.close();
+      throw new SMTPException("Connection to SMTP server timed out");
+    }
+    catch(IOException e1) {
+      session.close();
+      throw new SMTPException("Connection to SMTP server unsuccessful");
+    }
+
+    try {
+      // Check for 220 from server
+      int code = getCode(session.readReply());
+      BANNER_TIME.recordSince(start);
+      if(code != 220) {
+        throw new SMTPException("Connection to SMTP server unsuccessful (Error " + Integer.toString(code) + ")", code);
+      }
+    }
+    catch(SMTPException e) {
+      session.close();
+      throw e;
+    }
+    catch(IOException e) {
+      session.close();
+      throw new SMTPException("Connection to SMTP server unsuccessful");
+    }
+
+    return session;
+  }
+
+  /**
+   * Sends EHLO (or HELO) on a session which has received the greeting
+   * @throws SMTPException If the server rejects both
+   */
+  private void greet() throws SMTPException {
+    long start = System.nanoTime();
+    try {
+      // Client opens connection to server and server responds with opening message.
+      // EHLO also returns the extensions supported by the server (RFC2821 section 4.1.1.1)
+      String ehloResponse = sendCommand("EHLO test.domain\r\n");
+      int code = getCode(ehloResponse);
+      if(code == 250) {
+        parseExtensions(ehloResponse);
+      }
+      else {
+        code = getCode(sendCommand("HELO test.domain\r\n"));
+      }
+      HELO_TIME.recordSince(start);
+      if(code != 250) {
+        throw new SMTPException("Connection to SMTP server unsuccessful (Error " + Integer.toString(code) + ")", code);
+      }
+    }
+    catch(SMTPException e) {
+      close();
+      throw e;
+    }
+    catch(IOException e) {
+      close();
+      throw new SMTPException("Connection to SMTP server unsuccessful");
+    }
+  }
+
+  /**
+   * Records the extension keywords of an EHLO reply. The first line is the
+   * server's greeting, every following line starts with a keyword.
+   * @param ehloResponse The multi-line reply to EHLO
+   */
+  private void parseExtensions(String ehloResponse) {
+    String[] lines = ehloResponse.split("\n");
+    for(int i = 1; i < lines.length; i++) {
+      if(lines[i].length() > 4) {
+        String keyword = lines[i].substring(4).trim();
+        int space = keyword.indexOf(' ');
+        if(space > 0) {
+          keyword = keyword.substring(0, space);
+        }
+        extensions.add(keyword.toUpperCase());
+      }
+    }
+  }
+
+  /**
+   * @return true if the server advertised PIPELINING (RFC2920), so that several
+   * commands may be sent before reading their replies
+   */
+  public boolean supportsPipelining() {
+    return extensions.contains("PIPELINING");
+  }
+
+  /**
+   * Looks up the histogram of the time spent in one phase of an SMTP session
+   * @param phase Name of the phase, e.g. "connect" or "rcpt"
+   * @return the histogram
+   */
+  static Histogram phaseHistogram(String phase) {
+    return Metrics.getInstance().histogram("webmail_smtp_phase_seconds",
+        "Time spent waiting in each phase of an SMTP session", "phase=" + Metrics.quote(phase));
+  }
+
+  /**
+   * Pulls the SMTP code from a reply (see RFC2821)
+   * @param reply A reply from an SMTP server
+   * @return The numerical response code, or -1 if the reply is malformed
+   */
+  public static int getCode(String reply) {
+    try {
+      return Integer.parseInt(reply.substring(0, 3));
+    }
+    catch(RuntimeException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Sends a command to the mail server and returns the reply
+   * @param command Command to send, including the trailing CRLF
+   * @return Reply from the mail server
+   * @throws IOException If the connection fails
+   */
+  public String sendCommand(String command) throws IOException {
+    write(command);
+    flush();
+    return readReply();
+  }
+
+  /**
+   * Sends data to the mail server without waiting for a reply
+   * @param data Data to send
+   * @throws IOException If the connection fails
+   */
+  public void write(String data) throws IOException {
+    out.write(data.getBytes(ISO_8859_1));
+  }
+
+  /**
+   * Sends a message body in quoted-printable form, dot stuffed for the DATA command,
+   * without waiting for a reply. The body is encoded straight into the output
+   * buffer of the session.
+   * @param text Message body to send
+   * @throws IOException If the connection fails
+   */
+  public void writeQuotedPrintable(CharSequence text) throws IOException {
+    if(encoder == null) {
+      encoder = new QuotedPrintableEncoder(true);
+    }
+    encoder.encode(text, out);
+  }
+
+  /**
+   * Sends an attachment in base64 form without waiting for a reply. The contents
+   * are encoded in fixed-size chunks straight into the output buffer of the
+   * session, so an attachment of any size takes the same memory.
+   * @param in Stream over the attachment, which is read to its end
+   * @throws IOException If the attachment cannot be read or the connection fails
+   */
+  public void writeBase64(InputStream in) throws IOException {
+    if(base64Encoder == null) {
+      base64Encoder = new Base64Encoder();
+    }
+    base64Encoder.encode(in, out);
+  }
+
+  /**
+   * Flushes any data written with write()
+   * @throws IOException If the connection fails
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Reads a complete, possibly multi-line, reply from the server. The lines of
+   * a multi-line reply are joined with newlines.
+   * @return Reply from the mail server
+   * @throws IOException If the connection fails or is closed by the server
+   */
+  public String readReply() throws IOException {
+    StringBuffer reply = new StringBuffer();
+    String line;
+    do {
+      line = reader.readLine();
+      if(line == null) {
+        throw new IOException("Connection closed by SMTP server");
+      }
+      if(reply.length() > 0) {
+        reply.append('\n');
+      }
+      reply.append(line);
+    }
+    // "250-" marks a continuation line, "250 " the last line of the reply
+    while(line.length() > 3 && line.charAt(3) == '-');
+
+    return reply.toString();
+  }
+
+  /**
+   * Resets the session before a new transaction (RSET), which also checks
+   * that the connection is still alive
+   * @return true if the server accepted the reset
+   */
+  public boolean reset() {
+    try {
+      return getCode(sendCommand("RSET\r\n")) == 250;
+    }
+    catch(IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Politely ends the session with QUIT and closes the connection
+   */
+  public void quit() {
+    try {
+      sendCommand("QUIT\r\n");
+    }
+    catch(IOException e) {
+      // The connection is being closed anyway
+    }
+    close();
+  }
+
+  /**
+   * Closes the streams and socket without sending QUIT
+   */
+  public void close() {
+    try {
+      if(reader != null) reader.close();
+      if(out != null) out.close();
+      if(socket != null) socket.close();
+    }
+    catch(IOException e) {
+      System.out.println("Error closing stream/socket: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Records that a transaction has been completed on this session
+   */
+  public void transactionCompleted() {
+    messageCount++;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  public String getServer() {
+    return server;
+  }
+
+  /**
+   * @return the address of the server this session is connected to
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  public long getLastUsed() {
+    return lastUsed;
+  }
+}
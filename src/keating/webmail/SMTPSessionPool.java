@@ -0,0 +1,166 @@
+package keating.webmail;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * SMTPSessionPool.java
+ *
+ * Keeps idle SMTP sessions open per destination server, so that repeated sends
+ * to the same server skip the connect, greeting and HELO. A session is checked
+ * with RSET before it is reused and is closed once it has been idle too long,
+ * has carried too many messages, or has failed.
+ *
+ * Configured with the system properties webmail.smtp.pool.idle (maximum idle
+ * time in milliseconds), webmail.smtp.pool.messages (maximum messages per
+ * session) and webmail.smtp.pool.size (maximum idle sessions per server).
+ *
+ * @author Andrew Keating
+ */
+public class SMTPSessionPool {
+
+  private static final int DEFAULT_MAX_IDLE_MILLIS = 30000;
+  private static final int DEFAULT_MAX_MESSAGES = 100;
+  private static final int DEFAULT_MAX_IDLE_SESSIONS = 4;
+
+  private final ConcurrentHashMap<String, Deque<SMTPSession>> idle = new ConcurrentHashMap<String, Deque<SMTPSession>>();
+  private final long maxIdleMillis;
+  private final int maxMessages;
+  private final int maxIdleSessions;
+
+  /**
+   * Constructs a new SMTPSessionPool configured from the system properties
+   */
+  public SMTPSessionPool() {
+    this(Integer.getInteger("webmail.smtp.pool.idle", DEFAULT_MAX_IDLE_MILLIS),
+        Integer.getInteger("webmail.smtp.pool.messages", DEFAULT_MAX_MESSAGES),
+        Integer.getInteger("webmail.smtp.pool.size", DEFAULT_MAX_IDLE_SESSIONS));
+  }
+
+  /**
+   * Constructs a new SMTPSessionPool and starts the thread which closes expired sessions
+   * @param maxIdleMillis Maximum time a session may stay idle
+   * @param maxMessages Maximum number of messages sent over one session
+   * @param maxIdleSessions Maximum number of idle sessions kept per server
+   */
+  public SMTPSessionPool(long maxIdleMillis, int maxMessages, int maxIdleSessions) {
+    this.maxIdleMillis = maxIdleMillis;
+    this.maxMessages = maxMessages;
+    this.maxIdleSessions = maxIdleSessions;
+
+    Thread evictor = new Thread(new Runnable() {
+      public void run() {
+        while(true) {
+          try {
+            Thread.sleep(Math.max(1000, SMTPSessionPool.this.maxIdleMillis / 2));
+          }
+          catch(InterruptedException e) {
+            return;
+          }
+          evictExpired();
+        }
+      }
+    }, "webmail-smtp-pool");
+    evictor.setDaemon(true);
+    evictor.start();
+  }
+
+  /**
+   * Takes a ready session to a server, reusing an idle one if possible
+   * @param server Host name or address of the SMTP server
+   * @return a session on which a new transaction can be started
+   * @throws SMTPException If a new session cannot be opened
+   */
+  public SMTPSession borrow(String server) throws SMTPException {
+    return borrow(server, Collections.singletonList(server));
+  }
+
+  /**
+   * Takes a ready session to a destination, reusing an idle one if possible
+   * @param server Name of the destination, under which sessions are pooled
+   * @param candidates Addresses of the destination's servers in order of preference,
+   * used if a new session has to be opened
+   * @return a session on which a new transaction can be started
+   * @throws SMTPException If a new session cannot be opened
+   */
+  public SMTPSession borrow(String server, List<String> candidates) throws SMTPException {
+    Deque<SMTPSession> sessions = idle.get(server);
+    if(sessions != null) {
+      SMTPSession session;
+      while((session = sessions.pollFirst()) != null) {
+        if(isExpired(session, System.currentTimeMillis())) {
+          session.quit();
+        }
+        // RSET both clears any leftover transaction state and proves the connection is alive
+        else if(session.reset()) {
+          return session;
+        }
+        else {
+          session.close();
+        }
+      }
+    }
+
+    return SMTPSession.open(server, candidates);
+  }
+
+  /**
+   * Returns a session to the pool after a transaction
+   * @param session The session
+   * @param reusable false if the session failed and must be closed
+   */
+  public void release(SMTPSession session, boolean reusable) {
+    if(!reusable) {
+      session.close();
+      return;
+    }
+    if(session.getMessageCount() >= maxMessages) {
+      session.quit();
+      return;
+    }
+
+    Deque<SMTPSession> sessions = idle.get(session.getServer());
+    if(sessions == null) {
+      Deque<SMTPSession> created = new ConcurrentLinkedDeque<SMTPSession>();
+      sessions = idle.putIfAbsent(session.getServer(), created);
+      if(sessions == null) {
+        sessions = created;
+      }
+    }
+
+    // Most recently used sessions are taken first, so surplus sessions age out
+    sessions.offerFirst(session);
+    while(sessions.size() > maxIdleSessions) {
+      SMTPSession surplus = sessions.pollLast();
+      if(surplus == null) {
+        break;
+      }
+      surplus.quit();
+    }
+  }
+
+  /**
+   * Closes all sessions which have been idle for too long
+   */
+  private void evictExpired() {
+    long now = System.currentTimeMillis();
+    for(Deque<SMTPSession> sessions : idle.values()) {
+      Iterator<SMTPSession> it = sessions.iterator();
+      while(it.hasNext()) {
+        SMTPSession session = it.next();
+        // Only the thread which manages to remove the session may close it
+        if(isExpired(session, now) && sessions.remove(session)) {
+          session.quit();
+        }
+      }
+    }
+  }
+
+  private boolean isExpired(SMTPSession session, long now) {
+    return now - session.getLastUsed() > maxIdleMillis || session.getMessageCount() >= maxMessages;
+  }
+}
@@ -0,0 +1,361 @@
+package keating.webmail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * StaticFileCache.java
+ *
+ * Keeps the static pages of the web server in memory as ready-to-send bytes,
+ * together with the ETag and Last-Modified validators used to answer
+ * conditional requests (RFC2616 section 14.26 and 14.25). All files of the
+ * directory are loaded at startup, and a WatchService drops an entry as soon
+ * as its file changes, so it is read again on the next request. Entries are
+ * kept under the name of the file, however the request wrote its path, so that
+ * "./form.html" finds the same entry as "form.html" and is invalidated with it.
+ * Files in subdirectories are not watched, so they are read from disk on every
+ * request.
+ *
+ * The cache is bounded by the system properties webmail.cache.size (total
+ * bytes, default 16 MB) and webmail.cache.maxFileSize (bytes per file, default
+ * 1 MB). Files which do not fit are described without their contents and are
+ * sent straight from disk when they are served.
+ *
+ * @author Andrew Keating
+ */
+public class StaticFileCache {
+
+  private static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+  private static final long DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final Map<String, String> contentTypes = new HashMap<String, String>();
+
+  static {
+    contentTypes.put("html", "text/html;charset=utf-8");
+    contentTypes.put("htm", "text/html;charset=utf-8");
+    contentTypes.put("txt", "text/plain;charset=utf-8");
+    contentTypes.put("css", "text/css;charset=utf-8");
+    contentTypes.put("js", "application/javascript;charset=utf-8");
+    contentTypes.put("json", "application/json");
+    contentTypes.put("xml", "application/xml");
+    contentTypes.put("png", "image/png");
+    contentTypes.put("gif", "image/gif");
+    contentTypes.put("jpg", "image/jpeg");
+    contentTypes.put("jpeg", "image/jpeg");
+    contentTypes.put("svg", "image/svg+xml");
+    contentTypes.put("ico", "image/x-icon");
+    contentTypes.put("pdf", "application/pdf");
+    contentTypes.put("zip", "application/zip");
+    contentTypes.put("woff", "font/woff");
+    contentTypes.put("woff2", "font/woff2");
+  }
+
+  private final File root;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final AtomicLong size = new AtomicLong();
+  private final long maxBytes;
+  private final long maxFileBytes;
+
+  /**
+   * A static file, with its contents if they fit into the cache
+   */
+  public static class Entry {
+    private final File file;
+    private final byte[] body;
+    private final long length;
+    private final long lastModified;
+    private final String etag;
+    private final String contentType;
+
+    Entry(File file, byte[] body, long length, long lastModified, String etag) {
+      this.file = file;
+      this.body = body;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.etag = etag;
+      this.contentType = StaticFileCache.getContentType(file.getName());
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return the contents of the file, or null if the file is too large to be cached
+     */
+    public byte[] getBody() {
+      return body;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return the modification time in the form used by the Last-Modified header
+     */
+    public String getLastModifiedHeader() {
+      return formatDate(lastModified);
+    }
+
+    /**
+     * Checks the validators of a conditional GET. If-None-Match takes precedence
+     * over If-Modified-Since when both are present.
+     * @param ifNoneMatch Value of the If-None-Match header, or null
+     * @param ifModifiedSince Value of the If-Modified-Since header, or null
+     * @return true if the client's copy is current and 304 Not Modified can be sent
+     */
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+      if(ifNoneMatch != null) {
+        StringTokenizer tokenizer = new StringTokenizer(ifNoneMatch, ", ");
+        while(tokenizer.hasMoreTokens()) {
+          String tag = tokenizer.nextToken();
+          // A weak comparison is enough for GET
+          if(tag.startsWith("W/")) {
+            tag = tag.substring(2);
+          }
+          if(tag.equals("*") || tag.equals(etag)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if(ifModifiedSince != null) {
+        long since = parseDate(ifModifiedSince);
+        // HTTP dates only have a precision of one second
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Constructs a new StaticFileCache configured from the system properties
+   * @param root Directory containing the static files
+   * @throws IOException If the directory cannot be read
+   */
+  public StaticFileCache(File root) throws IOException {
+    this(root, Long.getLong("webmail.cache.size", DEFAULT_MAX_BYTES), Long.getLong("webmail.cache.maxFileSize", DEFAULT_MAX_FILE_BYTES));
+  }
+
+  /**
+   * Constructs a new StaticFileCache, loads the files of the directory and starts
+   * watching it for changes
+   * @param root Directory containing the static files
+   * @param maxBytes Maximum total size of the cached files
+   * @param maxFileBytes Maximum size of a single cached file
+   * @throws IOException If the directory cannot be read
+   */
+  public StaticFileCache(File root, long maxBytes, long maxFileBytes) throws IOException {
+    this.root = root.getCanonicalFile();
+    this.maxBytes = maxBytes;
+    this.maxFileBytes = maxFileBytes;
+
+    File[] files = this.root.listFiles();
+    if(files == null) {
+      throw new IOException("Cannot read directory " + root);
+    }
+    for(File file : files) {
+      if(file.isFile()) {
+        get(file.getName());
+      }
+    }
+
+    startWatcher();
+  }
+
+  /**
+   * Returns a file if it is currently cached, without touching the disk
+   * @param path Path of the file relative to the directory, e.g. "form.html"
+   * @return the cached file, or null if it has to be loaded with get(), which is
+   * also the case for a path which is not written as the plain file name
+   */
+  public Entry getIfCached(String path) {
+    return entries.get(path);
+  }
+
+  /**
+   * Returns a file, loading it into the cache if necessary
+   * @param path Path of the file relative to the directory, e.g. "form.html"
+   * @return the file, or null if it does not exist or is outside the directory
+   * @throws IOException If the file cannot be read
+   */
+  public Entry get(String path) throws IOException {
+    Entry entry = entries.get(path);
+    if(entry != null) {
+      return entry;
+    }
+
+    File file = new File(root, path).getCanonicalFile();
+    // Refuse paths such as "../" which lead out of the directory
+    if(!file.getPath().startsWith(root.getPath() + File.separator) || !file.isFile()) {
+      return null;
+    }
+
+    // Only the files the WatchService reports on are cached, by their name
+    String name = file.getName();
+    boolean watched = file.getParentFile().equals(root);
+    if(watched) {
+      entry = entries.get(name);
+      if(entry != null) {
+        return entry;
+      }
+    }
+
+    long lastModified = file.lastModified();
+    long length = file.length();
+    if(!watched || length > maxFileBytes || size.get() + length > maxBytes) {
+      return new Entry(file, null, length, lastModified, "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"");
+    }
+
+    byte[] body = Files.readAllBytes(file.toPath());
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    entry = new Entry(file, body, body.length, lastModified, "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"");
+
+    Entry existing = entries.putIfAbsent(name, entry);
+    if(existing != null) {
+      return existing;
+    }
+    size.addAndGet(body.length);
+    return entry;
+  }
+
+  /**
+   * Drops a file from the cache, so that it is read from disk on the next request.
+   * Callers which modify a file themselves should call this right away instead of
+   * waiting for the WatchService.
+   * @param name Name of the file in the directory
+   */
+  public void invalidate(String name) {
+    Entry entry = entries.remove(name);
+    if(entry != null) {
+      size.addAndGet(-entry.getLength());
+    }
+  }
+
+  /**
+   * @return the total size of the cached files in bytes
+   */
+  public long size() {
+    return size.get();
+  }
+
+  /**
+   * Starts the thread which drops files from the cache when they change on disk
+   */
+  private void startWatcher() throws IOException {
+    final WatchService watcher = FileSystems.getDefault().newWatchService();
+    root.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        while(true) {
+          WatchKey key;
+          try {
+            key = watcher.take();
+          }
+          catch(InterruptedException e) {
+            return;
+          }
+          catch(ClosedWatchServiceException e) {
+            return;
+          }
+
+          for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              // Events were lost, so nothing in the cache can be trusted
+              for(String path : entries.keySet()) {
+                invalidate(path);
+              }
+            }
+            else {
+              invalidate(((Path)event.context()).toString());
+            }
+          }
+          if(!key.reset()) {
+            System.out.println("Stopped watching " + root + " for changes");
+            return;
+          }
+        }
+      }
+    }, "webmail-static-watch");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Determines the Content-Type of a file from its extension
+   * @param name Name of the file
+   * @return the media type, application/octet-stream if the extension is unknown
+   */
+  public static String getContentType(String name) {
+    int dot = name.lastIndexOf('.');
+    if(dot < 0) {
+      return DEFAULT_CONTENT_TYPE;
+    }
+    String contentType = contentTypes.get(name.substring(dot + 1).toLowerCase());
+    return contentType != null ? contentType : DEFAULT_CONTENT_TYPE;
+  }
+
+  /**
+   * Formats a time as an HTTP date (RFC1123)
+   * @param time Milliseconds since the epoch
+   * @return the formatted date
+   */
+  public static String formatDate(long time) {
+    return httpDateFormat().format(new Date(time));
+  }
+
+  /**
+   * Parses an HTTP date (RFC1123)
+   * @param date The formatted date
+   * @return milliseconds since the epoch, or -1 if the date is malformed
+   */
+  public static long parseDate(String date) {
+    try {
+      return httpDateFormat().parse(date.trim()).getTime();
+    }
+    catch(ParseException e) {
+      return -1;
+    }
+  }
+
+  private static SimpleDateFormat httpDateFormat() {
+    SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return sdf;
+  }
+}
@@ -0,0 +1,167 @@
+package keating.webmail;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StatusApi.java
+ *
+ * Renders the delivery status of emails as JSON, for the /api/messages
+ * endpoint and the events of the /api/events stream. Emails are listed newest
+ * first, a page at a time: every page ends with the cursor of the next one. The
+ * listing also carries the sequence number of the latest change in the
+ * MessageStore, from which a client can follow the event stream without
+ * missing a change made while it was loading the list.
+ *
+ * @author Andrew Keating
+ */
+public class StatusApi {
+
+  private static final int MAX_LIMIT = 1000;
+
+  private final int defaultLimit;
+
+  /**
+   * Constructs a new StatusApi
+   * @param defaultLimit Number of emails listed if the request does not say
+   */
+  public StatusApi(int defaultLimit) {
+    this.defaultLimit = defaultLimit;
+  }
+
+  /**
+   * @return the number of emails listed if the request does not say
+   */
+  public int getDefaultLimit() {
+    return defaultLimit;
+  }
+
+  /**
+   * Lists one page of emails
+   * @param messages The store of emails
+   * @param before Only emails with a lower ID are listed, 0 to start with the newest email
+   * @param limit Maximum number of emails listed
+   * @return a JSON object with the emails, the cursor of the next page ("next",
+   * null on the last page) and the latest change ("sequence")
+   */
+  public String renderList(MessageStore messages, long before, int limit) {
+    limit = Math.max(1, Math.min(limit, MAX_LIMIT));
+    // Read before the emails, so that changes made while listing are sent as events
+    long sequence = messages.getChangeSequence();
+
+    StringBuffer json = new StringBuffer(64 + limit * 256);
+    json.append("{\"sequence\":" + sequence + ",\"messages\":[");
+    int count = 0;
+    long last = 0;
+    boolean more = false;
+    for(EmailMessage message : messages.getNewestFirstBefore(before)) {
+      if(count == limit) {
+        more = true;
+        break;
+      }
+      if(count > 0) {
+        json.append(',');
+      }
+      appendMessage(json, message);
+      last = message.getId();
+      count++;
+    }
+    json.append("],\"next\":");
+    json.append(more ? Long.toString(last) : "null");
+    json.append('}');
+    return json.toString();
+  }
+
+  /**
+   * Renders the events of the emails which changed after a given change
+   * @param messages The store of emails
+   * @param sequence Sequence number of the last change already sent
+   * @param events Buffer to which the events are appended
+   * @return the sequence number of the last change appended, which is the given
+   * one if nothing has changed
+   */
+  public long renderEvents(MessageStore messages, long sequence, StringBuffer events) {
+    for(Map.Entry<Long, EmailMessage> change : messages.getChangesAfter(sequence).entrySet()) {
+      sequence = change.getKey();
+      events.append("id: " + sequence + "\n");
+      events.append("event: message\n");
+      events.append("data: ");
+      appendMessage(events, change.getValue());
+      events.append("\n\n");
+    }
+    return sequence;
+  }
+
+  /**
+   * Appends the JSON object describing an email
+   */
+  private void appendMessage(StringBuffer json, EmailMessage message) {
+    json.append("{\"id\":" + message.getId());
+    json.append(",\"from\":");
+    appendString(json, message.getFrom());
+    json.append(",\"subject\":");
+    appendString(json, message.getSubject());
+    json.append(",\"status\":");
+    appendString(json, message.getStatus());
+    json.append(",\"submitTime\":");
+    appendString(json, message.getSubmitTime());
+    json.append(",\"deliveryTime\":");
+    appendString(json, message.getDeliveryTime());
+    json.append(",\"recipients\":[");
+    List<String> recipients = message.getRecipients();
+    for(int i = 0; i < recipients.size(); i++) {
+      if(i > 0) {
+        json.append(',');
+      }
+      json.append("{\"address\":");
+      appendString(json, recipients.get(i));
+      json.append(",\"status\":");
+      appendString(json, message.getRecipientStatus(recipients.get(i)));
+      json.append('}');
+    }
+    json.append("]}");
+  }
+
+  /**
+   * Appends a JSON string, or null
+   */
+  private static void appendString(StringBuffer json, String value) {
+    if(value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch(c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if(c < 0x20) {
+            json.append("\\u");
+            json.append((char)QuotedPrintableEncoder.HEX[(c >> 12) & 0xF]);
+            json.append((char)QuotedPrintableEncoder.HEX[(c >> 8) & 0xF]);
+            json.append((char)QuotedPrintableEncoder.HEX[(c >> 4) & 0xF]);
+            json.append((char)QuotedPrintableEncoder.HEX[c & 0xF]);
+          }
+          else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+}
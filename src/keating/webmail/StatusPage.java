@@ -0,0 +1,242 @@
+package keating.webmail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StatusPage.java
+ *
+ * Renders the status page in memory, newest emails first and split into pages.
+ * The HTML of every table row is cached together with the version of its
+ * email, so a row is only rebuilt after the email has changed. Every field of
+ * an email is HTML-escaped, as addresses, subjects and the replies of remote
+ * SMTP servers in the statuses all come from outside.
+ *
+ * The page size defaults to the system property webmail.status.pageSize
+ * (default 50).
+ *
+ * @author Andrew Keating
+ */
+public class StatusPage {
+
+  private static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  private final ConcurrentHashMap<Long, Row> rows = new ConcurrentHashMap<Long, Row>();
+  private final int defaultPageSize;
+
+  /**
+   * A rendered table row and the version of the email it was rendered from
+   */
+  private static class Row {
+    final long version;
+    final String html;
+
+    Row(long version, String html) {
+      this.version = version;
+      this.html = html;
+    }
+  }
+
+  /**
+   * Constructs a new StatusPage configured from the system properties
+   */
+  public StatusPage() {
+    this(Integer.getInteger("webmail.status.pageSize", DEFAULT_PAGE_SIZE));
+  }
+
+  /**
+   * Constructs a new StatusPage
+   * @param defaultPageSize Number of emails shown per page if the request does not say
+   */
+  public StatusPage(int defaultPageSize) {
+    this.defaultPageSize = defaultPageSize;
+  }
+
+  /**
+   * @return the number of emails shown per page if the request does not say
+   */
+  public int getDefaultPageSize() {
+    return defaultPageSize;
+  }
+
+  /**
+   * Renders one page of the status table
+   * @param messages All emails, as returned by SMTPClient.getMessages()
+   * @param page Page to show, starting at 1 with the newest emails
+   * @param size Number of emails per page
+   * @param since Only emails with a higher ID are shown, 0 for all emails
+   * @return the HTML of the page
+   */
+  public String render(MessageStore messages, int page, int size, long since) {
+    size = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+    page = Math.max(1, page);
+
+    // The store can be read while emails are added and evicted, so the page
+    // may be off by the emails which changed while it was selected
+    int total = messages.countAfter(since);
+    int pages = Math.max(1, (total + size - 1) / size);
+    page = Math.min(page, pages);
+
+    List<EmailMessage> selected = new ArrayList<EmailMessage>(size);
+    int skip = (page - 1) * size;
+    for(EmailMessage message : messages.getNewestFirst(since)) {
+      if(skip-- > 0) {
+        continue;
+      }
+      selected.add(message);
+      if(selected.size() == size) {
+        break;
+      }
+    }
+
+    StringBuffer statusEntry = new StringBuffer(256 + selected.size() * 256);
+    statusEntry.append("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html;charset=utf-8\" /><title>Status Page</title></head><body>");
+    statusEntry.append("<a href=\"form.html\">Back</a> <a href=\"" + link(page, size, since) + "\">Refresh</a>");
+    if(page > 1) {
+      statusEntry.append(" <a href=\"" + link(page - 1, size, since) + "\">Newer</a>");
+    }
+    if(page < pages) {
+      statusEntry.append(" <a href=\"" + link(page + 1, size, since) + "\">Older</a>");
+    }
+    statusEntry.append(" Page " + page + " of " + pages + "<br />");
+    statusEntry.append("<table border=\"1\" empty-cells=\"show\"><tr><td>To</td><td>From</td><td>Subject</td><td>Status</td><td>Submitted Time</td><td>Delivered Time</td></tr>");
+    for(EmailMessage message : selected) {
+      statusEntry.append(getRow(message));
+    }
+    statusEntry.append("</table></body></html>");
+
+    return statusEntry.toString();
+  }
+
+  /**
+   * Forgets the cached row of an email which is no longer shown
+   * @param id ID of the email
+   */
+  public void remove(long id) {
+    rows.remove(id);
+  }
+
+  /**
+   * Returns the HTML of an email's row, rendering it again only if the email changed
+   */
+  private String getRow(EmailMessage message) {
+    // Read the version before the fields, so that a change made while rendering
+    // leaves the row out of date and it is rendered again next time
+    long version = message.getVersion();
+    Row row = rows.get(message.getId());
+    if(row == null || row.version != version) {
+      row = new Row(version, renderRow(message));
+      rows.put(message.getId(), row);
+    }
+    return row.html;
+  }
+
+  /**
+   * Renders the table row of an email
+   */
+  private String renderRow(EmailMessage message) {
+    StringBuffer statusEntry = new StringBuffer(256);
+    statusEntry.append("<tr id=\"message-" + message.getId() + "\">");
+    statusEntry.append("<td>");
+    List<String> recipients = message.getRecipients();
+    if(recipients.size() == 1) {
+      statusEntry.append(escapeHtml(message.getTo()) + "</td> ");
+    }
+    else {
+      // Show the status of each recipient of a message with several recipients
+      for(String recipient : recipients) {
+        statusEntry.append(escapeHtml(recipient) + " (" + escapeHtml(message.getRecipientStatus(recipient)) + ")<br />");
+      }
+      statusEntry.append("</td> ");
+    }
+    statusEntry.append("<td>");
+    statusEntry.append(escapeHtml(message.getFrom()) + "</td> ");
+    statusEntry.append("<td>");
+    statusEntry.append(escapeHtml(message.getSubject()) + "</td> ");
+    statusEntry.append("<td>");
+    String status = message.getStatus();
+    if(recipients.size() == 1 && status.equals("Pending")) {
+      // The only recipient's status says why an email waiting for another attempt is still pending
+      String recipientStatus = message.getRecipientStatus(recipients.get(0));
+      statusEntry.append(escapeHtml(recipientStatus.startsWith("Retrying") ? recipientStatus : status) + "</td> ");
+    }
+    else {
+      statusEntry.append(escapeHtml(status) + "</td> ");
+    }
+    statusEntry.append("<td>");
+    statusEntry.append(escapeHtml(message.getSubmitTime()) + "</td> ");
+    statusEntry.append("<td>");
+    if(status.equals("Pending")) {
+      statusEntry.append("Pending</td>");
+    }
+    else if(message.getDeliveryTime() == null) {
+      statusEntry.append("Failed</td>");
+    }
+    else {
+      statusEntry.append(escapeHtml(message.getDeliveryTime()) + "</td>");
+    }
+    statusEntry.append("</tr>\n");
+    return statusEntry.toString();
+  }
+
+  /**
+   * Escapes the characters which have a meaning in HTML text and attribute values
+   * @param text The text, or null
+   * @return the text safe to put into HTML, "null" for null like plain concatenation
+   */
+  static String escapeHtml(String text) {
+    if(text == null) {
+      return "null";
+    }
+    StringBuffer escaped = null;
+    for(int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      String entity;
+      switch(c) {
+        case '&':
+          entity = "&amp;";
+          break;
+        case '<':
+          entity = "&lt;";
+          break;
+        case '>':
+          entity = "&gt;";
+          break;
+        case '"':
+          entity = "&quot;";
+          break;
+        case '\'':
+          entity = "&#39;";
+          break;
+        default:
+          if(escaped != null) {
+            escaped.append(c);
+          }
+          continue;
+      }
+      if(escaped == null) {
+        // Most fields have nothing to escape and are returned as they are
+        escaped = new StringBuffer(text.length() + 16);
+        escaped.append(text, 0, i);
+      }
+      escaped.append(entity);
+    }
+    return escaped == null ? text : escaped.toString();
+  }
+
+  /**
+   * Builds the address of a page of the status page
+   */
+  private String link(int page, int size, long since) {
+    StringBuffer link = new StringBuffer("status.html?page=" + page);
+    if(size != defaultPageSize) {
+      link.append("&amp;size=" + size);
+    }
+    if(since > 0) {
+      link.append("&amp;since=" + since);
+    }
+    return link.toString();
+  }
+}
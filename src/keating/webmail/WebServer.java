@@ -1,25 +1,45 @@
 package keating.webmail;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.InterruptedIOException;
-import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * WebServer.java
  * 
- * Barebones single-threaded HTTP server to handle the webmail form. For
- * simplicity, all connections are non-persistent.
+ * Barebones multi-threaded HTTP server to handle the webmail form. Each
+ * connection is handled by a configurable executor. Connections are persistent
+ * (HTTP/1.1 keep-alive), so a browser can load the form, post it and follow the
+ * redirect to the status page over a single connection.
+ *
+ * Besides the HTML status page, the delivery status is available as JSON at
+ * /api/messages, and /api/events streams the changes as Server-Sent Events.
+ * The application's metrics are served at /metrics in the Prometheus text
+ * format.
  *  
  * The WebServer also serves as the entry point to the application
  * 
@@ -28,82 +48,533 @@ import java.util.StringTokenizer;
 
 public class WebServer {
 
-  private ServerSocket server;
-  private Socket socket;
-  private BufferedReader reader;
-  private BufferedWriter writer;
+  private ServerSocketChannel server;
+  private int port;
+  private ExecutorService executor;
+  private final LongAdder connectionCount = Metrics.getInstance().counter("webmail_http_connections_total",
+      "HTTP connections handled", "");
+  private final Object pageLock = new Object();
+  private final StatusPage statusPage = new StatusPage();
+  private final StatusApi statusApi = new StatusApi(statusPage.getDefaultPageSize());
+  private final AtomicInteger eventStreams = new AtomicInteger();
+  private StaticFileCache staticFiles;
+  // The webmail form is submitted in ISO-8859-15 (accept-charset of form.html)
+  private final FormParser formParser = new FormParser("ISO-8859-15");
+
+  private static final int DEFAULT_THREADS_PER_CORE = 8;
+  private static final int CONNECTION_BACKLOG = 1024;
+  static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("webmail.http.keepAliveTimeout", 5000);
+  static final int MAX_REQUESTS = Integer.getInteger("webmail.http.maxRequests", 100);
+  private static final boolean NIO = System.getProperty("webmail.server", "blocking").equals("nio");
+  private static final boolean REUSE_PORT = Boolean.getBoolean("webmail.nio.reusePort");
+  // Every event stream holds a thread of the executor for as long as it is open
+  private static final int MAX_EVENT_STREAMS = Integer.getInteger("webmail.events.maxClients", 64);
+  private static final long EVENT_HEARTBEAT = Long.getLong("webmail.events.heartbeat", 15000);
+  // Seconds after which a client turned away because the delivery queue is overloaded may try again
+  private static final int OVERLOAD_RETRY_AFTER = Integer.getInteger("webmail.queue.retryAfter", 5);
+  // Largest body read and thrown away before a submission is turned away because the queue is overloaded
+  private static final int OVERLOAD_DRAIN_LIMIT = Integer.getInteger("webmail.queue.drainLimit", 1024 * 1024);
 
   /**
-   * Constructs a new WebServer on the specified port and listens for requests
+   * Constructs a new WebServer on the specified port and listens for requests.
+   * Connections are handled by the executor selected with the webmail.executor
+   * system property (see createExecutor)
    * @param port Numerical port (<= 65535)
    */
   public WebServer(int port) {
+    this(port, createExecutor());
+  }
+
+  /**
+   * Constructs a new WebServer on the specified port which hands every accepted
+   * connection to the given executor
+   * @param port Numerical port (<= 65535)
+   * @param executor Executor used to handle client connections
+   */
+  public WebServer(int port, ExecutorService executor) {
+    this.executor = executor;
+    this.port = port;
     try {
-      server = new ServerSocket(port);
+      // The server socket is opened through a channel so that accepted sockets have
+      // a channel, which static files are sent to with FileChannel.transferTo
+      server = openServerSocket(port, NIO && REUSE_PORT);
+      staticFiles = new StaticFileCache(new File("../html"));
     }
     catch(IOException e) {
       throw new IllegalArgumentException(e.getMessage());
     }
+
+    // Cached status rows of evicted emails are no longer needed
+    SMTPClient.getInstance().getMessages().addEvictionListener(new MessageStore.EvictionListener() {
+      public void evicted(EmailMessage message) {
+        statusPage.remove(message.getId());
+      }
+    });
+  }
+
+  /**
+   * Opens a listening socket
+   * @param port Numerical port (<= 65535)
+   * @param reusePort If true, SO_REUSEPORT is set so that several sockets can listen on the port
+   * @return the bound server channel
+   * @throws IOException If the socket cannot be bound
+   */
+  private static ServerSocketChannel openServerSocket(int port, boolean reusePort) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    if(reusePort) {
+      setReusePort(channel);
+    }
+    // A long accept queue, so that a burst of new connections is not dropped by the kernel
+    channel.socket().bind(new InetSocketAddress(port), CONNECTION_BACKLOG);
+    return channel;
   }
 
   /**
-   * Starts the web server, accepting requests on the socket
+   * Sets SO_REUSEPORT on a listening socket. The option only exists from Java 9
+   * and not on every platform, so it is looked up at runtime.
+   */
+  @SuppressWarnings("unchecked")
+  private static void setReusePort(ServerSocketChannel channel) throws IOException {
+    try {
+      SocketOption<Boolean> option = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+      if(channel.supportedOptions().contains(option)) {
+        channel.setOption(option, Boolean.TRUE);
+        return;
+      }
+    }
+    catch(NoSuchFieldException e) {
+      // Reported below
+    }
+    catch(IllegalAccessException e) {
+      // Reported below
+    }
+    throw new IOException("SO_REUSEPORT is not supported by this JVM or platform");
+  }
+
+  /**
+   * Creates the connection executor described by the system properties:
+   * 
+   * webmail.executor - "pool" (default) for a bounded pool of platform threads,
+   *                    or "virtual" for one virtual thread per connection
+   * webmail.threads  - size of the platform thread pool, by default
+   *                    8 threads per available core
+   * 
+   * Virtual threads require Java 21; on older runtimes the bounded pool is used.
+   * @return a new executor for client connections
+   */
+  public static ExecutorService createExecutor() {
+    String mode = System.getProperty("webmail.executor", "pool");
+    if(mode.equals("virtual")) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService)factory.invoke(null);
+      }
+      catch(Exception e) {
+        System.out.println("Virtual threads are not supported by this JVM, using a thread pool instead");
+      }
+    }
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    int threads = Integer.getInteger("webmail.threads", cores * DEFAULT_THREADS_PER_CORE);
+    // When the backlog is full the accepting thread handles the connection itself,
+    // which stops further accepts until the pool catches up
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(CONNECTION_BACKLOG), new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  /**
+   * @return the number of connections handled since the server was started
+   */
+  public long getConnectionCount() {
+    return connectionCount.sum();
+  }
+
+  /**
+   * Starts the web server, accepting requests on the socket and handing each
+   * connection to the executor. With webmail.server=nio the connections are
+   * served by a NioHttpServer instead, and only the requests are handed to the
+   * executor.
    */
   public void start() {
+    if(Boolean.getBoolean("webmail.stats")) {
+      startStatsReporter();
+    }
+
+    if(NIO) {
+      startNio();
+      return;
+    }
+
     while(true) {
       try {
-        try {
-          socket = server.accept();
-          reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-          writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-          processRequest(reader.readLine());
+        final Socket socket = server.accept().socket();
+        executor.execute(new Runnable() {
+          public void run() {
+            handleConnection(socket);
+          }
+        });
+      }
+      catch(IOException e) {
+        System.out.println("Error accepting client: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Serves connections with non-blocking selector loops, configured by the system
+   * properties webmail.nio.selectors (default: one per core) and webmail.nio.reusePort.
+   * Does not return.
+   */
+  private void startNio() {
+    int selectors = Integer.getInteger("webmail.nio.selectors", Runtime.getRuntime().availableProcessors());
+    List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+    servers.add(server);
+    try {
+      if(REUSE_PORT) {
+        // One listening socket per loop, the kernel balances the connections between them
+        for(int i = 1; i < selectors; i++) {
+          servers.add(openServerSocket(port, true));
         }
-        finally {
-          // Connections are non-persistent, so we just close after handling the request
-          if(reader != null) reader.close();
-          if(writer != null) writer.close();
-          if(socket != null) socket.close();
+      }
+      new NioHttpServer(this, executor, selectors, servers).start();
+    }
+    catch(IOException e) {
+      throw new IllegalStateException("Cannot start the non-blocking server: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Counts a connection which a NioHttpServer has closed
+   */
+  void connectionClosed() {
+    connectionCount.increment();
+  }
+
+  /**
+   * Handles a client connection. The connection is kept open for further requests
+   * (HTTP/1.1 persistent connections) until the client closes it, asks for it to be
+   * closed, stays idle for webmail.http.keepAliveTimeout milliseconds (default 5000)
+   * or has sent webmail.http.maxRequests requests (default 100). Pipelined requests
+   * are answered in order, and their responses are sent together.
+   * @param socket The accepted client socket
+   */
+  private void handleConnection(Socket socket) {
+    BlockingHttpConnection connection = null;
+    try {
+      try {
+        socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+        connection = new BlockingHttpConnection(socket);
+        BufferedReader reader = connection.getReader();
+        int requests = 0;
+        do {
+          // Responses are only flushed once no further pipelined request is waiting
+          if(!reader.ready()) {
+            connection.flush();
+          }
+
+          HttpRequest request;
+          try {
+            request = HttpRequest.read(reader);
+          }
+          catch(SocketTimeoutException e) {
+            // The client has been idle for too long
+            break;
+          }
+          catch(ProtocolException e) {
+            connection.setKeepAlive(false);
+            sendMalformedHttp(connection);
+            break;
+          }
+          if(request == null) {
+            // Client closed the connection
+            break;
+          }
+
+          requests++;
+          connection.setKeepAlive(request.isKeepAlive() && requests < MAX_REQUESTS);
+          processRequest(connection, request);
+          if(connection.isKeepAlive()) {
+            // Skip whatever the handler left of the body, e.g. the body of a GET
+            request.getBody().close();
+          }
         }
+        while(connection.isKeepAlive());
+        connection.flush();
       }
-      catch(IOException e) {
-        System.out.println("Error handling client: " + e.getMessage());
+      finally {
+        if(connection != null) connection.close();
+        else socket.close();
+        connectionCount.increment();
       }
     }
+    catch(IOException e) {
+      System.out.println("Error handling client: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Prints the connection throughput once a second. Running the server with a
+   * varying number of cores (e.g. -XX:ActiveProcessorCount) and comparing these
+   * figures shows how throughput scales with the hardware.
+   */
+  private void startStatsReporter() {
+    Thread reporter = new Thread(new Runnable() {
+      public void run() {
+        long last = connectionCount.sum();
+        while(true) {
+          try {
+            Thread.sleep(1000);
+          }
+          catch(InterruptedException e) {
+            return;
+          }
+          long current = connectionCount.sum();
+          System.out.println("Connections/s: " + (current - last) + " (total " + current + ", "
+              + Runtime.getRuntime().availableProcessors() + " cores)");
+          last = current;
+        }
+      }
+    }, "webmail-stats");
+    reporter.setDaemon(true);
+    reporter.start();
   }
 
   /**
    * Sends an HTTP response to the client
-   * @param response The response to send
+   * @param connection The client connection
+   * @param httpResponse Status line and headers, without the blank line which ends them
+   * @param body The response body
+   */
+  private void sendResponse(HttpConnection connection, StringBuffer httpResponse, String body) {
+    try {
+      byte[] content = body.getBytes("UTF-8");
+      sendResponse(connection, httpResponse, content, 0, content.length);
+    }
+    catch(UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Sends a response whose body is already encoded. Content-Length and Connection
+   * headers are added, and the response is flushed by the connection loop.
+   * @param connection The client connection
+   * @param httpResponse Status line and headers, without the blank line which ends them
+   * @param body The response body, or null for none
+   * @param offset Offset of the first byte of the body to send
+   * @param length Number of bytes of the body to send
    */
-  private void sendResponse(String response) {
+  private void sendResponse(HttpConnection connection, StringBuffer httpResponse, byte[] body, int offset, int length) {
     try {
-      writer.write(response);
-      writer.flush();
-    } 
+      // 304 responses have no body, their Content-Length would describe the full file
+      boolean notModified = httpResponse.indexOf("HTTP/1.1 304") == 0;
+      endHeaders(connection, httpResponse, notModified ? -1 : (body == null ? 0 : length));
+      OutputStream out = connection.getOutputStream();
+      out.write(httpResponse.toString().getBytes("ISO-8859-1"));
+      if(body != null) {
+        out.write(body, offset, length);
+      }
+    }
     catch (IOException e) {
       System.out.println("Error sending response: " + e.getMessage());
+      connection.setKeepAlive(false);
+    }
+  }
+
+  /**
+   * Completes the headers of a response with Content-Length, the Connection header
+   * and the blank line
+   * @param connection The client connection
+   * @param httpResponse Status line and headers
+   * @param contentLength Length of the body, or -1 to leave out Content-Length
+   */
+  private void endHeaders(HttpConnection connection, StringBuffer httpResponse, long contentLength) {
+    // The status line starts with "HTTP/1.1 " followed by the code
+    connection.setStatus(Integer.parseInt(httpResponse.substring(9, 12)));
+    if(contentLength >= 0) {
+      httpResponse.append("Content-Length: " + contentLength + "\r\n");
+    }
+    if(connection.isKeepAlive()) {
+      httpResponse.append("Connection: keep-alive\r\n");
+    }
+    else {
+      httpResponse.append("Connection: close\r\n");
     }
+    httpResponse.append("\r\n");
+  }
+
+  /**
+   * Serves a static file. Cached files are sent from memory, other files are
+   * copied from the file to the socket by the kernel (FileChannel.transferTo)
+   * without passing through the heap. If the client's copy is still current, as
+   * told by the If-None-Match or If-Modified-Since header, only 304 Not Modified
+   * is sent. A single byte range may be requested with the Range header (RFC2616
+   * section 14.35).
+   * @param connection The client connection
+   * @param path Path of the file relative to the html directory
+   * @param request The request
+   * @return false if the file does not exist
+   * @throws IOException If the file cannot be read
+   */
+  private boolean sendStaticFile(HttpConnection connection, String path, HttpRequest request) throws IOException {
+    Map<String, String> headers = request.getHeaders();
+    StaticFileCache.Entry entry = staticFiles.getIfCached(path);
+    if(entry == null) {
+      // The failure page may be being rewritten, so files are only loaded under the page lock
+      synchronized(pageLock) {
+        entry = staticFiles.get(path);
+      }
+      if(entry == null) {
+        return false;
+      }
+    }
+
+    StringBuffer httpResponse = new StringBuffer();
+    long length = entry.getLength();
+    long start = 0;
+    long end = length - 1;
+    boolean notModified = entry.isNotModified(headers.get("if-none-match"), headers.get("if-modified-since"));
+    boolean sendBody = false;
+    if(notModified) {
+      httpResponse.append("HTTP/1.1 304 Not Modified\r\n");
+    }
+    else {
+      long[] range = null;
+      // If-Range asks for the range only if the file is still the one the client has
+      String ifRange = headers.get("if-range");
+      if(headers.containsKey("range") && (ifRange == null || ifRange.equals(entry.getETag()) || ifRange.equals(entry.getLastModifiedHeader()))) {
+        range = parseRange(headers.get("range"), length);
+      }
+
+      if(range == null) {
+        httpResponse.append("HTTP/1.1 200 OK\r\n");
+        sendBody = true;
+      }
+      else if(range.length == 0) {
+        httpResponse.append("HTTP/1.1 416 Requested Range Not Satisfiable\r\n");
+        httpResponse.append("Content-Range: bytes */" + length + "\r\n");
+      }
+      else {
+        start = range[0];
+        end = range[1];
+        httpResponse.append("HTTP/1.1 206 Partial Content\r\n");
+        httpResponse.append("Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n");
+        sendBody = true;
+      }
+      if(sendBody) {
+        httpResponse.append("Content-Type: " + entry.getContentType() + "\r\n");
+      }
+      httpResponse.append("Accept-Ranges: bytes\r\n");
+    }
+    httpResponse.append("ETag: " + entry.getETag() + "\r\n");
+    httpResponse.append("Last-Modified: " + entry.getLastModifiedHeader() + "\r\n");
+    // Browsers have to revalidate every time, since the failure page changes with every failure
+    httpResponse.append("Cache-Control: no-cache\r\n");
+
+    if(!sendBody) {
+      sendResponse(connection, httpResponse, null, 0, 0);
+    }
+    else if(entry.getBody() != null) {
+      sendResponse(connection, httpResponse, entry.getBody(), (int)start, (int)(end - start + 1));
+    }
+    else {
+      sendFileRegion(connection, httpResponse, entry.getFile(), start, end - start + 1);
+    }
+    return true;
+  }
+
+  /**
+   * Sends headers followed by part of a file
+   * @param connection The client connection
+   * @param httpResponse Status line and headers, without the blank line which ends them
+   * @param file The file to send
+   * @param position Offset of the first byte to send
+   * @param count Number of bytes to send
+   * @throws IOException If the file cannot be read or the connection fails
+   */
+  private void sendFileRegion(HttpConnection connection, StringBuffer httpResponse, File file, long position, long count) throws IOException {
+    endHeaders(connection, httpResponse, count);
+    connection.getOutputStream().write(httpResponse.toString().getBytes("ISO-8859-1"));
+    connection.transferFile(file, position, count);
+  }
+
+  /**
+   * Parses a Range header. Only a single range is supported; requests for
+   * several ranges are answered with the whole file.
+   * @param range Value of the Range header, e.g. "bytes=0-499", "bytes=500-" or "bytes=-500"
+   * @param length Length of the file
+   * @return the first and last byte of the range, an empty array if the range
+   * cannot be satisfied, or null if the whole file should be sent
+   */
+  private static long[] parseRange(String range, long length) {
+    if(!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = range.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if(dash < 0) {
+      return null;
+    }
+
+    long start;
+    long end;
+    try {
+      if(dash == 0) {
+        // The last n bytes
+        long suffix = Long.parseLong(spec.substring(1).trim());
+        if(suffix <= 0) {
+          return new long[0];
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      }
+      else {
+        start = Long.parseLong(spec.substring(0, dash).trim());
+        String last = spec.substring(dash + 1).trim();
+        end = last.equals("") ? Long.MAX_VALUE : Long.parseLong(last);
+        if(end < start) {
+          // Syntactically invalid, so the header is ignored
+          return null;
+        }
+        end = Math.min(end, length - 1);
+      }
+    }
+    catch(NumberFormatException e) {
+      return null;
+    }
+
+    if(start >= length || length == 0) {
+      return new long[0];
+    }
+    return new long[] { start, end };
   }
 
   /**
    * Serves delivery failure page with error from SMTP server
    * This is achieved by updating failure.html and redirecting
-   * the client with a 301
-   * @param message Failure message
+   * the client with a 301. The message is HTML-escaped, as it may hold what the
+   * client entered or a remote SMTP server replied, and every later visitor of
+   * the page is served it.
+   * @param connection The client connection
+   * @param message Failure message, as plain text
    */
-  private void sendFail(String message) {
+  private void sendFail(HttpConnection connection, String message) {
     StringBuffer httpResponse = new StringBuffer();
     httpResponse.append("HTTP/1.1 301 Moved Permanently\r\n");
     httpResponse.append("Location: /failure.html\r\n");
     File f = new File("../html/" + "failure.html");
     FileWriter fwriter = null;
     try {
-      try {
-        fwriter = new FileWriter(f);
-        fwriter.write("<html><head><title>Delivery Failure</title><body>Delivery Failure: " + message + "<br /><a href=\"form.html\">Back</a></body></html>");
-      }
-      finally {
-        if(fwriter != null) fwriter.close();
+      synchronized(pageLock) {
+        try {
+          fwriter = new FileWriter(f);
+          fwriter.write("<html><head><title>Delivery Failure</title><body>Delivery Failure: " + StatusPage.escapeHtml(message) + "<br /><a href=\"form.html\">Back</a></body></html>");
+        }
+        finally {
+          if(fwriter != null) fwriter.close();
+        }
+        // Drop the old page right away rather than waiting for the WatchService
+        staticFiles.invalidate("failure.html");
       }
     }
     catch(IOException e) {
@@ -111,293 +582,435 @@ public class WebServer {
     }
     
     httpResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
-    httpResponse.append("\r\n");
-    sendResponse(httpResponse.toString());
+    sendResponse(connection, httpResponse, "");
+  }
+
+  /**
+   * Processes a client's HTTP request and records its latency, by route and
+   * status code, in the histogram webmail_http_request_seconds
+   * @param connection The client connection
+   * @param request The input request from a client
+   */
+  void processRequest(HttpConnection connection, HttpRequest request) {
+    long start = System.nanoTime();
+    connection.setStatus(0);
+    try {
+      handleRequest(connection, request);
+    }
+    finally {
+      String route = getRoute(request);
+      // Event streams last as long as the client stays, which is not a latency
+      if(!route.equals("/api/events")) {
+        Metrics.getInstance().histogram("webmail_http_request_seconds", "Time taken to handle HTTP requests, by route and status code",
+            "method=" + Metrics.quote(getMethodLabel(request)) + ",route=" + Metrics.quote(route) + ",code=" + Metrics.quote(Integer.toString(connection.getStatus())))
+            .recordSince(start);
+      }
+    }
+  }
+
+  /**
+   * Names the route of a request for the metrics. Static files share a single
+   * route, so that requests for arbitrary paths do not create new metrics.
+   * @param request The request
+   * @return the route
+   */
+  private static String getRoute(HttpRequest request) {
+    String path = request.getPath();
+    if(path.equals("/") || path.equals("/status.html") || path.equals("/api/messages")
+        || path.equals("/api/events") || path.equals("/metrics")) {
+      return path;
+    }
+    return "static";
+  }
+
+  /**
+   * @return the method of a request as reported in the metrics: GET, POST or other
+   */
+  private static String getMethodLabel(HttpRequest request) {
+    String method = request.getMethod();
+    return method.equals("GET") || method.equals("POST") ? method : "other";
   }
 
   /**
    * Processes a client's HTTP request
    * Validates input and sends the proper response, updating the email status page as necessary
+   * @param connection The client connection
    * @param request The input request from a client
    */
-  private void processRequest(String request) {
+  private void handleRequest(HttpConnection connection, HttpRequest request) {
     try {
-      StringTokenizer tokenizer = new StringTokenizer(request);
-      String requestType = "";
-      if(tokenizer.hasMoreTokens()) {
-        requestType = tokenizer.nextToken();
-      }
-      else {
-        sendMalformedHttp();
-        return;
-      }
+      String requestType = request.getMethod();
 
       // Handle HTTP GET request - Serve requested file if it exists
-      String filename = "";
+      String filename = request.getPath();
       StringBuffer httpResponse = new StringBuffer();
+      String responseBody = "";
       if(requestType.equals("GET")) {
-        if(!tokenizer.hasMoreTokens()) {
-          filename = "/";
-        }
-        else {
-          filename = tokenizer.nextToken();
-        }
+        // The query string is only used by the status page
+        Map<String, String> parameters = parseQuery(request.getQuery());
 
         // Serve the Webmail form by default
         if(filename.equals("/")) {
           filename += "form.html";
         }
 
-        File f = new File("../html/" + filename.substring(1));  
-        if(f.exists()) {
+        if(filename.equals("/status.html")) {
+          // The status page is rendered from memory on every request
+          int page = getIntParameter(parameters, "page", 1);
+          int size = getIntParameter(parameters, "size", statusPage.getDefaultPageSize());
+          long since = getLongParameter(parameters, "since", 0);
+          String statusEntry = statusPage.render(SMTPClient.getInstance().getMessages(), page, size, since);
+
           httpResponse.append("HTTP/1.1 200 OK\r\n");
           httpResponse.append("Content-Type: text/html;charset=utf-8\r\n");
-          httpResponse.append("Connection: close\r\n");
-          httpResponse.append("\r\n");
-
-          // Update the status page on a new request
-          if(filename.equals("/status.html")) {
-            String statusEntry = updateStatusPage();
-            File statusPage = new File("../html/" + "status.html");
-            FileWriter fwriter = null;
-            try {
-              fwriter = new FileWriter(statusPage);
-              fwriter.write(statusEntry.toString());
-            }
-            finally {
-              if (fwriter != null) fwriter.close();
-            }
-          }
-
-          // Write the file contents into the response
-          StringBuffer fileContents = new StringBuffer();
-          BufferedReader fileReader = null;
-          try {
-            fileReader = new BufferedReader(new FileReader(f));
-            String line = "";
-            while((line = fileReader.readLine()) != null) {
-              fileContents.append(line);
-            }
-          }
-          finally {
-            if(fileReader != null) fileReader.close();
-          }
-          httpResponse.append(fileContents.toString() + "\r\n");
+          httpResponse.append("Cache-Control: no-cache\r\n");
+          responseBody = statusEntry + "\r\n";
+        }
+        else if(filename.equals("/api/messages")) {
+          long before = getLongParameter(parameters, "before", 0);
+          int limit = getIntParameter(parameters, "limit", statusApi.getDefaultLimit());
+          httpResponse.append("HTTP/1.1 200 OK\r\n");
+          httpResponse.append("Content-Type: application/json;charset=utf-8\r\n");
+          httpResponse.append("Cache-Control: no-cache\r\n");
+          responseBody = statusApi.renderList(SMTPClient.getInstance().getMessages(), before, limit);
+        }
+        else if(filename.equals("/api/events")) {
+          sendEvents(connection, request, parameters);
+          return;
+        }
+        else if(filename.equals("/metrics")) {
+          httpResponse.append("HTTP/1.1 200 OK\r\n");
+          httpResponse.append("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+          httpResponse.append("Cache-Control: no-cache\r\n");
+          responseBody = Metrics.getInstance().render();
+        }
+        else if(sendStaticFile(connection, filename.substring(1), request)) {
+          return;
         }
         else {
           // If the requested page doesn't exist, respond with a 404
           httpResponse.append("HTTP/1.1 404 Not Found\r\n");
           httpResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
-          httpResponse.append("Connection: close\r\n");
-          httpResponse.append("\r\n");
-          httpResponse.append("<html><body>Page not found (Error 404)</html></body>\r\n");
+          responseBody = "<html><body>Page not found (Error 404)</html></body>\r\n";
         }
       }
       // Handle HTTP POST request (client is sending an email via the form)
       else if(requestType.equals("POST")) {
-        String line = "";
-        boolean lengthFound = false;
-        int length = 0;
-
-        // Pass through the HTTP headers to find the content length
-        try {
-          line = reader.readLine();
-          while(line != null && !line.equals("")){
-            line = reader.readLine();
-            if(line.contains("Content-Length")) {
-              lengthFound = true;
-              try {
-                length = Integer.parseInt(line.substring(line.indexOf(" ")+1));
-              }
-              catch(NumberFormatException e) {
-                length = -1;
-              }
-            }
-          }
-        }
-        catch(InterruptedIOException e) {
-          length = -1;
-        }
-
-        if(!lengthFound || length < 0) {
+        if(request.getHeader("content-length") == null) {
           // Request must contain content length or else it is invalid
-          sendMalformedHttp();
+          connection.setKeepAlive(false);
+          sendMalformedHttp(connection);
+          return;
+        }
+        else if(SMTPClient.getInstance().isOverloaded()) {
+          // Turn the submission away before parsing it rather than letting the queue grow.
+          // Closing the connection while the client is still sending would reset it before
+          // it reads the 503, so a body of bounded size is read and thrown away first, which
+          // also leaves the connection reusable; a larger one is left unread.
+          if(request.getContentLength() <= OVERLOAD_DRAIN_LIMIT) {
+            request.getBody().close();
+          }
+          else {
+            connection.setKeepAlive(false);
+          }
+          sendUnavailable(connection, OVERLOAD_RETRY_AFTER, "The server is busy, please try again later");
           return;
         }
         else {
-          // Process request content to determine email fields
-          char content[] = new char[length];
-          reader.read(content);
-          String urlString = new String(content);
-          String to = "";
-          String from = "";
-          String subject = "";
-          String smtpServer = "";
-          String message = "";
-          String delay = "";
-          urlString = URLDecoder.decode(urlString, "ISO-8859-15");
-
+          // The form is decoded while it is read from the connection
+          FormParser.Form form;
           try {
-            // Read parameters one by one, advancing urlString to the next ampersand after each parameter
-            from = urlString.substring(urlString.indexOf("from=") + 5, urlString.indexOf("&"));
-            urlString = urlString.substring(urlString.indexOf("&") + 1, urlString.length());
-            to = urlString.substring(urlString.indexOf("to=") + 3, urlString.indexOf("&"));
-            urlString = urlString.substring(urlString.indexOf("&") + 1, urlString.length());
-            subject = urlString.substring(urlString.indexOf("subject=") + 8, urlString.indexOf("&"));
-            urlString = urlString.substring(urlString.indexOf("&") + 1, urlString.length());
-            smtpServer = urlString.substring(urlString.indexOf("smtpserver=") + 11, urlString.indexOf("&"));
-            urlString = urlString.substring(urlString.indexOf("&") + 1, urlString.length());
-            message = urlString.substring(urlString.indexOf("message=") + 8, urlString.indexOf("&"));
-            urlString = urlString.substring(urlString.indexOf("&") + 1, urlString.length());
-            delay = urlString.substring(urlString.indexOf("delay=") + 6, urlString.length());
-          }
-          catch(Exception e) {
-            // If there are any problems with the URL, serve a 400 Bad Request
-            sendMalformedHttp();
+            form = formParser.parse(request.getBody(), request.getContentLength(), request.getHeader("content-type"));
           }
-
-          // The URL was structured properly, so now we can validate the input
-          String mailStatus;
-          int sendDelay = 0;
-
-          if(!delay.equals("")) {
-            try {
-              sendDelay = Integer.parseInt(delay);
+          catch(FormException e) {
+            // The rest of the body has not been read, so the connection cannot be reused
+            connection.setKeepAlive(false);
+            if(e.isTooLarge()) {
+              sendTooLarge(connection);
             }
-            catch(NumberFormatException nfe) {
-              // Ignore invalid delays - just send right away
+            else {
+              sendMalformedHttp(connection);
             }
-          }
-
-          // Validate to and from addresses
-          if(to.equals("") || from.equals("")) {
-            sendFail("Both TO and FROM addresses must be specified");
-            return;
-          }
-
-          // One and only one '@' symbol
-          if(!to.contains("@") || to.indexOf("@") != to.lastIndexOf("@") || !to.contains(".")){
-            sendFail("Invalid TO address");
             return;
           }
 
-          // One and only one '@' symbol
-          if(!from.contains("@") || from.indexOf("@") != from.lastIndexOf("@") || !to.contains(".")){
-            sendFail("Invalid FROM address");
-            return;
-          }
-
-          SMTPClient smtpClient = SMTPClient.getInstance();
-          // If the user requested a delay, we queue up the message to be sent later and redirect to the status page
-          if(sendDelay > 0) {
-            EmailMessage m = new EmailMessage(to, from, subject, smtpServer, message);
-            smtpClient.sendMail(m, Integer.parseInt(delay));
-            httpResponse.append("HTTP/1.1 301 Moved Permanently\r\n");
-            httpResponse.append("Location: /status.html\r\n");
-            httpResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
-            httpResponse.append("Connection: close\r\n");
-            httpResponse.append("\r\n");
+          try {
+            processForm(connection, form);
           }
-          else {
-            // Otherwise, we can send the message right away
-            EmailMessage m = new EmailMessage(to, from, subject, smtpServer, message);
-            mailStatus = smtpClient.sendMail(m, 0);
-
-            httpResponse.append("HTTP/1.1 301 Moved Permanently\r\n");
-            // Determine if the message succeeded or not and redirect accordingly
-            if(mailStatus.equals("Success")) {
-              httpResponse.append("Location: /success.html\r\n");
-            }
-            else {
-              httpResponse.append("Location: /failure.html\r\n");
-              File f = new File("../html/" + "failure.html");
-              FileWriter fwriter = null;
-              try {
-                fwriter = new FileWriter(f);
-                fwriter.write("<html><head><title>Delivery Failure</title><body>Delivery Failure: " + mailStatus + "<br /><a href=\"form.html\">Back</a></body></html>");
-              }
-              finally {
-                if (fwriter != null) fwriter.close();
-              }
-            }
+          finally {
+            form.delete();
           }
+          return;
         }
       }
       else {
         // We only support GET and POST
-        sendMalformedHttp();
+        connection.setKeepAlive(false);
+        sendMalformedHttp(connection);
         return;
       }
 
       // Serve the response to the client
-      sendResponse(httpResponse.toString());
+      sendResponse(connection, httpResponse, responseBody);
     }
     catch(IOException e) {
       System.out.println(e.getMessage());
+      connection.setKeepAlive(false);
     }
   }
 
+  /**
+   * Streams the changes of the delivery status as Server-Sent Events until the
+   * client goes away. Every event carries the JSON of an email whose status or
+   * delivery time has changed (or which was added), and the sequence number of
+   * the change as its ID, so a reconnecting client resumes with the Last-Event-ID
+   * header. A new client starts after the change given by the sequence query
+   * parameter, as returned by /api/messages, or with the next change. While
+   * nothing changes, a comment is sent every webmail.events.heartbeat
+   * milliseconds (default 15000) so that a closed connection is noticed.
+   * @param connection The client connection
+   * @param request The request
+   * @param parameters The query parameters
+   */
+  private void sendEvents(HttpConnection connection, HttpRequest request, Map<String, String> parameters) {
+    if(eventStreams.incrementAndGet() > MAX_EVENT_STREAMS) {
+      eventStreams.decrementAndGet();
+      sendUnavailable(connection, 10, "Too many event streams");
+      return;
+    }
+
+    try {
+      MessageStore messages = SMTPClient.getInstance().getMessages();
+      long sequence = getLongParameter(parameters, "sequence", -1);
+      String lastEventId = request.getHeader("last-event-id");
+      if(lastEventId != null) {
+        try {
+          sequence = Long.parseLong(lastEventId.trim());
+        }
+        catch(NumberFormatException e) {
+          // Not one of our IDs, so the client starts over
+        }
+      }
+      if(sequence < 0) {
+        sequence = messages.getChangeSequence();
+      }
+
+      // The stream only ends when the connection is closed
+      connection.setKeepAlive(false);
+      StringBuffer httpResponse = new StringBuffer();
+      httpResponse.append("HTTP/1.1 200 OK\r\n");
+      httpResponse.append("Content-Type: text/event-stream;charset=utf-8\r\n");
+      httpResponse.append("Cache-Control: no-cache\r\n");
+      endHeaders(connection, httpResponse, -1);
+      OutputStream out = connection.getOutputStream();
+      out.write(httpResponse.toString().getBytes("ISO-8859-1"));
+      connection.flush();
+
+      while(true) {
+        // Only the emails which changed since the last event are rendered
+        StringBuffer events = new StringBuffer();
+        long latest = statusApi.renderEvents(messages, sequence, events);
+        if(latest == sequence) {
+          if(messages.awaitChange(sequence, EVENT_HEARTBEAT) > sequence) {
+            continue;
+          }
+          events.append(": keep-alive\n\n");
+        }
+        sequence = latest;
+        out.write(events.toString().getBytes("UTF-8"));
+        connection.flush();
+      }
+    }
+    catch(IOException e) {
+      // The client has gone away
+      connection.setKeepAlive(false);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    finally {
+      eventStreams.decrementAndGet();
+    }
+  }
+
+  /**
+   * Validates a submitted webmail form and queues its email together with any
+   * uploaded files, redirecting the client to the email's entry on the status page
+   * @param connection The client connection
+   * @param form The decoded form
+   */
+  private void processForm(HttpConnection connection, FormParser.Form form) {
+    String from = form.getField("from");
+    String to = form.getField("to");
+    String subject = form.getField("subject");
+    String smtpServer = form.getField("smtpserver");
+    String message = form.getField("message");
+    String delay = form.getField("delay");
+    if(from == null || to == null || subject == null || smtpServer == null || message == null) {
+      // All fields of the form except the delay must be present
+      sendMalformedHttp(connection);
+      return;
+    }
+
+    // The form is structured properly, so now we can validate the input
+    String mailStatus;
+    int sendDelay = 0;
+
+    if(delay != null && !delay.equals("")) {
+      try {
+        sendDelay = Integer.parseInt(delay);
+      }
+      catch(NumberFormatException nfe) {
+        // Ignore invalid delays - just send right away
+      }
+    }
+
+    // Validate to and from addresses
+    List<String> recipients = EmailMessage.parseRecipients(to);
+    if(recipients.isEmpty() || from.equals("")) {
+      sendFail(connection, "Both TO and FROM addresses must be specified");
+      return;
+    }
+
+    // One and only one '@' symbol in each recipient
+    for(String recipient : recipients) {
+      if(!recipient.contains("@") || recipient.indexOf("@") != recipient.lastIndexOf("@") || !recipient.contains(".")){
+        sendFail(connection, "Invalid TO address: " + recipient);
+        return;
+      }
+    }
+
+    // One and only one '@' symbol, and a dot in the domain
+    if(!from.contains("@") || from.indexOf("@") != from.lastIndexOf("@") || !from.substring(from.indexOf("@") + 1).contains(".")){
+      sendFail(connection, "Invalid FROM address");
+      return;
+    }
+
+    SMTPClient smtpClient = SMTPClient.getInstance();
+    // The message is queued (immediately or after the requested delay) and sent by a
+    // delivery worker, so we can redirect to the message's entry on the status page right away
+    EmailMessage m = new EmailMessage(to, from, subject, smtpServer, message);
+    // Uploaded files now belong to the message, which deletes them once it has been sent
+    for(FormParser.Part part : new ArrayList<FormParser.Part>(form.getParts())) {
+      form.takePart(part);
+      m.addAttachment(new Attachment(part));
+    }
+    mailStatus = smtpClient.sendMail(m, sendDelay);
+    if(!mailStatus.equals("Pending")) {
+      sendFail(connection, mailStatus);
+      return;
+    }
+
+    StringBuffer httpResponse = new StringBuffer();
+    httpResponse.append("HTTP/1.1 301 Moved Permanently\r\n");
+    httpResponse.append("Location: /status.html#message-" + m.getId() + "\r\n");
+    httpResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
+    sendResponse(connection, httpResponse, "");
+  }
+
+  /**
+   * Serves a 413 Request Entity Too Large to the client
+   * @param connection The client connection
+   */
+  private void sendTooLarge(HttpConnection connection) {
+    StringBuffer tooLargeResponse = new StringBuffer();
+    tooLargeResponse.append("HTTP/1.1 413 Request Entity Too Large\r\n");
+    tooLargeResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
+    sendResponse(connection, tooLargeResponse, "<html><body>Request Entity Too Large (Error 413)</body></html>\r\n");
+  }
+
+  /**
+   * Serves a 503 Service Unavailable to the client
+   * @param connection The client connection
+   * @param retryAfter Seconds after which the client may try again
+   * @param reason Explanation shown to the user
+   */
+  private void sendUnavailable(HttpConnection connection, int retryAfter, String reason) {
+    StringBuffer unavailableResponse = new StringBuffer();
+    unavailableResponse.append("HTTP/1.1 503 Service Unavailable\r\n");
+    unavailableResponse.append("Retry-After: " + retryAfter + "\r\n");
+    unavailableResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
+    sendResponse(connection, unavailableResponse, "<html><body>" + reason + " (Error 503)<br /><a href=\"form.html\">Back</a></body></html>\r\n");
+  }
+
   /**
    * Serves a 400 Bad Request to the client
+   * @param connection The client connection
    */
-  private void sendMalformedHttp() {
+  void sendMalformedHttp(HttpConnection connection) {
     StringBuffer malformedHttpResponse = new StringBuffer();
     malformedHttpResponse.append("HTTP/1.1 400 Bad Request\r\n");
     malformedHttpResponse.append("Content-Type: text/html;charset=iso-8859-15\r\n");
-    malformedHttpResponse.append("Connection: close\r\n");
-    malformedHttpResponse.append("\r\n");
-    malformedHttpResponse.append("<html><body>Bad Request (Error 400)</body></html>\r\n");
-    sendResponse(malformedHttpResponse.toString());
+    sendResponse(connection, malformedHttpResponse, "<html><body>Bad Request (Error 400)</body></html>\r\n");
   }
 
   /**
-   * Updates the contents of the status page
-   * @return the updated HTML to be served
+   * Splits a query string into its decoded parameters
+   * @param query The part of the URL after the question mark
+   * @return the parameters by name
    */
-  private String updateStatusPage() {
-    StringBuffer statusEntry = new StringBuffer();
-    statusEntry.append("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html;charset=iso-8859-15\" /><title>Status Page</title></head><body>");
-    statusEntry.append("<a href=\"form.html\">Back</a> <a href=\"status.html\">Refresh</a><br />");
-    statusEntry.append("<table border=\"1\" empty-cells=\"show\"><tr><td>To</td><td>From</td><td>Subject</td><td>Status</td><td>Submitted Time</td><td>Delivered Time</td></tr>");
-    
-    SMTPClient smtpClient = SMTPClient.getInstance();
-    ArrayList<EmailMessage> messages = smtpClient.getMessages();
-    for(int i = 0; i < messages.size(); i++) {
-      boolean pending = false;
-
-      statusEntry.append("<tr>");
-      statusEntry.append("<td>");
-      statusEntry.append(messages.get(i).getTo() + "</td> ");
-      statusEntry.append("<td>");
-      statusEntry.append(messages.get(i).getFrom() + "</td> ");
-      statusEntry.append("<td>");
-      statusEntry.append(messages.get(i).getSubject() + "</td> ");
-      statusEntry.append("<td>");
-      String status = messages.get(i).getStatus();
-      if(status.equals("Pending"))
-        pending = true;
-      statusEntry.append(status + "</td> ");
-      statusEntry.append("<td>");
-      statusEntry.append(messages.get(i).getSubmitTime() + "</td> ");
-      statusEntry.append("<td>");
-      if(pending)
-        statusEntry.append("Pending</td>");
-      else { 
-        if(messages.get(i).getDeliveryTime() == null) {
-          messages.get(i).setDeliveryTime("Failed</td>");
+  private static Map<String, String> parseQuery(String query) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    StringTokenizer tokenizer = new StringTokenizer(query, "&");
+    while(tokenizer.hasMoreTokens()) {
+      String parameter = tokenizer.nextToken();
+      int equals = parameter.indexOf('=');
+      try {
+        if(equals < 0) {
+          parameters.put(URLDecoder.decode(parameter, "ISO-8859-15"), "");
+        }
+        else {
+          parameters.put(URLDecoder.decode(parameter.substring(0, equals), "ISO-8859-15"),
+              URLDecoder.decode(parameter.substring(equals + 1), "ISO-8859-15"));
         }
-        statusEntry.append(messages.get(i).getDeliveryTime() + "</td>\n");
       }
-      statusEntry.append("</tr>");
+      catch(Exception e) {
+        // Ignore malformed parameters
+      }
     }
-    statusEntry.append("</table></body></html>");
+    return parameters;
+  }
 
-    return statusEntry.toString();
+  /**
+   * Reads a numerical query parameter
+   * @param parameters The query parameters
+   * @param name Name of the parameter
+   * @param defaultValue Value used if the parameter is missing or not a number
+   * @return the value of the parameter
+   */
+  private static int getIntParameter(Map<String, String> parameters, String name, int defaultValue) {
+    long value = getLongParameter(parameters, name, defaultValue);
+    if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      return defaultValue;
+    }
+    return (int)value;
+  }
+
+  /**
+   * Reads a numerical query parameter
+   * @param parameters The query parameters
+   * @param name Name of the parameter
+   * @param defaultValue Value used if the parameter is missing or not a number
+   * @return the value of the parameter
+   */
+  private static long getLongParameter(Map<String, String> parameters, String name, long defaultValue) {
+    String value = parameters.get(name);
+    if(value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch(NumberFormatException e) {
+      return defaultValue;
+    }
   }
 
   public static void main(String[] args) {
     // Launch WebServer on port 8080
     WebServer s = new WebServer(8080);
+    // Loads the SMTP client now, so emails recovered from its journal are sent without waiting for a request
+    SMTPClient.getInstance();
     s.start();
   }
 }
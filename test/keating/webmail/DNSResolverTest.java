@@ -0,0 +1,364 @@
+package keating.webmail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NameNotFoundException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * DNSResolverTest.java
+ *
+ * Runs the DNSResolver against a stub DNS server on the loopback interface,
+ * which answers over UDP and TCP on the same port as each test tells it to.
+ *
+ * @author Andrew Keating
+ */
+public class DNSResolverTest {
+
+  private static final int TYPE_A = 1;
+  private static final int TYPE_MX = 15;
+  private static final int FLAG_TRUNCATED = 0x0200;
+
+  private StubServer server;
+
+  /**
+   * Decides what the stub server sends back for a query
+   */
+  private interface Handler {
+    /**
+     * @param query The query packet
+     * @param overTcp true if the query came over TCP
+     * @param count Number of queries received so far, including this one
+     * @return the replies to send, none to drop the query
+     */
+    byte[][] reply(byte[] query, boolean overTcp, int count);
+  }
+
+  /**
+   * A DNS server which serves UDP and TCP on the same loopback port
+   */
+  private static class StubServer {
+    final DatagramSocket udp;
+    final ServerSocket tcp;
+    final AtomicInteger udpQueries = new AtomicInteger();
+    final AtomicInteger tcpQueries = new AtomicInteger();
+    final Handler handler;
+
+    StubServer(Handler handler) throws IOException {
+      this.handler = handler;
+      DatagramSocket datagrams = null;
+      ServerSocket stream = null;
+      // The TCP port has to match the UDP port, which may already be taken for TCP
+      for(int i = 0; stream == null; i++) {
+        datagrams = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+          stream = new ServerSocket(datagrams.getLocalPort(), 16, InetAddress.getLoopbackAddress());
+        }
+        catch(IOException e) {
+          datagrams.close();
+          if(i == 10) {
+            throw e;
+          }
+        }
+      }
+      udp = datagrams;
+      tcp = stream;
+      start();
+    }
+
+    InetSocketAddress getAddress() {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), udp.getLocalPort());
+    }
+
+    private void start() {
+      Thread udpThread = new Thread(new Runnable() {
+        public void run() {
+          byte[] buffer = new byte[512];
+          while(!udp.isClosed()) {
+            try {
+              DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+              udp.receive(packet);
+              byte[] query = new byte[packet.getLength()];
+              System.arraycopy(buffer, 0, query, 0, query.length);
+              int count = udpQueries.incrementAndGet() + tcpQueries.get();
+              for(byte[] reply : handler.reply(query, false, count)) {
+                udp.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+              }
+            }
+            catch(IOException e) {
+              // Closed at the end of the test
+            }
+          }
+        }
+      });
+      udpThread.setDaemon(true);
+      udpThread.start();
+
+      Thread tcpThread = new Thread(new Runnable() {
+        public void run() {
+          while(!tcp.isClosed()) {
+            try {
+              Socket socket = tcp.accept();
+              try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                int count = tcpQueries.incrementAndGet() + udpQueries.get();
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                for(byte[] reply : handler.reply(query, true, count)) {
+                  out.writeShort(reply.length);
+                  out.write(reply);
+                }
+                out.flush();
+              }
+              finally {
+                socket.close();
+              }
+            }
+            catch(IOException e) {
+              // Closed at the end of the test
+            }
+          }
+        }
+      });
+      tcpThread.setDaemon(true);
+      tcpThread.start();
+    }
+
+    void close() throws IOException {
+      udp.close();
+      tcp.close();
+    }
+  }
+
+  /**
+   * Builds replies to a query with the question copied from it. Names in the
+   * answers are compressed with pointers to the question, as servers do.
+   */
+  private static class ReplyBuilder {
+    final ByteBuffer buffer = ByteBuffer.allocate(4096);
+    final int questionEnd;
+    int answers;
+
+    ReplyBuilder(byte[] query, int flags, int rcode) {
+      questionEnd = skipName(query, 12) + 4;
+      buffer.put(query, 0, questionEnd);
+      buffer.putShort(2, (short)(0x8180 | flags | rcode));
+    }
+
+    /**
+     * Adds an MX record for the queried name whose exchange is a label
+     * followed by a pointer to the queried name, e.g. mx1.example.com
+     */
+    ReplyBuilder mx(int preference, String label) {
+      buffer.putShort((short)0xC00C);
+      buffer.putShort((short)TYPE_MX);
+      buffer.putShort((short)1);
+      buffer.putInt(300);
+      buffer.putShort((short)(2 + 1 + label.length() + 2));
+      buffer.putShort((short)preference);
+      buffer.put((byte)label.length());
+      buffer.put(label.getBytes());
+      buffer.putShort((short)0xC00C);
+      answers++;
+      return this;
+    }
+
+    /**
+     * Adds an A record for the queried name
+     */
+    ReplyBuilder a(int a, int b, int c, int d) {
+      buffer.putShort((short)0xC00C);
+      buffer.putShort((short)TYPE_A);
+      buffer.putShort((short)1);
+      buffer.putInt(300);
+      buffer.putShort((short)4);
+      buffer.put(new byte[] {(byte)a, (byte)b, (byte)c, (byte)d});
+      answers++;
+      return this;
+    }
+
+    /**
+     * Replaces the queried name with another one of the same length
+     */
+    ReplyBuilder question(String name) {
+      int pos = 12;
+      for(String label : name.split("\\.")) {
+        buffer.put(pos++, (byte)label.length());
+        for(int i = 0; i < label.length(); i++) {
+          buffer.put(pos++, (byte)label.charAt(i));
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Replaces the type of the queried name
+     */
+    ReplyBuilder type(int type) {
+      buffer.putShort(questionEnd - 4, (short)type);
+      return this;
+    }
+
+    byte[] build() {
+      buffer.putShort(6, (short)answers);
+      byte[] reply = new byte[buffer.position()];
+      System.arraycopy(buffer.array(), 0, reply, 0, reply.length);
+      return reply;
+    }
+
+    private static int skipName(byte[] packet, int pos) {
+      while(packet[pos] != 0) {
+        pos += (packet[pos] & 0xFF) + 1;
+      }
+      return pos + 1;
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if(server != null) {
+      server.close();
+    }
+  }
+
+  private DNSResolver resolver(Handler handler, long timeoutMillis, int retries) throws IOException {
+    server = new StubServer(handler);
+    return new DNSResolver(server.getAddress(), timeoutMillis, retries);
+  }
+
+  @Test
+  public void parsesCompressedMxRecordsInPreferenceOrder() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        return new byte[][] { new ReplyBuilder(query, 0, 0).mx(20, "mx2").mx(10, "mx1").build() };
+      }
+    }, 1000, 0);
+
+    List<MXRecord> records = resolver.lookupMx("example.com").get(5, TimeUnit.SECONDS);
+    assertEquals(2, records.size());
+    assertEquals("mx1.example.com", records.get(0).getHost());
+    assertEquals(10, records.get(0).getPreference());
+    assertEquals("mx2.example.com", records.get(1).getHost());
+    assertEquals(300, records.get(0).getTtl());
+  }
+
+  @Test
+  public void retransmitsLostQueries() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        // The first two queries are lost
+        if(count <= 2) {
+          return new byte[0][];
+        }
+        return new byte[][] { new ReplyBuilder(query, 0, 0).a(192, 0, 2, 1).build() };
+      }
+    }, 200, 2);
+
+    List<InetAddress> addresses = resolver.lookupA("mail.example.com").get(5, TimeUnit.SECONDS);
+    assertEquals(InetAddress.getByName("192.0.2.1"), addresses.get(0));
+    assertEquals(3, server.udpQueries.get());
+  }
+
+  @Test
+  public void failsAfterTheLastRetransmission() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        return new byte[0][];
+      }
+    }, 100, 1);
+
+    try {
+      resolver.lookupA("mail.example.com").get(5, TimeUnit.SECONDS);
+      fail("Lookup should time out");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof javax.naming.CommunicationException);
+    }
+    assertEquals(2, server.udpQueries.get());
+  }
+
+  @Test
+  public void repeatsTruncatedRepliesOverTcp() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        if(!overTcp) {
+          return new byte[][] { new ReplyBuilder(query, FLAG_TRUNCATED, 0).build() };
+        }
+        return new byte[][] { new ReplyBuilder(query, 0, 0).mx(10, "mx1").mx(20, "mx2").mx(30, "mx3").build() };
+      }
+    }, 1000, 0);
+
+    List<MXRecord> records = resolver.lookupMx("example.com").get(5, TimeUnit.SECONDS);
+    assertEquals(3, records.size());
+    assertEquals("mx3.example.com", records.get(2).getHost());
+    assertEquals(1, server.udpQueries.get());
+    assertEquals(1, server.tcpQueries.get());
+  }
+
+  @Test
+  public void ignoresRepliesToAnotherQuestion() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        // A forged reply with the right ID for another name arrives first
+        byte[] forged = new ReplyBuilder(query, 0, 0).question("example.net").mx(10, "mx").build();
+        byte[] real = new ReplyBuilder(query, 0, 0).mx(10, "mx1").build();
+        return new byte[][] { forged, real };
+      }
+    }, 1000, 0);
+
+    // The question is echoed as sent, so its case is compared loosely
+    List<MXRecord> records = resolver.lookupMx("Example.COM").get(5, TimeUnit.SECONDS);
+    assertEquals("mx1.Example.COM", records.get(0).getHost());
+  }
+
+  @Test
+  public void ignoresRepliesOfAnotherType() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        byte[] forged = new ReplyBuilder(query, 0, 0).type(TYPE_MX).a(192, 0, 2, 66).build();
+        byte[] real = new ReplyBuilder(query, 0, 0).a(192, 0, 2, 1).build();
+        return new byte[][] { forged, real };
+      }
+    }, 1000, 0);
+
+    List<InetAddress> addresses = resolver.lookupA("mail.example.com").get(5, TimeUnit.SECONDS);
+    assertEquals(InetAddress.getByName("192.0.2.1"), addresses.get(0));
+  }
+
+  @Test
+  public void reportsMissingNames() throws Exception {
+    DNSResolver resolver = resolver(new Handler() {
+      public byte[][] reply(byte[] query, boolean overTcp, int count) {
+        return new byte[][] { new ReplyBuilder(query, 0, 3).build() };
+      }
+    }, 1000, 0);
+
+    try {
+      resolver.lookupMx("missing.example.com").get(5, TimeUnit.SECONDS);
+      fail("Lookup should fail");
+    }
+    catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof NameNotFoundException);
+    }
+  }
+}
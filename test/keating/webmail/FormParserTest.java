@@ -0,0 +1,374 @@
+package keating.webmail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * FormParserTest.java
+ *
+ * Decodes urlencoded and multipart forms, read in one piece and in small
+ * pieces so that delimiters are split across the reads of the parser, and
+ * checks the size limits and the spilling of uploads to temporary files.
+ *
+ * @author Andrew Keating
+ */
+public class FormParserTest {
+
+  private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+  private static final String MULTIPART = "multipart/form-data; boundary=" + BOUNDARY;
+  private static final String URLENCODED = "application/x-www-form-urlencoded";
+
+  private final FormParser parser = new FormParser("ISO-8859-15");
+  private FormParser.Form form;
+
+  /**
+   * Returns at most a given number of bytes per read, like a slow connection
+   */
+  private static class TrickleInputStream extends ByteArrayInputStream {
+    private final int chunk;
+
+    TrickleInputStream(byte[] data, int chunk) {
+      super(data);
+      this.chunk = chunk;
+    }
+
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, chunk));
+    }
+  }
+
+  /**
+   * Builds a multipart/form-data body
+   */
+  private static class MultipartBuilder {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    MultipartBuilder field(String name, String value) throws IOException {
+      return part("Content-Disposition: form-data; name=\"" + name + "\"\r\n", value.getBytes("ISO-8859-15"));
+    }
+
+    MultipartBuilder file(String name, String filename, byte[] content) throws IOException {
+      return part("Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + filename + "\"\r\n" +
+          "Content-Type: application/octet-stream\r\n", content);
+    }
+
+    MultipartBuilder part(String headers, byte[] content) throws IOException {
+      body.write(("--" + BOUNDARY + "\r\n" + headers + "\r\n").getBytes("ISO-8859-1"));
+      body.write(content);
+      body.write("\r\n".getBytes("ISO-8859-1"));
+      return this;
+    }
+
+    byte[] build() throws IOException {
+      body.write(("--" + BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+      return body.toByteArray();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if(form != null) {
+      form.delete();
+    }
+  }
+
+  private FormParser.Form parse(byte[] body, String contentType, int chunk) throws IOException {
+    form = parser.parse(new TrickleInputStream(body, chunk), body.length, contentType);
+    return form;
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] data = new byte[length];
+    for(int i = 0; i < length; i++) {
+      // Every byte value, including the CR and dashes which start the delimiter
+      data[i] = (byte)(i * 31 + seed);
+    }
+    return data;
+  }
+
+  private static byte[] contents(FormParser.Part part) throws IOException {
+    InputStream in = part.openStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int count;
+      while((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  private static String[] uploadFiles() {
+    String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith("webmail-upload");
+      }
+    });
+    Arrays.sort(names);
+    return names;
+  }
+
+  @Test
+  public void decodesUrlEncodedFields() throws Exception {
+    byte[] body = "to=a%40example.com&subject=Gr%FC%DFe+aus+K%F6ln&empty=&flag&to=second".getBytes("ISO-8859-1");
+    for(int chunk : new int[] {1, 3, body.length}) {
+      parse(body, URLENCODED, chunk);
+      assertEquals("a@example.com", form.getField("to"));
+      assertEquals("Gr\u00fc\u00dfe aus K\u00f6ln", form.getField("subject"));
+      assertEquals("", form.getField("empty"));
+      assertEquals("", form.getField("flag"));
+      assertNull(form.getField("missing"));
+    }
+  }
+
+  @Test
+  public void treatsAMissingContentTypeAsUrlEncoded() throws Exception {
+    parse("from=me%40example.com".getBytes("ISO-8859-1"), null, 100);
+    assertEquals("me@example.com", form.getField("from"));
+  }
+
+  @Test
+  public void refusesInvalidEscapes() throws Exception {
+    for(String body : new String[] {"a=%4", "a=%G1"}) {
+      try {
+        parse(body.getBytes("ISO-8859-1"), URLENCODED, 100);
+        fail("Escape in " + body + " should be refused");
+      }
+      catch(FormException e) {
+        assertFalse(e.isTooLarge());
+      }
+    }
+  }
+
+  @Test
+  public void refusesUnknownEncodings() throws Exception {
+    try {
+      parse("a=b".getBytes("ISO-8859-1"), "text/plain", 100);
+      fail("Form should be refused");
+    }
+    catch(FormException e) {
+      assertFalse(e.isTooLarge());
+    }
+  }
+
+  @Test
+  public void decodesMultipartFieldsAndFiles() throws Exception {
+    byte[] upload = bytes(3000, 7);
+    byte[] body = new MultipartBuilder()
+        .field("to", "a@example.com")
+        .file("attachment", "C:\\Users\\me\\report.pdf", upload)
+        .part("Content-Disposition: form-data; name=\"subject\"\r\nContent-Type: text/plain; charset=UTF-8\r\n",
+            "Gr\u00fc\u00dfe".getBytes("UTF-8"))
+        .file("empty", "", new byte[0])
+        .build();
+    for(int chunk : new int[] {1, 5, 8192, body.length}) {
+      parse(body, MULTIPART, chunk);
+      assertEquals("a@example.com", form.getField("to"));
+      assertEquals("Gr\u00fc\u00dfe", form.getField("subject"));
+      // A file input in which no file was chosen is dropped
+      assertEquals(1, form.getParts().size());
+      FormParser.Part part = form.getParts().get(0);
+      assertEquals("attachment", part.getName());
+      assertEquals("report.pdf", part.getFilename());
+      assertEquals("application/octet-stream", part.getContentType());
+      assertEquals(upload.length, part.getSize());
+      assertArrayEquals(upload, contents(part));
+      form.delete();
+    }
+  }
+
+  @Test
+  public void findsDelimitersSplitAcrossReads() throws Exception {
+    // Contents which almost contain the delimiter, and file sizes which put the
+    // delimiter across the end of the parser's 8192 byte buffer
+    byte[] lookalike = ("x\r\n--" + BOUNDARY.substring(0, 10) + "\r\r\n-" + "\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "X").getBytes("ISO-8859-1");
+    for(int size = 8100; size < 8200; size += 7) {
+      byte[] upload = bytes(size, size);
+      System.arraycopy(lookalike, 0, upload, upload.length - lookalike.length, lookalike.length);
+      byte[] body = new MultipartBuilder().file("file", "a.bin", upload).field("from", "me@example.com").build();
+      for(int chunk : new int[] {1, 4096, body.length}) {
+        parse(body, MULTIPART, chunk);
+        assertArrayEquals(upload, contents(form.getParts().get(0)));
+        assertEquals("me@example.com", form.getField("from"));
+        form.delete();
+      }
+    }
+  }
+
+  @Test
+  public void skipsThePreambleAndEpilogue() throws Exception {
+    byte[] parts = new MultipartBuilder().field("to", "a@example.com").build();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write("This is the preamble.\r\n".getBytes("ISO-8859-1"));
+    body.write(parts);
+    body.write("This is the epilogue.".getBytes("ISO-8859-1"));
+    parse(body.toByteArray(), MULTIPART, 10);
+    assertEquals("a@example.com", form.getField("to"));
+  }
+
+  @Test
+  public void refusesMalformedMultipartBodies() throws Exception {
+    byte[] complete = new MultipartBuilder().field("to", "a@example.com").build();
+    byte[] unterminated = Arrays.copyOf(complete, complete.length - BOUNDARY.length() - 8);
+    byte[] nameless = new MultipartBuilder().part("Content-Disposition: form-data\r\n", new byte[] {'x'}).build();
+    byte[][] bodies = {unterminated, nameless, "no boundary at all".getBytes("ISO-8859-1")};
+    for(byte[] body : bodies) {
+      try {
+        parse(body, MULTIPART, 100);
+        fail("Body should be refused: " + new String(body, "ISO-8859-1"));
+      }
+      catch(FormException e) {
+        assertFalse(e.isTooLarge());
+      }
+    }
+    try {
+      parse(complete, "multipart/form-data", 100);
+      fail("A multipart form without a boundary should be refused");
+    }
+    catch(FormException e) {
+      assertFalse(e.isTooLarge());
+    }
+  }
+
+  @Test
+  public void refusesUnknownCharsets() throws Exception {
+    for(String charset : new String[] {"bogus", "a b"}) {
+      byte[] body = new MultipartBuilder()
+          .part("Content-Disposition: form-data; name=\"subject\"\r\nContent-Type: text/plain; charset=\"" + charset + "\"\r\n",
+              "Hello".getBytes("ISO-8859-1"))
+          .build();
+      try {
+        parse(body, MULTIPART, 100);
+        fail("Charset " + charset + " should be refused");
+      }
+      catch(FormException e) {
+        assertFalse(e.isTooLarge());
+      }
+    }
+  }
+
+  @Test
+  public void limitsTheSizeOfFields() throws Exception {
+    byte[] value = new byte[FormParser.MAX_FIELD_SIZE];
+    Arrays.fill(value, (byte)'a');
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write("message=".getBytes("ISO-8859-1"));
+    body.write(value);
+    parse(body.toByteArray(), URLENCODED, 8192);
+    assertEquals(FormParser.MAX_FIELD_SIZE, form.getField("message").length());
+
+    body.write('a');
+    try {
+      parse(body.toByteArray(), URLENCODED, 8192);
+      fail("Field should be too large");
+    }
+    catch(FormException e) {
+      assertTrue(e.isTooLarge());
+    }
+
+    try {
+      parse(new MultipartBuilder().field("message", new String(value, "ISO-8859-1") + "a").build(), MULTIPART, 8192);
+      fail("Field should be too large");
+    }
+    catch(FormException e) {
+      assertTrue(e.isTooLarge());
+    }
+  }
+
+  @Test
+  public void refusesFormsLargerThanTheLimitWithoutReadingThem() throws Exception {
+    InputStream unreadable = new InputStream() {
+      public int read() throws IOException {
+        throw new AssertionError("The body should not be read");
+      }
+    };
+    try {
+      parser.parse(unreadable, FormParser.MAX_SIZE + 1, URLENCODED);
+      fail("Form should be too large");
+    }
+    catch(FormException e) {
+      assertTrue(e.isTooLarge());
+    }
+  }
+
+  @Test
+  public void keepsSmallUploadsInMemory() throws Exception {
+    byte[] upload = bytes(FormParser.SPILL_THRESHOLD, 1);
+    parse(new MultipartBuilder().file("file", "a.bin", upload).build(), MULTIPART, 8192);
+    FormParser.Part part = form.getParts().get(0);
+    assertNull(part.getFile());
+    assertArrayEquals(upload, part.getContent());
+  }
+
+  @Test
+  public void spillsLargeUploadsToTemporaryFiles() throws Exception {
+    byte[] upload = bytes(FormParser.SPILL_THRESHOLD * 3 + 1, 2);
+    parse(new MultipartBuilder().file("file", "a.bin", upload).build(), MULTIPART, 1000);
+    FormParser.Part part = form.getParts().get(0);
+    File file = part.getFile();
+    assertNotNull(file);
+    assertNull(part.getContent());
+    assertEquals(upload.length, file.length());
+    assertArrayEquals(upload, contents(part));
+
+    form.delete();
+    assertFalse(file.exists());
+    assertTrue(form.getParts().isEmpty());
+  }
+
+  @Test
+  public void takenPartsSurviveTheForm() throws Exception {
+    byte[] upload = bytes(FormParser.SPILL_THRESHOLD + 100, 3);
+    parse(new MultipartBuilder().file("file", "a.bin", upload).build(), MULTIPART, 8192);
+    FormParser.Part part = form.getParts().get(0);
+    form.takePart(part);
+    form.delete();
+    try {
+      assertTrue(part.getFile().exists());
+    }
+    finally {
+      part.delete();
+    }
+    assertNull(part.getFile());
+  }
+
+  @Test
+  public void deletesSpilledUploadsWhenAFormIsRefused() throws Exception {
+    String[] before = uploadFiles();
+    byte[] complete = new MultipartBuilder()
+        .file("first", "a.bin", bytes(FormParser.SPILL_THRESHOLD * 2, 4))
+        .file("second", "b.bin", bytes(FormParser.SPILL_THRESHOLD * 2, 5))
+        .build();
+    // The second upload is cut off in the middle
+    byte[] truncated = Arrays.copyOf(complete, complete.length - FormParser.SPILL_THRESHOLD);
+    try {
+      parse(truncated, MULTIPART, 8192);
+      fail("Body should be refused");
+    }
+    catch(FormException e) {
+      assertFalse(e.isTooLarge());
+    }
+    form = null;
+    assertArrayEquals(before, uploadFiles());
+  }
+}
@@ -0,0 +1,478 @@
+package keating.webmail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * MessageJournalTest.java
+ *
+ * Writes journals with small segments into a temporary directory and replays
+ * them with a second journal, as after a restart: the recorded states, replay
+ * after a snapshot written while records are still being appended, the end
+ * of the journal at a torn or damaged record, and the uploads directory.
+ *
+ * @author Andrew Keating
+ */
+public class MessageJournalTest {
+
+  private static final long SEGMENT_SIZE = 4096;
+  private static final long SYNC_INTERVAL = 5;
+  private static final int COMPACT_SEGMENTS = 2;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * The emails a journal writes to its snapshots, like the MessageStore
+   */
+  private static class Store implements MessageJournal.Source {
+    final ConcurrentSkipListMap<Long, EmailMessage> messages = new ConcurrentSkipListMap<Long, EmailMessage>();
+
+    public List<EmailMessage> getMessages() {
+      return new ArrayList<EmailMessage>(messages.values());
+    }
+
+    EmailMessage add(String to, String data) {
+      EmailMessage message = new EmailMessage(to, "sender@example.com", "Subject " + to, "mail.example.com", data);
+      messages.put(message.getId(), message);
+      return message;
+    }
+  }
+
+  private static MessageJournal start(File directory, Store store) throws IOException {
+    MessageJournal journal = new MessageJournal(directory, store, SEGMENT_SIZE, SYNC_INTERVAL, COMPACT_SEGMENTS);
+    assertTrue(journal.replay().isEmpty());
+    journal.start();
+    return journal;
+  }
+
+  /**
+   * Reads a journal the way the SMTPClient does after a restart
+   */
+  private static Map<Long, EmailMessage> recover(File directory) throws IOException {
+    Map<Long, EmailMessage> recovered = new HashMap<Long, EmailMessage>();
+    for(EmailMessage message : new MessageJournal(directory, new Store(), SEGMENT_SIZE, SYNC_INTERVAL, COMPACT_SEGMENTS).replay()) {
+      recovered.put(message.getId(), message);
+    }
+    return recovered;
+  }
+
+  private static void finish(MessageJournal journal, EmailMessage message, String status) {
+    message.setRecipientStatus(message.getRecipients().get(0), status);
+    message.setDeliveryTime("Sat, 17 Oct 2026 12:00:00 +0000");
+    message.setStatus(status);
+    journal.finished(message);
+  }
+
+  private static String filler(int length) {
+    StringBuffer data = new StringBuffer(length);
+    while(data.length() < length) {
+      data.append("The quick brown fox jumps over the lazy dog. ");
+    }
+    return data.substring(0, length);
+  }
+
+  private static File[] files(File directory, final String prefix) {
+    File[] files = directory.listFiles();
+    List<File> matching = new ArrayList<File>();
+    for(File file : files) {
+      if(file.getName().startsWith(prefix)) {
+        matching.add(file);
+      }
+    }
+    File[] sorted = matching.toArray(new File[matching.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static boolean hasSnapshot(File directory) {
+    for(File file : files(directory, "snapshot-")) {
+      if(file.getName().endsWith(".dat")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void awaitSnapshot(File directory) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while(!hasSnapshot(directory)) {
+      if(System.currentTimeMillis() > deadline) {
+        fail("No snapshot was written");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  /**
+   * Waits until a snapshot in progress is complete and the segments it replaces
+   * are deleted. A restart never replays a journal which is being compacted.
+   */
+  private static void awaitIdle(File directory) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    String[] before = directory.list();
+    Arrays.sort(before);
+    while(true) {
+      Thread.sleep(200);
+      String[] after = directory.list();
+      Arrays.sort(after);
+      if(Arrays.equals(before, after) && files(directory, "snapshot-")[0].getName().endsWith(".dat")) {
+        boolean writing = false;
+        for(String name : after) {
+          writing |= name.endsWith(".tmp");
+        }
+        if(!writing) {
+          return;
+        }
+      }
+      if(System.currentTimeMillis() > deadline) {
+        fail("The journal is still being compacted");
+      }
+      before = after;
+    }
+  }
+
+  /**
+   * @return the offsets of the records in a segment
+   */
+  private static List<Long> recordOffsets(File segment) throws IOException {
+    List<Long> offsets = new ArrayList<Long>();
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      long offset = 0;
+      while(offset + 8 <= file.length()) {
+        file.seek(offset);
+        int length = file.readInt();
+        if(length == 0) {
+          break;
+        }
+        offsets.add(offset);
+        offset += 8 + length;
+      }
+    }
+    finally {
+      file.close();
+    }
+    return offsets;
+  }
+
+  /**
+   * Copies a journal, as a crash would leave it, so that it can be damaged
+   * without touching the segments the running journal has mapped
+   */
+  private File copy(File directory) throws IOException {
+    File copy = folder.newFolder();
+    for(File file : directory.listFiles()) {
+      if(file.isFile()) {
+        Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+      }
+    }
+    return copy;
+  }
+
+  private static void assertSameState(EmailMessage expected, EmailMessage actual) {
+    assertEquals(expected.getTo(), actual.getTo());
+    assertEquals(expected.getStatus(), actual.getStatus());
+    assertEquals(expected.getDeliveryTime(), actual.getDeliveryTime());
+    assertEquals(expected.getScheduledTime(), actual.getScheduledTime());
+    for(String recipient : expected.getRecipients()) {
+      assertEquals(expected.getRecipientStatus(recipient), actual.getRecipientStatus(recipient));
+    }
+  }
+
+  @Test
+  public void recoversTheLastStateOfEveryEmail() throws Exception {
+    File directory = folder.newFolder();
+    Store store = new Store();
+    MessageJournal journal = start(directory, store);
+
+    EmailMessage delivered = store.add("delivered@example.com", "Hello");
+    delivered.addAttachment(new Attachment("notes.txt", "text/plain", "Some notes".getBytes("UTF-8")));
+    journal.submitted(delivered);
+    journal.attempting(delivered);
+    finish(journal, delivered, "Success");
+
+    EmailMessage scheduled = store.add("later@example.com", "Later");
+    scheduled.setDelay(60);
+    journal.submitted(scheduled);
+    journal.scheduled(scheduled, 1234567890000L);
+
+    EmailMessage interrupted = store.add("interrupted@example.com", "Interrupted");
+    journal.submitted(interrupted);
+    journal.attempting(interrupted);
+
+    EmailMessage failed = store.add("failed@example.com", "Failed");
+    journal.submitted(failed);
+    finish(journal, failed, "Error sending mail (Error 550)");
+
+    EmailMessage cancelled = store.add("cancelled@example.com", "Cancelled");
+    journal.submitted(cancelled);
+    journal.scheduled(cancelled, 1234567890000L);
+    cancelled.setStatus("Cancelled");
+    journal.awaitDurable(journal.finished(cancelled));
+
+    Map<Long, EmailMessage> recovered = recover(directory);
+    assertEquals(5, recovered.size());
+
+    EmailMessage message = recovered.get(delivered.getId());
+    assertEquals("Success", message.getStatus());
+    assertEquals("Success", message.getRecipientStatus("delivered@example.com"));
+    assertEquals("Sat, 17 Oct 2026 12:00:00 +0000", message.getDeliveryTime());
+    assertEquals("Hello", message.getData());
+    assertEquals(delivered.getSubmitTime(), message.getSubmitTime());
+    assertEquals("notes.txt", message.getAttachments().get(0).getFilename());
+    assertArrayEquals("Some notes".getBytes("UTF-8"), message.getAttachments().get(0).getContent());
+
+    message = recovered.get(scheduled.getId());
+    assertEquals("Pending", message.getStatus());
+    assertEquals(60, message.getDelay());
+    assertEquals(1234567890000L, message.getScheduledTime());
+
+    // An attempt without an outcome is made again
+    assertEquals("Pending", recovered.get(interrupted.getId()).getStatus());
+    assertNull(recovered.get(interrupted.getId()).getDeliveryTime());
+
+    assertEquals("Error sending mail (Error 550)", recovered.get(failed.getId()).getStatus());
+    assertEquals("Cancelled", recovered.get(cancelled.getId()).getStatus());
+  }
+
+  @Test
+  public void replaysTheSegmentsAfterASnapshotOverIt() throws Exception {
+    File directory = folder.newFolder();
+    Store store = new Store();
+    MessageJournal journal = start(directory, store);
+
+    // Enough submissions to fill several segments, which triggers a snapshot
+    List<EmailMessage> sent = new ArrayList<EmailMessage>();
+    long sequence = 0;
+    for(int i = 0; i < 40; i++) {
+      EmailMessage message = store.add("user" + i + "@example.com", filler(500));
+      sent.add(message);
+      sequence = journal.submitted(message);
+    }
+    journal.awaitDurable(sequence);
+    awaitSnapshot(directory);
+
+    // Emails in the snapshot change afterwards, so their records after the
+    // snapshot are replayed over a state which may already include them
+    for(int i = 0; i < 40; i += 2) {
+      finish(journal, sent.get(i), "Success");
+    }
+    EmailMessage late = store.add("late@example.com", "Late");
+    late.setScheduledTime(42);
+    journal.submitted(late);
+    journal.awaitDurable(journal.scheduled(late, 42));
+    sent.add(late);
+    awaitIdle(directory);
+
+    Map<Long, EmailMessage> recovered = recover(directory);
+    assertEquals(sent.size(), recovered.size());
+    for(EmailMessage message : sent) {
+      assertSameState(message, recovered.get(message.getId()));
+    }
+
+    // Only the newest snapshot and the segments after it are kept
+    File[] snapshots = files(directory, "snapshot-");
+    String newest = snapshots[snapshots.length - 1].getName();
+    assertTrue(newest, newest.endsWith(".dat"));
+    long first = Long.parseLong(newest.substring("snapshot-".length(), newest.length() - ".dat".length()));
+    for(File segment : files(directory, "segment-")) {
+      String name = segment.getName();
+      assertTrue(name, Long.parseLong(name.substring("segment-".length(), name.length() - ".log".length())) >= first);
+    }
+
+    // Replaying does not change the journal, so recovering twice gives the same emails
+    Map<Long, EmailMessage> again = recover(directory);
+    for(EmailMessage message : sent) {
+      assertSameState(message, again.get(message.getId()));
+    }
+  }
+
+  @Test
+  public void compactsWhileRecordsAreAppended() throws Exception {
+    File directory = folder.newFolder();
+    final Store store = new Store();
+    final MessageJournal journal = start(directory, store);
+    final AtomicLong last = new AtomicLong();
+
+    Thread[] writers = new Thread[4];
+    for(int t = 0; t < writers.length; t++) {
+      final int writer = t;
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          for(int i = 0; i < 200; i++) {
+            EmailMessage message = store.add("writer" + writer + "-" + i + "@example.com", filler(100 + i));
+            long sequence = journal.submitted(message);
+            if(i % 3 == 0) {
+              message.setScheduledTime(1000000L + i);
+              sequence = journal.scheduled(message, message.getScheduledTime());
+            }
+            else {
+              journal.attempting(message);
+              message.setRecipientStatus(message.getRecipients().get(0), i % 3 == 1 ? "Success" : "Error 550");
+              message.setDeliveryTime("Sat, 17 Oct 2026 12:00:00 +0000");
+              message.setStatus(i % 3 == 1 ? "Success" : "Error sending mail (Error 550)");
+              sequence = journal.finished(message);
+            }
+            long seen;
+            while((seen = last.get()) < sequence && !last.compareAndSet(seen, sequence)) {
+              // Retry
+            }
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for(Thread writer : writers) {
+      writer.join();
+    }
+    journal.awaitDurable(last.get());
+    awaitSnapshot(directory);
+    awaitIdle(directory);
+
+    Map<Long, EmailMessage> recovered = recover(directory);
+    assertEquals(store.messages.size(), recovered.size());
+    for(EmailMessage message : store.messages.values()) {
+      assertSameState(message, recovered.get(message.getId()));
+    }
+  }
+
+  /**
+   * Records two submissions, then an attempt and the delivery of the first email
+   * @return the last segment, which holds the four records
+   */
+  private File writeFourRecords(File directory, Store store, EmailMessage[] sent) throws Exception {
+    MessageJournal journal = start(directory, store);
+    sent[0] = store.add("first@example.com", "First");
+    journal.submitted(sent[0]);
+    sent[1] = store.add("second@example.com", "Second");
+    journal.submitted(sent[1]);
+    journal.attempting(sent[0]);
+    finish(journal, sent[0], "Success");
+    journal.awaitDurable(4);
+
+    File[] segments = files(directory, "segment-");
+    File segment = segments[segments.length - 1];
+    assertEquals(4, recordOffsets(segment).size());
+    Map<Long, EmailMessage> recovered = recover(directory);
+    assertEquals("Success", recovered.get(sent[0].getId()).getStatus());
+    return segment;
+  }
+
+  private static void flipBit(File file, long offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(offset);
+      int b = raf.read();
+      raf.seek(offset);
+      raf.write(b ^ 0x10);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void stopsAtADamagedRecord() throws Exception {
+    File directory = folder.newFolder();
+    EmailMessage[] sent = new EmailMessage[2];
+    File segment = writeFourRecords(directory, new Store(), sent);
+    List<Long> offsets = recordOffsets(segment);
+
+    // A bit flipped in the last record, e.g. by a write torn across sectors:
+    // the delivery is lost and the interrupted attempt is made again
+    File copy = copy(directory);
+    flipBit(new File(copy, segment.getName()), offsets.get(3) + 12);
+    Map<Long, EmailMessage> recovered = recover(copy);
+    assertEquals(2, recovered.size());
+    assertEquals("Pending", recovered.get(sent[0].getId()).getStatus());
+    assertNull(recovered.get(sent[0].getId()).getDeliveryTime());
+
+    // The records after a damaged one are not applied either
+    copy = copy(directory);
+    flipBit(new File(copy, segment.getName()), offsets.get(1) + 20);
+    recovered = recover(copy);
+    assertEquals(1, recovered.size());
+    assertEquals("Pending", recovered.get(sent[0].getId()).getStatus());
+  }
+
+  @Test
+  public void stopsAtATruncatedRecord() throws Exception {
+    File directory = folder.newFolder();
+    EmailMessage[] sent = new EmailMessage[2];
+    File segment = writeFourRecords(directory, new Store(), sent);
+    List<Long> offsets = recordOffsets(segment);
+
+    // Cut inside the header of the last record, inside its payload, and inside
+    // the payload of the one before it
+    long[] lengths = {offsets.get(3) + 3, offsets.get(3) + 15, offsets.get(2) + 15};
+    for(long length : lengths) {
+      File copy = copy(directory);
+      RandomAccessFile file = new RandomAccessFile(new File(copy, segment.getName()), "rw");
+      try {
+        file.setLength(length);
+      }
+      finally {
+        file.close();
+      }
+      Map<Long, EmailMessage> recovered = recover(copy);
+      assertEquals(2, recovered.size());
+      assertEquals("Pending", recovered.get(sent[0].getId()).getStatus());
+      assertEquals("Pending", recovered.get(sent[1].getId()).getStatus());
+    }
+  }
+
+  @Test
+  public void keepsSpooledUploadsAndDeletesOrphans() throws Exception {
+    File directory = folder.newFolder();
+    Store store = new Store();
+    MessageJournal journal = start(directory, store);
+
+    File upload = folder.newFile("webmail-upload123.part");
+    Files.write(upload.toPath(), "Uploaded contents".getBytes("UTF-8"));
+    EmailMessage message = store.add("upload@example.com", "See attached");
+    message.addAttachment(new Attachment(upload, "report.txt", "text/plain", true));
+    message.addAttachment(new Attachment("small.txt", "text/plain", "Small".getBytes("UTF-8")));
+    journal.spoolUploads(message);
+
+    File uploads = new File(directory, "uploads");
+    File spooled = message.getAttachments().get(0).getFile();
+    assertEquals(uploads, spooled.getParentFile());
+    assertFalse(upload.exists());
+    assertTrue(message.getAttachments().get(0).isTemporary());
+    assertNull(message.getAttachments().get(1).getFile());
+    journal.awaitDurable(journal.submitted(message));
+
+    // Left behind by an email which crashed between spooling and being recorded
+    File orphan = new File(uploads, "upload-999-1.part");
+    Files.write(orphan.toPath(), "Orphan".getBytes("UTF-8"));
+
+    Map<Long, EmailMessage> recovered = recover(directory);
+    assertFalse(orphan.exists());
+    assertTrue(spooled.exists());
+    Attachment attachment = recovered.get(message.getId()).getAttachments().get(0);
+    assertEquals(spooled.getAbsoluteFile(), attachment.getFile().getAbsoluteFile());
+    assertEquals("report.txt", attachment.getFilename());
+    assertArrayEquals("Uploaded contents".getBytes("UTF-8"), Files.readAllBytes(attachment.getFile().toPath()));
+  }
+}